@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.melessoftware.utils.jmx.benchmarks;
+
+import com.melessoftware.utils.jmx.FindObjectsCallback;
+import com.melessoftware.utils.jmx.ListObjectsCallback;
+import com.melessoftware.utils.jmx.LogAttributeCallback;
+import com.melessoftware.utils.jmx.ObjectNameCache;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.ObjectInstance;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the callbacks against every MBean on a {@link SyntheticServer}, one operation being one execution.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CallbackBenchmarks {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CallbackBenchmarks.class);
+
+    private static final List<String> ATTRIBUTES = Arrays.asList("Count", "Ratio", "State", "Usage.used");
+
+    private ObjectName pattern;
+    private ObjectNameCache objectNames;
+
+    @Setup
+    public void setUp() throws Exception {
+        pattern = new ObjectName(SyntheticServer.DOMAIN + ":*");
+        // shared across executions, as it is by the logger's ticks
+        objectNames = new ObjectNameCache(pattern);
+    }
+
+    @Benchmark
+    public Set<ObjectInstance> findObjects(SyntheticServer server) throws IOException {
+        return new FindObjectsCallback(pattern).execute(server.getConnection());
+    }
+
+    @Benchmark
+    public long listNames(SyntheticServer server) throws IOException {
+        CountingOutput out = new CountingOutput();
+        new ListObjectsCallback(pattern, Collections.<String>emptyList(), out, LOG).execute(server.getConnection());
+        return out.getTotal();
+    }
+
+    @Benchmark
+    public long listAttributes(SyntheticServer server) throws IOException {
+        CountingOutput out = new CountingOutput();
+        new ListObjectsCallback(pattern, ATTRIBUTES, out, LOG).execute(server.getConnection());
+        return out.getTotal();
+    }
+
+    @Benchmark
+    public long listAttributesInParallel(SyntheticServer server) throws IOException {
+        CountingOutput out = new CountingOutput();
+        new ListObjectsCallback(pattern, ATTRIBUTES, 4, out, LOG).execute(server.getConnection());
+        return out.getTotal();
+    }
+
+    @Benchmark
+    public long logAttributes(SyntheticServer server) throws IOException {
+        CountingOutput sink = new CountingOutput();
+        new LogAttributeCallback(objectNames, ATTRIBUTES, sink, LOG).execute(server.getConnection());
+        return sink.getTotal();
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.melessoftware.utils.jmx.benchmarks;
+
+import com.melessoftware.utils.jmx.SampleSink;
+
+import javax.management.ObjectName;
+
+/**
+ * Keeps a running total of everything written to it, which a benchmark returns so that the writes can't be optimised
+ * away, without the cost of formatting or logging getting into the measurement.
+ */
+public class CountingOutput implements Appendable, SampleSink {
+
+    private long total;
+
+    @Override
+    public Appendable append(CharSequence csq) {
+        total += csq.length();
+        return this;
+    }
+
+    @Override
+    public Appendable append(CharSequence csq, int start, int end) {
+        total += end - start;
+        return this;
+    }
+
+    @Override
+    public Appendable append(char c) {
+        total += c;
+        return this;
+    }
+
+    @Override
+    public void sample(long timestamp, ObjectName objectName, String attributeName, Object value) {
+        total += timestamp + objectName.hashCode() + attributeName.length() + (value == null ? 0 : value.hashCode());
+    }
+
+    @Override
+    public void close() {
+    }
+
+    public long getTotal() {
+        return total;
+    }
+}
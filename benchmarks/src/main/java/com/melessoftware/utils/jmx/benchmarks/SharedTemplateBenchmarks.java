@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.melessoftware.utils.jmx.benchmarks;
+
+import com.melessoftware.utils.jmx.JmxTemplate;
+import com.melessoftware.utils.jmx.MBeanServerCallback;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.management.JMException;
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the templates that can be shared between threads, used by several threads at once. The cached template is
+ * a pool behind a {@link com.melessoftware.utils.jmx.CachingJmxTemplate}, so its threads share their reads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(TemplateBenchmarks.SHARED_THREADS)
+public class SharedTemplateBenchmarks {
+
+    private static final MBeanServerCallback<Object> READ = new MBeanServerCallback<Object>() {
+
+        private final ObjectName name = objectName(SyntheticServer.DOMAIN + ":type=Synthetic,group=g0,name=s0");
+
+        @Override
+        public Object execute(MBeanServerConnection connection) throws IOException {
+            try {
+                return connection.getAttribute(name, "Count");
+            } catch (JMException jme) {
+                throw new IllegalStateException(jme);
+            }
+        }
+    };
+
+    @Param({"simple", "pooled", "cached"})
+    public String template;
+
+    private JmxTemplate jmxTemplate;
+
+    @Setup
+    public void setUp(TemplateBenchmarks.Server server) {
+        jmxTemplate = TemplateBenchmarks.create(template, server.getAddress());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        jmxTemplate.close();
+    }
+
+    @Benchmark
+    public Integer runWithConnection() throws IOException {
+        return jmxTemplate.runWithConnection(TemplateBenchmarks.COUNT);
+    }
+
+    private static ObjectName objectName(String name) {
+        try {
+            return new ObjectName(name);
+        } catch (JMException jme) {
+            throw new IllegalArgumentException(jme);
+        }
+    }
+
+    @Benchmark
+    public Object readAttribute() throws IOException {
+        return jmxTemplate.runWithConnection(READ);
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.melessoftware.utils.jmx.benchmarks;
+
+import java.lang.management.MemoryUsage;
+
+/**
+ * An MBean with a counter, a gauge, a string and a composite attribute, so that each kind of value gets exercised.
+ */
+public class Synthetic implements SyntheticMXBean {
+
+    private final long seed;
+    private long count;
+
+    public Synthetic(long seed) {
+        this.seed = seed;
+    }
+
+    @Override
+    public synchronized long getCount() {
+        return count++;
+    }
+
+    @Override
+    public double getRatio() {
+        return (seed % 100) / 100.0;
+    }
+
+    @Override
+    public String getState() {
+        return "RUNNING";
+    }
+
+    @Override
+    public MemoryUsage getUsage() {
+        return new MemoryUsage(seed, seed * 2, seed * 3, seed * 4);
+    }
+}
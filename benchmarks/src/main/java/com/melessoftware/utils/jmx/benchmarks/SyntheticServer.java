@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.melessoftware.utils.jmx.benchmarks;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXConnectorServer;
+import javax.management.remote.JMXConnectorServerFactory;
+import javax.management.remote.JMXServiceURL;
+
+/**
+ * An MBean server of its own, filled with {@link Synthetic} MBeans, and a connection to it.
+ * <p/>
+ * With the local transport the connection is the server itself, which measures the callbacks alone. With the rmi
+ * transport the server is exposed through an RMI connector on the loopback interface, without a registry, and the
+ * connection goes through it, which adds serialisation and a round trip to every call, as in real use.
+ */
+@State(Scope.Benchmark)
+public class SyntheticServer {
+
+    public static final String DOMAIN = "bench";
+
+    @Param({"100", "1000"})
+    public int mbeans;
+
+    @Param({"local", "rmi"})
+    public String transport;
+
+    private MBeanServer server;
+    private JMXConnectorServer connectorServer;
+    private JMXConnector connector;
+    private MBeanServerConnection connection;
+
+    @Setup
+    public void start() throws Exception {
+        start(mbeans, "rmi".equals(transport));
+    }
+
+    public void start(int mbeans, boolean rmi) throws Exception {
+        server = MBeanServerFactory.newMBeanServer();
+        for (int i = 0; i < mbeans; i++) {
+            // a few groups, so that patterns can pick out part of the server
+            server.registerMBean(new Synthetic(i), new ObjectName(DOMAIN + ":type=Synthetic,group=g" + (i % 10) + ",name=s" + i));
+        }
+        if (rmi) {
+            connectorServer = JMXConnectorServerFactory.newJMXConnectorServer(new JMXServiceURL("service:jmx:rmi://127.0.0.1"), null, server);
+            connectorServer.start();
+            connector = JMXConnectorFactory.connect(connectorServer.getAddress());
+            connection = connector.getMBeanServerConnection();
+        } else {
+            connection = server;
+        }
+    }
+
+    @TearDown
+    public void stop() throws Exception {
+        if (connector != null) {
+            connector.close();
+        }
+        if (connectorServer != null) {
+            connectorServer.stop();
+        }
+    }
+
+    public MBeanServerConnection getConnection() {
+        return connection;
+    }
+
+    /**
+     * @return where to connect to the server, only with the rmi transport
+     */
+    public JMXServiceURL getAddress() {
+        if (connectorServer == null) {
+            throw new IllegalStateException("the local transport has no address");
+        }
+        return connectorServer.getAddress();
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.melessoftware.utils.jmx.benchmarks;
+
+import com.melessoftware.utils.jmx.CachingJmxTemplate;
+import com.melessoftware.utils.jmx.JmxTemplate;
+import com.melessoftware.utils.jmx.MBeanServerCallback;
+import com.melessoftware.utils.jmx.PersistentJmxTemplate;
+import com.melessoftware.utils.jmx.PooledJmxTemplate;
+import com.melessoftware.utils.jmx.ProxyJmxTemplate;
+import com.melessoftware.utils.jmx.SimpleJmxTemplate;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.management.MBeanServerConnection;
+import javax.management.remote.JMXServiceURL;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures what each template adds to the cheapest possible remote call, over the loopback RMI connector. The simple
+ * template connects for every call, so it shows the cost of a connect.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TemplateBenchmarks {
+
+    static final int SHARED_THREADS = 4;
+    static final long CACHE_TIME_TO_LIVE_MILLIS = 10;
+
+    static final MBeanServerCallback<Integer> COUNT = new MBeanServerCallback<Integer>() {
+        @Override
+        public Integer execute(MBeanServerConnection connection) throws IOException {
+            return connection.getMBeanCount();
+        }
+    };
+
+    @Param({"simple", "persistent", "proxy", "pooled"})
+    public String template;
+
+    private JmxTemplate jmxTemplate;
+
+    @Setup
+    public void setUp(Server server) {
+        jmxTemplate = create(template, server.getAddress());
+    }
+
+    static JmxTemplate create(String template, JMXServiceURL address) {
+        if ("simple".equals(template)) {
+            return new SimpleJmxTemplate(address);
+        } else if ("persistent".equals(template)) {
+            return new PersistentJmxTemplate(address);
+        } else if ("proxy".equals(template)) {
+            return new ProxyJmxTemplate(address);
+        } else if ("cached".equals(template)) {
+            return new CachingJmxTemplate(new PooledJmxTemplate(address, SHARED_THREADS), CACHE_TIME_TO_LIVE_MILLIS, TimeUnit.MILLISECONDS);
+        } else {
+            return new PooledJmxTemplate(address, SHARED_THREADS);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        jmxTemplate.close();
+    }
+
+    @Benchmark
+    public Integer runWithConnection() throws IOException {
+        return jmxTemplate.runWithConnection(COUNT);
+    }
+
+    /**
+     * A small server over RMI, as the templates only connect to urls.
+     */
+    @State(Scope.Benchmark)
+    public static class Server {
+
+        private final SyntheticServer server = new SyntheticServer();
+
+        @Setup
+        public void start() throws Exception {
+            server.start(10, true);
+        }
+
+        @TearDown
+        public void stop() throws Exception {
+            server.stop();
+        }
+
+        JMXServiceURL getAddress() {
+            return server.getAddress();
+        }
+    }
+}
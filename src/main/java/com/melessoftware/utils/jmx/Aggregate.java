@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.melessoftware.utils.jmx;
+
+import java.io.IOException;
+
+/**
+ * The count, sum, extremes and approximate quantiles of a set of values, in constant memory.
+ * <p/>
+ * Infinities and NaN are left out, as a single one would make the sum and mean meaningless.
+ */
+class Aggregate {
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+    private static final String[] QUANTILE_NAMES = {"p50", "p90", "p99"};
+
+    private final QuantileSketch sketch = new QuantileSketch();
+    private long count;
+    private double sum;
+    private double min;
+    private double max;
+
+    public void add(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return;
+        }
+        if (count == 0) {
+            min = value;
+            max = value;
+        } else {
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+        count++;
+        sum += value;
+        sketch.add(value);
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getSum() {
+        return sum;
+    }
+
+    public double getMin() {
+        return count == 0 ? Double.NaN : min;
+    }
+
+    public double getMax() {
+        return count == 0 ? Double.NaN : max;
+    }
+
+    public double getMean() {
+        return count == 0 ? Double.NaN : sum / count;
+    }
+
+    /**
+     * @param fraction between 0 and 1, such as 0.99 for the 99th percentile
+     * @return the value, accurate to within one percent of itself
+     */
+    public double getQuantile(double fraction) {
+        // the sketch's estimate can fall just outside the values actually seen
+        return Math.max(min, Math.min(max, sketch.quantile(fraction)));
+    }
+
+    /**
+     * Passes each statistic to the visitor, named {@code prefix.count}, {@code prefix.sum}, {@code prefix.p99} and so
+     * on, or just {@code count} and so on if the prefix is empty.
+     */
+    public void visit(String prefix, OpenDataFlattener.Visitor visitor) throws IOException {
+        String qualifier = prefix.isEmpty() ? "" : prefix + ".";
+        visitor.leaf(qualifier + "count", count);
+        visitor.leaf(qualifier + "sum", sum);
+        visitor.leaf(qualifier + "min", getMin());
+        visitor.leaf(qualifier + "max", getMax());
+        visitor.leaf(qualifier + "mean", getMean());
+        for (int i = 0; i < QUANTILES.length; i++) {
+            visitor.leaf(qualifier + QUANTILE_NAMES[i], getQuantile(QUANTILES[i]));
+        }
+    }
+
+    /**
+     * Forgets the values added so far.
+     */
+    public void clear() {
+        count = 0;
+        sum = 0;
+        sketch.clear();
+    }
+}
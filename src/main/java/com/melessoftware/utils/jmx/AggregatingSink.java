@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.melessoftware.utils.jmx;
+
+import javax.management.ObjectName;
+import java.io.Flushable;
+import java.io.IOException;
+
+/**
+ * Folds the values of all the MBeans read on a tick together, passing on their count, sum, min, max, mean and
+ * approximate percentiles rather than each value.
+ * <p/>
+ * Values are folded as they arrive, in memory that depends on the number of groups and attributes rather than the
+ * number of MBeans, and the aggregates are passed on when the sink is flushed, which {@link LogAttributeCallback} does
+ * at the end of each tick. An attribute {@code Count} is passed on as {@code Count.count}, {@code Count.sum},
+ * {@code Count.min}, {@code Count.max}, {@code Count.mean}, {@code Count.p50}, {@code Count.p90} and
+ * {@code Count.p99}, under the name of its group as described by {@link Aggregator}. Values that aren't numbers are
+ * dropped.
+ */
+public class AggregatingSink implements SampleSink, Flushable {
+
+    private final Aggregator aggregator;
+    private final SampleSink sink;
+
+    private long lastTimestamp;
+
+    /**
+     * @param groupKey the key property to aggregate separately for each value of, or null to aggregate all the MBeans
+     *                 together
+     */
+    public AggregatingSink(ObjectName objectNamePattern, String groupKey, SampleSink sink) {
+        this.aggregator = new Aggregator(objectNamePattern, groupKey);
+        this.sink = sink;
+    }
+
+    @Override
+    public synchronized void sample(long timestamp, ObjectName objectName, String attributeName, Object value) {
+        if (aggregator.add(objectName, attributeName, value)) {
+            lastTimestamp = timestamp;
+        }
+    }
+
+    /**
+     * Passes on the aggregates of the values since the last flush, timestamped with the last of them.
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        final long timestamp = lastTimestamp;
+        aggregator.visit(new Aggregator.Visitor() {
+            @Override
+            public void aggregate(final ObjectName group, String attributeName, Aggregate aggregate) throws IOException {
+                aggregate.visit(attributeName, new OpenDataFlattener.Visitor() {
+                    @Override
+                    public void leaf(String name, Object value) throws IOException {
+                        sink.sample(timestamp, group, name, value);
+                    }
+                });
+            }
+        });
+        aggregator.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        sink.close();
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.melessoftware.utils.jmx;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Folds the values of many MBeans' attributes into an {@link Aggregate} for each attribute, either across all of the
+ * MBeans or separately for each value of one of their key properties.
+ * <p/>
+ * Each group is named after the pattern the MBeans were found with or, when grouping, after the domain and the key
+ * property, such as {@code Catalina:type=ThreadPool}. MBeans without the key property are put in the pattern's group.
+ * Memory depends only on the number of groups and attributes, not on the number of MBeans. Aggregates are kept and
+ * reused after {@link #clear()}, so folding the same attributes again allocates nothing more.
+ */
+class Aggregator {
+
+    interface Visitor {
+
+        void aggregate(ObjectName group, String attributeName, Aggregate aggregate) throws IOException;
+    }
+
+    private final ObjectName objectNamePattern;
+    private final String groupKey;
+
+    private final Map<String, ObjectName> groupNames = new HashMap<String, ObjectName>();
+    private final Map<ObjectName, Map<String, Aggregate>> groups = new TreeMap<ObjectName, Map<String, Aggregate>>();
+
+    /**
+     * @param groupKey the key property to group by, or null to fold everything together
+     */
+    Aggregator(ObjectName objectNamePattern, String groupKey) {
+        this.objectNamePattern = objectNamePattern;
+        this.groupKey = groupKey;
+    }
+
+    /**
+     * @return false if the value isn't a number, and so wasn't added
+     */
+    boolean add(ObjectName objectName, String attributeName, Object value) {
+        if (!(value instanceof Number)) {
+            return false;
+        }
+        ObjectName group = groupOf(objectName);
+        Map<String, Aggregate> aggregates = groups.get(group);
+        if (aggregates == null) {
+            // in the order the attributes were first seen, which is the order they were asked for
+            aggregates = new LinkedHashMap<String, Aggregate>();
+            groups.put(group, aggregates);
+        }
+        Aggregate aggregate = aggregates.get(attributeName);
+        if (aggregate == null) {
+            aggregate = new Aggregate();
+            aggregates.put(attributeName, aggregate);
+        }
+        aggregate.add(((Number) value).doubleValue());
+        return true;
+    }
+
+    /**
+     * Passes the aggregates that have had values added since they were last cleared to the visitor, sorted by group.
+     */
+    void visit(Visitor visitor) throws IOException {
+        for (Map.Entry<ObjectName, Map<String, Aggregate>> group : groups.entrySet()) {
+            for (Map.Entry<String, Aggregate> aggregate : group.getValue().entrySet()) {
+                if (aggregate.getValue().getCount() > 0) {
+                    visitor.aggregate(group.getKey(), aggregate.getKey(), aggregate.getValue());
+                }
+            }
+        }
+    }
+
+    void clear() {
+        for (Map<String, Aggregate> aggregates : groups.values()) {
+            for (Aggregate aggregate : aggregates.values()) {
+                aggregate.clear();
+            }
+        }
+    }
+
+    private ObjectName groupOf(ObjectName objectName) {
+        if (groupKey == null) {
+            return objectNamePattern;
+        }
+        String value = objectName.getKeyProperty(groupKey);
+        if (value == null) {
+            return objectNamePattern;
+        }
+        String name = objectName.getDomain() + ":" + groupKey + "=" + value;
+        ObjectName group = groupNames.get(name);
+        if (group == null) {
+            try {
+                group = new ObjectName(name);
+            } catch (MalformedObjectNameException mone) {
+                throw new IllegalStateException("couldn't name the group for " + objectName, mone);
+            }
+            groupNames.put(name, group);
+        }
+        return group;
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.melessoftware.utils.jmx;
+
+import org.slf4j.Logger;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.IntrospectionException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectInstance;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+/**
+ * Works out which attributes to read from each MBean when some are given as wildcards, such as {@code *} or
+ * {@code *Count}.
+ * <p/>
+ * Wildcards are matched against the readable attributes in the MBean's {@link javax.management.MBeanInfo}. The info
+ * is large and nearly always the same for every MBean of a class, so it's fetched once for each class, from the first
+ * MBean of the class seen, and only the attributes it expands to are kept. The class of each MBean is learnt with one
+ * query for all the names matching the pattern the first time the pattern is seen, and after that by looking up just
+ * the names that haven't been seen before. When a name drops out of the names matching its pattern because its MBean
+ * was unregistered, it's forgotten along with its class's attributes, so a class that's redeployed with different
+ * attributes is looked at again. Names are kept separately for each pattern, so that preparing for one pattern, such
+ * as each domain in turn, doesn't forget the names of another.
+ * <p/>
+ * The info is also how a name with a dot in it, such as {@code HeapMemoryUsage.used}, is told apart from an attribute
+ * whose own name has a dot in it, so those names are looked up in the same way. The whole name is taken as the
+ * attribute if there's one of that name, and only otherwise split into an attribute and a path, as described in
+ * {@link AttributePath}.
+ * <p/>
+ * Attributes given by name are always read, and come first, followed by those matching the wildcards, in order of
+ * name.
+ */
+class AttributeExpander {
+
+    /**
+     * What to read from an MBean.
+     */
+    static final class Expansion {
+
+        final AttributePath[] paths;
+        final String[] attributeNames;
+        /**
+         * the number of paths, at the start, that were given by name rather than matched by a wildcard
+         */
+        final int namedCount;
+
+        private Expansion(AttributePath[] paths, int namedCount) {
+            this.paths = paths;
+            this.attributeNames = AttributePath.attributeNames(paths);
+            this.namedCount = namedCount;
+        }
+    }
+
+    private final List<String> names = new ArrayList<String>();
+    private final List<Pattern> patterns = new ArrayList<Pattern>();
+    private final boolean dotted;
+    private final Expansion named;
+
+    private final ConcurrentMap<ObjectName, String> classNames = new ConcurrentHashMap<ObjectName, String>();
+    private final ConcurrentMap<String, Expansion> expansions = new ConcurrentHashMap<String, Expansion>();
+    // the names whose classes have been learnt, by the pattern they were found with
+    private final Map<ObjectName, Set<ObjectName>> learnt = new HashMap<ObjectName, Set<ObjectName>>();
+
+    AttributeExpander(List<String> attributeSpecs) {
+        boolean anyDotted = false;
+        for (String spec : attributeSpecs) {
+            if (Globs.isGlob(spec)) {
+                patterns.add(Globs.toRegex(spec));
+            } else {
+                names.add(spec);
+                anyDotted |= spec.indexOf('.') >= 0;
+            }
+        }
+        dotted = anyDotted;
+        named = new Expansion(AttributePath.parse(names), names.size());
+    }
+
+    /**
+     * @return true if there are no wildcards or dotted names, so that every MBean has the same attributes read
+     */
+    boolean isFixed() {
+        return patterns.isEmpty() && !dotted;
+    }
+
+    /**
+     * Makes sure the attributes of each of the names are known, fetching the info of any classes not seen before, and
+     * forgets names that are no longer among them.
+     *
+     * @param objectNamePattern the pattern the names were found with
+     */
+    synchronized void prepare(MBeanServerConnection connection, ObjectName objectNamePattern, Collection<ObjectName> objectNames, Logger logger) throws IOException {
+        if (isFixed()) {
+            return;
+        }
+        Set<ObjectName> current = objectNames instanceof Set ? (Set<ObjectName>) objectNames : new HashSet<ObjectName>(objectNames);
+        Set<ObjectName> known = learnt.get(objectNamePattern);
+        if (known == null) {
+            known = new HashSet<ObjectName>();
+            learnt.put(objectNamePattern, known);
+            learnClassNames(connection, objectNamePattern, current, known);
+        } else {
+            for (ObjectName objectName : objectNames) {
+                if (!known.contains(objectName)) {
+                    learnClassName(connection, objectName, known);
+                }
+            }
+        }
+        // only names among the current ones are ever learnt, so a difference means some have gone
+        if (known.size() != current.size()) {
+            forgetAllBut(current, known);
+        }
+        Map<String, ObjectName> unexpanded = new LinkedHashMap<String, ObjectName>();
+        for (ObjectName objectName : objectNames) {
+            String className = classNames.get(objectName);
+            if (className != null && !expansions.containsKey(className) && !unexpanded.containsKey(className)) {
+                unexpanded.put(className, objectName);
+            }
+        }
+        for (Map.Entry<String, ObjectName> entry : unexpanded.entrySet()) {
+            expand(connection, entry.getKey(), entry.getValue(), logger);
+        }
+    }
+
+    /**
+     * @return what to read from the MBean, which is just the attributes given by name if its class isn't known
+     */
+    Expansion expansionFor(ObjectName objectName) {
+        if (isFixed()) {
+            return named;
+        }
+        String className = classNames.get(objectName);
+        Expansion expansion = className == null ? null : expansions.get(className);
+        return expansion == null ? named : expansion;
+    }
+
+    private void learnClassNames(MBeanServerConnection connection, ObjectName objectNamePattern, Set<ObjectName> current, Set<ObjectName> known) throws IOException {
+        for (ObjectInstance instance : connection.queryMBeans(objectNamePattern, null)) {
+            if (current.contains(instance.getObjectName())) {
+                classNames.put(instance.getObjectName(), instance.getClassName());
+                known.add(instance.getObjectName());
+            }
+        }
+    }
+
+    private void learnClassName(MBeanServerConnection connection, ObjectName objectName, Set<ObjectName> known) throws IOException {
+        try {
+            classNames.put(objectName, connection.getObjectInstance(objectName).getClassName());
+            known.add(objectName);
+        } catch (InstanceNotFoundException infe) {
+            // unregistered since the names were found, and left to drop out of them
+        }
+    }
+
+    private void forgetAllBut(Set<ObjectName> objectNames, Set<ObjectName> known) {
+        Iterator<ObjectName> names = known.iterator();
+        while (names.hasNext()) {
+            ObjectName objectName = names.next();
+            if (!objectNames.contains(objectName)) {
+                names.remove();
+                if (!isKnown(objectName)) {
+                    String className = classNames.remove(objectName);
+                    if (className != null) {
+                        expansions.remove(className);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return whether the name is still among those of any pattern, as patterns can overlap
+     */
+    private boolean isKnown(ObjectName objectName) {
+        for (Set<ObjectName> names : learnt.values()) {
+            if (names.contains(objectName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void expand(MBeanServerConnection connection, String className, ObjectName objectName, Logger logger) throws IOException {
+        MBeanAttributeInfo[] attributes;
+        try {
+            attributes = connection.getMBeanInfo(objectName).getAttributes();
+        } catch (InstanceNotFoundException infe) {
+            // unregistered since we queried, so try again with another MBean of the class next time
+            classNames.remove(objectName);
+            for (Set<ObjectName> names : learnt.values()) {
+                names.remove(objectName);
+            }
+            return;
+        } catch (IntrospectionException ie) {
+            logger.warn("couldn't get the attributes of {}, only reading those given by name: {}", objectName, ie.getMessage());
+            expansions.put(className, named);
+            return;
+        } catch (ReflectionException re) {
+            logger.warn("couldn't get the attributes of {}, only reading those given by name: {}", objectName, re.getMessage());
+            expansions.put(className, named);
+            return;
+        }
+        Set<String> readable = new HashSet<String>();
+        Set<String> matched = new TreeSet<String>();
+        for (MBeanAttributeInfo attribute : attributes) {
+            if (attribute.isReadable()) {
+                readable.add(attribute.getName());
+                if (!names.contains(attribute.getName()) && matches(attribute.getName())) {
+                    matched.add(attribute.getName());
+                }
+            }
+        }
+        AttributePath[] paths = new AttributePath[names.size() + matched.size()];
+        int i = 0;
+        for (String name : names) {
+            paths[i++] = AttributePath.of(name, readable);
+        }
+        for (String attributeName : matched) {
+            paths[i++] = new AttributePath(attributeName, attributeName);
+        }
+        expansions.put(className, new Expansion(paths, names.size()));
+    }
+
+    private boolean matches(String attributeName) {
+        for (Pattern pattern : patterns) {
+            if (pattern.matcher(attributeName).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.melessoftware.utils.jmx;
+
+import org.slf4j.Logger;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanException;
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads a batch of attributes from a single MBean in one round trip.
+ * <p/>
+ * {@link MBeanServerConnection#getAttributes(ObjectName, String[])} silently leaves out any attribute that couldn't be
+ * read, so the attributes missing from the batch are read again individually purely to find out why, and the failure
+ * is logged. Only failing attributes pay for the extra round trip.
+ */
+final class AttributeFetcher {
+
+    private AttributeFetcher() {
+    }
+
+    /**
+     * @return the attributes that could be read, in the order they were requested
+     */
+    static List<Attribute> fetch(MBeanServerConnection connection, ObjectName objectName, String[] attributeNames, Logger logger) throws IOException {
+        if (attributeNames.length == 0) {
+            // as when none of an MBean's attributes match a wildcard
+            return Collections.emptyList();
+        }
+        if (attributeNames.length == 1) {
+            // a single attribute costs the same round trip either way, and getAttribute tells us what went wrong
+            Attribute attribute = fetchOne(connection, objectName, attributeNames[0], logger);
+            return attribute == null ? Collections.<Attribute>emptyList() : Collections.singletonList(attribute);
+        }
+
+        AttributeList batch;
+        try {
+            batch = connection.getAttributes(objectName, attributeNames);
+        } catch (InstanceNotFoundException e) {
+            // There is a small race window for this to happen, but it's quite unlikely. The server has just told us that the object exists.
+            logger.debug("MBean {} disappeared", objectName);
+            return Collections.emptyList();
+        } catch (ReflectionException e) {
+            logger.error("{} MBean threw Exception executing getters {}", objectName, e.getTargetException());
+            return Collections.emptyList();
+        }
+
+        Map<String, Attribute> byName = new HashMap<String, Attribute>();
+        for (Attribute attribute : batch.asList()) {
+            byName.put(attribute.getName(), attribute);
+        }
+        List<Attribute> attributes = new ArrayList<Attribute>(attributeNames.length);
+        for (String attributeName : attributeNames) {
+            Attribute attribute = byName.get(attributeName);
+            if (attribute == null) {
+                attribute = fetchOne(connection, objectName, attributeName, logger);
+            }
+            if (attribute != null) {
+                attributes.add(attribute);
+            }
+        }
+        return attributes;
+    }
+
+    private static Attribute fetchOne(MBeanServerConnection connection, ObjectName objectName, String attributeName, Logger logger) throws IOException {
+        try {
+            return new Attribute(attributeName, connection.getAttribute(objectName, attributeName));
+        } catch (MBeanException e) {
+            // wraps exception thrown by mbean's getter
+            logger.error("{} MBean threw Exception executing getter for {} {}", new Object[]{objectName, attributeName, e.getTargetException()});
+        } catch (AttributeNotFoundException e) {
+            // attribute not accessible in mbean
+            logger.error("attribute {} was not accessible in {} MBean", attributeName, objectName);
+        } catch (InstanceNotFoundException e) {
+            // mbean doesn't exist on server
+            // There is a small race window for this to happen, but it's quite unlikely. The server has just told us that the object exists.
+            logger.debug("MBean {} disappeared", objectName);
+        } catch (ReflectionException e) {
+            // wraps Exception thrown when trying to invoke getter (javadoc for connection.getAttribute says "invoke setter"???)
+            logger.error("{} MBean threw Exception executing getter for {} {}", new Object[]{objectName, attributeName, e.getTargetException()});
+        }
+        return null;
+    }
+}
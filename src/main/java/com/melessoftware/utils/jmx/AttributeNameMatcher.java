@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.melessoftware.utils.jmx;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Matches the names of samples against attribute names given on the command line, such as the counters given with
+ * {@code -r}.
+ * <p/>
+ * A name may be a wildcard, and matches the parts of a composite or tabular attribute as well as the attribute
+ * itself, so {@code HeapMemoryUsage} matches {@code HeapMemoryUsage.used} and {@code *Count} matches
+ * {@code CollectionCount}.
+ */
+final class AttributeNameMatcher {
+
+    private final Set<String> names = new HashSet<String>();
+    private final List<Pattern> globs = new ArrayList<Pattern>();
+
+    AttributeNameMatcher(Collection<String> names) {
+        for (String name : names) {
+            if (Globs.isGlob(name)) {
+                globs.add(Globs.toRegex(name));
+            } else {
+                this.names.add(name);
+            }
+        }
+    }
+
+    /**
+     * @return whether the sample's name is one of the names, or a part of one of them
+     */
+    boolean matches(String sampleName) {
+        for (int end = sampleName.length(); end > 0; end = sampleName.lastIndexOf('.', end - 1)) {
+            String prefix = sampleName.substring(0, end);
+            if (names.contains(prefix)) {
+                return true;
+            }
+            for (Pattern glob : globs) {
+                if (glob.matcher(prefix).matches()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.melessoftware.utils.jmx;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.Attribute;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import javax.management.openmbean.TabularData;
+import javax.management.openmbean.TabularType;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * An attribute, or a part of one picked out with a dotted path, such as {@code HeapMemoryUsage.used}.
+ * <p/>
+ * The attribute is the whole name when the MBean has an attribute of that name, and otherwise the longest part up to a
+ * dot that it has, as worked out by {@link AttributeExpander} from the MBean's info. Without the info, it's the part
+ * up to the first dot. The rest is followed through the items of {@link CompositeData} and
+ * the rows of {@link TabularData} with a single string index, which is how MXBeans return maps, so
+ * {@code LastGcInfo.memoryUsageAfterGc.Metaspace.used} and {@code SystemProperties.java.version} both work. Item
+ * names and row keys may contain dots themselves, and the longest that leaves a path fitting the rest of the value is
+ * taken.
+ * <p/>
+ * Working out how to follow the path takes only the value's type, so it's done once for each type and path and
+ * shared by every path, which leaves a few lookups to do for each value. Attributes of the same name on different
+ * MBeans, such as the {@code LastGcInfo} of each collector, can have different types, so there can be a few for each
+ * path.
+ */
+final class AttributePath {
+
+    /**
+     * Returned by {@link #select} when the value has nothing at the path.
+     */
+    static final Object MISSING = new Object();
+
+    private static final Logger LOG = LoggerFactory.getLogger(AttributePath.class);
+
+    // marks a path that the type has nothing at
+    private static final Step[] UNRESOLVED = new Step[0];
+    private static final ConcurrentMap<OpenType<?>, ConcurrentMap<String, Step[]>> RESOLUTIONS =
+            new ConcurrentHashMap<OpenType<?>, ConcurrentMap<String, Step[]>>();
+
+    private final String name;
+    private final String attributeName;
+    private final String path;
+
+    /**
+     * Splits the name at the first dot, for when the MBean's attributes aren't known.
+     */
+    AttributePath(String name) {
+        this(name, name.indexOf('.') < 0 ? name : name.substring(0, name.indexOf('.')));
+    }
+
+    /**
+     * @param attributeName the attribute, which is either the whole name or the part of it up to a dot
+     */
+    AttributePath(String name, String attributeName) {
+        this.name = name;
+        this.attributeName = attributeName;
+        this.path = attributeName.length() == name.length() ? null : name.substring(attributeName.length() + 1);
+    }
+
+    static AttributePath[] parse(List<String> names) {
+        AttributePath[] paths = new AttributePath[names.size()];
+        for (int i = 0; i < paths.length; i++) {
+            paths[i] = new AttributePath(names.get(i));
+        }
+        return paths;
+    }
+
+    /**
+     * @return the path to the name, taking the whole name as the attribute if it's one of the MBean's attributes, and
+     * otherwise the longest part of it up to a dot that is
+     */
+    static AttributePath of(String name, Set<String> mbeanAttributeNames) {
+        for (int end = name.length(); end > 0; end = name.lastIndexOf('.', end - 1)) {
+            String attributeName = name.substring(0, end);
+            if (mbeanAttributeNames.contains(attributeName)) {
+                return new AttributePath(name, attributeName);
+            }
+        }
+        // it's not an attribute at all, so leave it to be reported as such when it's read
+        return new AttributePath(name);
+    }
+
+    /**
+     * @return the attributes that have to be read for the paths, each once, in order
+     */
+    static String[] attributeNames(AttributePath[] paths) {
+        Set<String> attributeNames = new LinkedHashSet<String>();
+        for (AttributePath path : paths) {
+            attributeNames.add(path.attributeName);
+        }
+        return attributeNames.toArray(new String[attributeNames.size()]);
+    }
+
+    /**
+     * @return the value of the path's attribute among those read, or {@link #MISSING} if it couldn't be read
+     */
+    Object valueIn(List<Attribute> attributes) {
+        for (Attribute attribute : attributes) {
+            if (attribute.getName().equals(attributeName)) {
+                return select(attribute.getValue());
+            }
+        }
+        return MISSING;
+    }
+
+    /**
+     * @return the part of the attribute's value at the path, or {@link #MISSING} if there's nothing there
+     */
+    Object select(Object value) {
+        if (path == null) {
+            return value;
+        }
+        OpenType<?> type;
+        if (value instanceof CompositeData) {
+            type = ((CompositeData) value).getCompositeType();
+        } else if (value instanceof TabularData) {
+            type = ((TabularData) value).getTabularType();
+        } else {
+            return MISSING;
+        }
+
+        Step[] steps = resolutionOf(type);
+        if (steps == UNRESOLVED) {
+            return MISSING;
+        }
+        Object selected = value;
+        for (Step step : steps) {
+            selected = step.apply(selected);
+            if (selected == MISSING) {
+                break;
+            }
+        }
+        return selected;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    private Step[] resolutionOf(OpenType<?> type) {
+        ConcurrentMap<String, Step[]> byPath = RESOLUTIONS.get(type);
+        if (byPath == null) {
+            byPath = new ConcurrentHashMap<String, Step[]>();
+            ConcurrentMap<String, Step[]> raced = RESOLUTIONS.putIfAbsent(type, byPath);
+            if (raced != null) {
+                byPath = raced;
+            }
+        }
+        Step[] steps = byPath.get(path);
+        if (steps == null) {
+            List<Step> resolved = new ArrayList<Step>();
+            steps = resolve(type, path, resolved) ? resolved.toArray(new Step[resolved.size()]) : UNRESOLVED;
+            // only the first to resolve it warns
+            if (byPath.putIfAbsent(path, steps) == null && steps == UNRESOLVED) {
+                LOG.warn("{} has nothing at {} in {}", new Object[]{attributeName, path, type.getTypeName()});
+            }
+        }
+        return steps;
+    }
+
+    private static boolean resolve(OpenType<?> type, String path, List<Step> steps) {
+        if (type instanceof CompositeType) {
+            CompositeType compositeType = (CompositeType) type;
+            String longest = null;
+            for (String key : compositeType.keySet()) {
+                if ((path.equals(key) || path.startsWith(key + ".")) && (longest == null || key.length() > longest.length())) {
+                    longest = key;
+                }
+            }
+            // only the longest key is tried, so an item whose name is a prefix of a longer one can't be reached past it
+            if (longest == null) {
+                return false;
+            }
+            steps.add(new CompositeStep(longest));
+            return longest.length() == path.length()
+                    || resolve(compositeType.getType(longest), path.substring(longest.length() + 1), steps);
+        }
+        if (type instanceof TabularType) {
+            TabularType tabularType = (TabularType) type;
+            List<String> index = tabularType.getIndexNames();
+            CompositeType rowType = tabularType.getRowType();
+            if (index.size() != 1 || !SimpleType.STRING.equals(rowType.getType(index.get(0)))) {
+                return false;
+            }
+            String valueKey = OpenDataFlattener.singleValueKey(rowType, index);
+            OpenType<?> valueType = valueKey == null ? rowType : rowType.getType(valueKey);
+            if (valueType instanceof CompositeType || valueType instanceof TabularType) {
+                // the end of the path could be inside the value, try the longest key that leaves a path that fits
+                for (int end = path.lastIndexOf('.'); end > 0; end = path.lastIndexOf('.', end - 1)) {
+                    int mark = steps.size();
+                    steps.add(new TabularStep(path.substring(0, end), valueKey));
+                    if (resolve(valueType, path.substring(end + 1), steps)) {
+                        return true;
+                    }
+                    steps.subList(mark, steps.size()).clear();
+                }
+            }
+            steps.add(new TabularStep(path, valueKey));
+            return true;
+        }
+        return false;
+    }
+
+    private interface Step {
+
+        Object apply(Object value);
+    }
+
+    private static final class CompositeStep implements Step {
+
+        private final String key;
+
+        private CompositeStep(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public Object apply(Object value) {
+            if (!(value instanceof CompositeData)) {
+                return MISSING;
+            }
+            CompositeData data = (CompositeData) value;
+            return data.containsKey(key) ? data.get(key) : MISSING;
+        }
+    }
+
+    private static final class TabularStep implements Step {
+
+        private final Object[] index;
+        private final String valueKey;
+
+        private TabularStep(String key, String valueKey) {
+            this.index = new Object[]{key};
+            this.valueKey = valueKey;
+        }
+
+        @Override
+        public Object apply(Object value) {
+            if (!(value instanceof TabularData)) {
+                return MISSING;
+            }
+            CompositeData row = ((TabularData) value).get(index);
+            if (row == null) {
+                return MISSING;
+            }
+            return valueKey == null ? row : row.get(valueKey);
+        }
+    }
+}
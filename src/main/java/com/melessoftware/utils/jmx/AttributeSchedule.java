@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.melessoftware.utils.jmx;
+
+import org.slf4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Polls groups of attributes at different intervals.
+ * <p/>
+ * Attributes are given as {@code name@interval}, such as {@code HeapMemoryUsage@5s}, and those without an interval use
+ * the default. The scheduler ticks at the greatest common divisor of the intervals, and a group is due on the ticks
+ * that fall on a multiple of its interval, so a group polled every minute is read on the minute. All the groups due
+ * on the same tick are read together, with one round trip per MBean.
+ */
+public class AttributeSchedule implements PollingScheduler.Job {
+
+    private static final Pattern INTERVAL = Pattern.compile("(\\d+)(ms|s|m|h)?");
+
+    private final long[] intervals;
+    private final String[][] groups;
+    private final long period;
+
+    private final ObjectNameCache objectNames;
+    private final SampleSink sink;
+    private final Logger logger;
+
+    // one callback for each combination of groups that comes due together
+    private final ConcurrentMap<Long, LogAttributeCallback> callbacks = new ConcurrentHashMap<Long, LogAttributeCallback>();
+
+    public AttributeSchedule(List<String> attributeSpecs, long defaultIntervalMillis, ObjectNameCache objectNames, SampleSink sink, Logger logger) {
+        Map<Long, List<String>> byInterval = groupByInterval(attributeSpecs, defaultIntervalMillis);
+        intervals = new long[byInterval.size()];
+        groups = new String[byInterval.size()][];
+        long gcd = 0;
+        int i = 0;
+        for (Map.Entry<Long, List<String>> entry : byInterval.entrySet()) {
+            intervals[i] = entry.getKey();
+            groups[i] = entry.getValue().toArray(new String[entry.getValue().size()]);
+            gcd = gcd(gcd, entry.getKey());
+            i++;
+        }
+        period = gcd;
+        this.objectNames = objectNames;
+        this.sink = sink;
+        this.logger = logger;
+    }
+
+    /**
+     * @return how often a schedule for these attributes ticks, as returned by {@link #getPeriodMillis()}
+     * @throws IllegalArgumentException if an interval is invalid, or there are too many different ones
+     */
+    public static long periodMillis(List<String> attributeSpecs, long defaultIntervalMillis) {
+        long gcd = 0;
+        for (long interval : groupByInterval(attributeSpecs, defaultIntervalMillis).keySet()) {
+            gcd = gcd(gcd, interval);
+        }
+        return gcd;
+    }
+
+    private static Map<Long, List<String>> groupByInterval(List<String> attributeSpecs, long defaultIntervalMillis) {
+        Map<Long, List<String>> byInterval = new TreeMap<Long, List<String>>();
+        for (String spec : attributeSpecs) {
+            int at = spec.lastIndexOf('@');
+            long interval = at < 0 ? defaultIntervalMillis : parseInterval(spec.substring(at + 1));
+            List<String> group = byInterval.get(interval);
+            if (group == null) {
+                group = new ArrayList<String>();
+                byInterval.put(interval, group);
+            }
+            group.add(attributeName(spec));
+        }
+        if (byInterval.size() > Long.SIZE - 1) {
+            throw new IllegalArgumentException("too many different intervals, at most " + (Long.SIZE - 1) + " are supported");
+        }
+        return byInterval;
+    }
+
+    /**
+     * @return the attribute name from a {@code name@interval} spec
+     */
+    public static String attributeName(String attributeSpec) {
+        int at = attributeSpec.lastIndexOf('@');
+        return at < 0 ? attributeSpec : attributeSpec.substring(0, at);
+    }
+
+    /**
+     * Parses an interval such as {@code 500ms}, {@code 10s}, {@code 5m} or {@code 1h}. A bare number is in milliseconds.
+     */
+    public static long parseInterval(String interval) {
+        Matcher matcher = INTERVAL.matcher(interval.trim());
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("invalid interval: " + interval);
+        }
+        long amount = Long.parseLong(matcher.group(1));
+        String unit = matcher.group(2);
+        long millis;
+        if (unit == null || "ms".equals(unit)) {
+            millis = amount;
+        } else if ("s".equals(unit)) {
+            millis = TimeUnit.SECONDS.toMillis(amount);
+        } else if ("m".equals(unit)) {
+            millis = TimeUnit.MINUTES.toMillis(amount);
+        } else {
+            millis = TimeUnit.HOURS.toMillis(amount);
+        }
+        if (millis <= 0) {
+            throw new IllegalArgumentException("interval must be positive: " + interval);
+        }
+        return millis;
+    }
+
+    /**
+     * @return how often the scheduler has to tick to serve every group
+     */
+    public long getPeriodMillis() {
+        return period;
+    }
+
+    @Override
+    public MBeanServerCallback<?> callbackFor(long tickTime) {
+        long due = 0;
+        for (int i = 0; i < intervals.length; i++) {
+            if (tickTime % intervals[i] == 0) {
+                due |= 1L << i;
+            }
+        }
+        if (due == 0) {
+            return null;
+        }
+        LogAttributeCallback callback = callbacks.get(due);
+        if (callback == null) {
+            List<String> attributeNames = new ArrayList<String>();
+            for (int i = 0; i < groups.length; i++) {
+                if ((due & (1L << i)) != 0) {
+                    for (String attributeName : groups[i]) {
+                        attributeNames.add(attributeName);
+                    }
+                }
+            }
+            callback = new LogAttributeCallback(objectNames, attributeNames, sink, logger);
+            LogAttributeCallback existing = callbacks.putIfAbsent(due, callback);
+            if (existing != null) {
+                callback = existing;
+            }
+        }
+        return callback;
+    }
+
+    private static long gcd(long a, long b) {
+        while (b != 0) {
+            long t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+}
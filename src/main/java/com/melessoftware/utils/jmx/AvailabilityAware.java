@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.melessoftware.utils.jmx;
+
+/**
+ * Implemented by templates that can tell when a callback would fail without reaching the server, such as
+ * {@link PersistentJmxTemplate} while its circuit is open, so that callers like {@link PollingScheduler} can skip the
+ * work cheaply.
+ * <p/>
+ * This is separate from {@link JmxTemplate} so that templates written against it needn't change. Templates that don't
+ * implement it are always tried.
+ */
+public interface AvailabilityAware {
+
+    /**
+     * @return false if a callback would fail without reaching the server, so it isn't worth trying
+     */
+    boolean isAvailable();
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.melessoftware.utils.jmx;
+
+/**
+ * Reads back a block written by {@link BlockEncoder}.
+ */
+final class BlockDecoder {
+
+    private final byte[] bytes;
+    private final int count;
+    private int bitPosition;
+    private int read;
+
+    private long timestamp;
+    private long delta;
+    private long value;
+    private int leading;
+    private int trailing;
+
+    BlockDecoder(byte[] bytes, int count, long firstTimestamp) {
+        this.bytes = bytes;
+        this.count = count;
+        this.timestamp = firstTimestamp;
+    }
+
+    /**
+     * @return false if there are no more samples in the block
+     */
+    boolean next() {
+        if (read == count) {
+            return false;
+        }
+        if (read == 0) {
+            value = read(64);
+        } else {
+            delta += readDeltaOfDelta();
+            timestamp += delta;
+            if (read(1) == 1) {
+                if (read(1) == 1) {
+                    leading = (int) read(5);
+                    int significant = (int) read(6) + 1;
+                    trailing = 64 - leading - significant;
+                }
+                value ^= read(64 - leading - trailing) << trailing;
+            }
+        }
+        read++;
+        return true;
+    }
+
+    long getTimestamp() {
+        return timestamp;
+    }
+
+    double getValue() {
+        return Double.longBitsToDouble(value);
+    }
+
+    private long readDeltaOfDelta() {
+        if (read(1) == 0) {
+            return 0;
+        }
+        if (read(1) == 0) {
+            return read(7) - 63;
+        }
+        if (read(1) == 0) {
+            return read(9) - 255;
+        }
+        if (read(1) == 0) {
+            return read(12) - 2047;
+        }
+        return read(64);
+    }
+
+    private long read(int length) {
+        long result = 0;
+        while (length > 0) {
+            int available = 8 - (bitPosition & 7);
+            int taken = Math.min(available, length);
+            int chunk = (bytes[bitPosition >>> 3] >>> (available - taken)) & ((1 << taken) - 1);
+            result = (result << taken) | chunk;
+            bitPosition += taken;
+            length -= taken;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.melessoftware.utils.jmx;
+
+import java.util.Arrays;
+
+/**
+ * Compresses a block of samples from one series, in the style of Facebook's Gorilla.
+ * <p/>
+ * Each timestamp is stored as the change in the gap since the previous sample, which is usually zero or close to it
+ * when polling on a fixed period, so most take one to nine bits. Each value is XORed with the previous one, and only
+ * the bits that differ are stored, so a value that hasn't changed takes one bit.
+ */
+final class BlockEncoder {
+
+    private byte[] bytes = new byte[64];
+    private int bitLength;
+    private int count;
+
+    private long firstTimestamp;
+    private long previousTimestamp;
+    private long previousDelta;
+    private long previousValue;
+    private int previousLeading;
+    private int previousTrailing;
+
+    void add(long timestamp, double value) {
+        long bits = Double.doubleToLongBits(value);
+        if (count == 0) {
+            firstTimestamp = timestamp;
+            previousDelta = 0;
+            previousLeading = -1;
+            write(bits, 64);
+        } else {
+            long delta = timestamp - previousTimestamp;
+            writeDeltaOfDelta(delta - previousDelta);
+            previousDelta = delta;
+            writeXor(bits ^ previousValue);
+        }
+        previousTimestamp = timestamp;
+        previousValue = bits;
+        count++;
+    }
+
+    private void writeDeltaOfDelta(long deltaOfDelta) {
+        if (deltaOfDelta == 0) {
+            write(0, 1);
+        } else if (deltaOfDelta >= -63 && deltaOfDelta <= 64) {
+            write(0x2, 2);
+            write(deltaOfDelta + 63, 7);
+        } else if (deltaOfDelta >= -255 && deltaOfDelta <= 256) {
+            write(0x6, 3);
+            write(deltaOfDelta + 255, 9);
+        } else if (deltaOfDelta >= -2047 && deltaOfDelta <= 2048) {
+            write(0xe, 4);
+            write(deltaOfDelta + 2047, 12);
+        } else {
+            write(0xf, 4);
+            write(deltaOfDelta, 64);
+        }
+    }
+
+    private void writeXor(long xor) {
+        if (xor == 0) {
+            write(0, 1);
+            return;
+        }
+        int leading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+        int trailing = Long.numberOfTrailingZeros(xor);
+        if (previousLeading >= 0 && leading >= previousLeading && trailing >= previousTrailing) {
+            // fits in the same window of meaningful bits as last time
+            write(0x2, 2);
+            write(xor >>> previousTrailing, 64 - previousLeading - previousTrailing);
+        } else {
+            int significant = 64 - leading - trailing;
+            write(0x3, 2);
+            write(leading, 5);
+            write(significant - 1, 6);
+            write(xor >>> trailing, significant);
+            previousLeading = leading;
+            previousTrailing = trailing;
+        }
+    }
+
+    /**
+     * Writes the lowest {@code length} bits of {@code value}, most significant first.
+     */
+    private void write(long value, int length) {
+        int needed = (bitLength + length + 7) >>> 3;
+        if (needed > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(needed, bytes.length * 2));
+        }
+        while (length > 0) {
+            int free = 8 - (bitLength & 7);
+            int taken = Math.min(free, length);
+            int chunk = (int) (value >>> (length - taken)) & ((1 << taken) - 1);
+            bytes[bitLength >>> 3] |= chunk << (free - taken);
+            bitLength += taken;
+            length -= taken;
+        }
+    }
+
+    void reset() {
+        Arrays.fill(bytes, 0, getByteLength(), (byte) 0);
+        bitLength = 0;
+        count = 0;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    long getFirstTimestamp() {
+        return firstTimestamp;
+    }
+
+    byte[] getBytes() {
+        return bytes;
+    }
+
+    int getByteLength() {
+        return (bitLength + 7) >>> 3;
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.melessoftware.utils.jmx;
+
+import javax.management.MBeanServerConnection;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs callbacks with another template's connections, sharing the results of identical reads between all the
+ * callbacks it runs, as described by {@link CachingMBeanServerConnection}.
+ * <p/>
+ * Sharing only helps when callbacks run at the same time or close together, so this is most useful in front of a
+ * template that can be shared between threads, such as a {@link PooledJmxTemplate}. Each callback is given a new
+ * connection object, so callbacks that keep state per connection, such as {@link ObjectNameCache}, will start afresh
+ * every time. {@link JmxDaemon} puts one in front of each server's template when given {@code -c}.
+ */
+public class CachingJmxTemplate implements JmxTemplate, AvailabilityAware {
+
+    private final JmxTemplate template;
+    private final ResultCache cache;
+
+    public CachingJmxTemplate(JmxTemplate template, long timeToLive, TimeUnit unit) {
+        this.template = template;
+        this.cache = new ResultCache(timeToLive, unit);
+    }
+
+    public ResultCache getCache() {
+        return cache;
+    }
+
+    @Override
+    public <T> T runWithConnection(final MBeanServerCallback<T> callback) throws IOException {
+        return template.runWithConnection(new MBeanServerCallback<T>() {
+            @Override
+            public T execute(MBeanServerConnection connection) throws IOException {
+                return callback.execute(new CachingMBeanServerConnection(connection, cache));
+            }
+        });
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return !(template instanceof AvailabilityAware) || ((AvailabilityAware) template).isAvailable();
+    }
+
+    @Override
+    public void close() throws IOException {
+        cache.clear();
+        template.close();
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.melessoftware.utils.jmx;
+
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.InstanceNotFoundException;
+import javax.management.IntrospectionException;
+import javax.management.JMException;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectInstance;
+import javax.management.ObjectName;
+import javax.management.QueryExp;
+import javax.management.ReflectionException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shares the results of identical reads made close together, using a {@link ResultCache}.
+ * <p/>
+ * Attribute reads, queries and MBean info are shared, and everything else goes straight through. Queries are only
+ * identical if they use the same {@link QueryExp} object, as query expressions don't define equality. The sets
+ * returned by queries can't be modified, as they may be shared with other callers.
+ * <p/>
+ * Connections to the same server can share one cache, for templates that use a different connection for each
+ * callback.
+ */
+public class CachingMBeanServerConnection extends DelegatingMBeanServerConnection {
+
+    private static final int GET_ATTRIBUTE = 0;
+    private static final int GET_ATTRIBUTES = 1;
+    private static final int QUERY_NAMES = 2;
+    private static final int QUERY_MBEANS = 3;
+    private static final int GET_MBEAN_INFO = 4;
+
+    private final MBeanServerConnection connection;
+    private final ResultCache cache;
+
+    public CachingMBeanServerConnection(MBeanServerConnection connection, long timeToLive, TimeUnit unit) {
+        this(connection, new ResultCache(timeToLive, unit));
+    }
+
+    /**
+     * @param cache shared with other connections to the same server
+     */
+    public CachingMBeanServerConnection(MBeanServerConnection connection, ResultCache cache) {
+        this.connection = connection;
+        this.cache = cache;
+    }
+
+    public ResultCache getCache() {
+        return cache;
+    }
+
+    @Override
+    protected MBeanServerConnection delegate() {
+        return connection;
+    }
+
+    @Override
+    public Object getAttribute(final ObjectName name, final String attribute) throws MBeanException, AttributeNotFoundException, InstanceNotFoundException, ReflectionException, IOException {
+        try {
+            return cache.get(new Key(GET_ATTRIBUTE, name, attribute), new ResultCache.Call() {
+                @Override
+                public Object call() throws JMException, IOException {
+                    return connection.getAttribute(name, attribute);
+                }
+            });
+        } catch (JMException jme) {
+            rethrowIf(jme, MBeanException.class);
+            rethrowIf(jme, AttributeNotFoundException.class);
+            rethrowIf(jme, InstanceNotFoundException.class);
+            rethrowIf(jme, ReflectionException.class);
+            throw unexpected(jme);
+        }
+    }
+
+    @Override
+    public AttributeList getAttributes(final ObjectName name, final String[] attributes) throws InstanceNotFoundException, ReflectionException, IOException {
+        AttributeList shared;
+        try {
+            // copied, as the caller's free to change the array once the call returns but the key is kept
+            shared = (AttributeList) cache.get(new Key(GET_ATTRIBUTES, name, Arrays.asList(attributes.clone())), new ResultCache.Call() {
+                @Override
+                public Object call() throws JMException, IOException {
+                    return connection.getAttributes(name, attributes);
+                }
+            });
+        } catch (JMException jme) {
+            rethrowIf(jme, InstanceNotFoundException.class);
+            rethrowIf(jme, ReflectionException.class);
+            throw unexpected(jme);
+        }
+        // an AttributeList can't be made unmodifiable, so each caller gets their own
+        return new AttributeList(shared);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Set<ObjectName> queryNames(final ObjectName name, final QueryExp query) throws IOException {
+        try {
+            return (Set<ObjectName>) cache.get(new Key(QUERY_NAMES, name, query), new ResultCache.Call() {
+                @Override
+                public Object call() throws IOException {
+                    return Collections.unmodifiableSet(connection.queryNames(name, query));
+                }
+            });
+        } catch (JMException jme) {
+            throw unexpected(jme);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Set<ObjectInstance> queryMBeans(final ObjectName name, final QueryExp query) throws IOException {
+        try {
+            return (Set<ObjectInstance>) cache.get(new Key(QUERY_MBEANS, name, query), new ResultCache.Call() {
+                @Override
+                public Object call() throws IOException {
+                    return Collections.unmodifiableSet(connection.queryMBeans(name, query));
+                }
+            });
+        } catch (JMException jme) {
+            throw unexpected(jme);
+        }
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo(final ObjectName name) throws InstanceNotFoundException, IntrospectionException, ReflectionException, IOException {
+        try {
+            return (MBeanInfo) cache.get(new Key(GET_MBEAN_INFO, name, null), new ResultCache.Call() {
+                @Override
+                public Object call() throws JMException, IOException {
+                    return connection.getMBeanInfo(name);
+                }
+            });
+        } catch (JMException jme) {
+            rethrowIf(jme, InstanceNotFoundException.class);
+            rethrowIf(jme, IntrospectionException.class);
+            rethrowIf(jme, ReflectionException.class);
+            throw unexpected(jme);
+        }
+    }
+
+    private static <E extends JMException> void rethrowIf(JMException jme, Class<E> type) throws E {
+        if (type.isInstance(jme)) {
+            throw type.cast(jme);
+        }
+    }
+
+    private static IllegalStateException unexpected(JMException jme) {
+        // the calls only throw what they declare, so this can't happen
+        return new IllegalStateException("unexpected exception from the server", jme);
+    }
+
+    private static final class Key {
+
+        private final int call;
+        private final ObjectName name;
+        private final Object argument;
+
+        private Key(int call, ObjectName name, Object argument) {
+            this.call = call;
+            this.name = name;
+            this.argument = argument;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            if (call != other.call || !(name == null ? other.name == null : name.equals(other.name))) {
+                return false;
+            }
+            if (argument instanceof QueryExp) {
+                return argument == other.argument;
+            }
+            return argument == null ? other.argument == null : argument.equals(other.argument);
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = 31 * call + (name == null ? 0 : name.hashCode());
+            if (argument instanceof QueryExp) {
+                return 31 * hash + System.identityHashCode(argument);
+            }
+            return 31 * hash + (argument == null ? 0 : argument.hashCode());
+        }
+    }
+}
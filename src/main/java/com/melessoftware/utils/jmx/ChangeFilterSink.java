@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.melessoftware.utils.jmx;
+
+import javax.management.ObjectName;
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Passes on only the samples whose value has changed since it was last passed on, along with each unchanged value
+ * again once every heartbeat, so that a reader can tell a value that hasn't changed from one that's no longer there.
+ * <p/>
+ * The last value passed on for each series is kept in arrays indexed by the series' id. Numbers are kept as the bits
+ * of a long or double, so comparing them doesn't touch the boxed value. Anything else is kept along with its hash
+ * code, and only compared with {@code equals} when the hash codes match. Arrays are compared by their contents.
+ * <p/>
+ * Flushing passes straight on to the next sink if that can be flushed.
+ */
+public class ChangeFilterSink implements SampleSink, Flushable {
+
+    private static final byte EMPTY = 0;
+    private static final byte WHOLE = 1;
+    private static final byte FRACTIONAL = 2;
+    private static final byte OBJECT = 3;
+    private static final byte NULL = 4;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final long heartbeatMillis;
+    private final SampleSink next;
+    private final SeriesIndex series = new SeriesIndex();
+
+    private byte[] kinds = new byte[INITIAL_CAPACITY];
+    private long[] bits = new long[INITIAL_CAPACITY];
+    private int[] hashes = new int[INITIAL_CAPACITY];
+    private Object[] objects = new Object[INITIAL_CAPACITY];
+    private long[] emitted = new long[INITIAL_CAPACITY];
+    private long suppressed;
+
+    /**
+     * @param heartbeatMillis how long an unchanged value goes before it's passed on again, or 0 to pass on only changes
+     */
+    public ChangeFilterSink(long heartbeatMillis, SampleSink next) {
+        if (heartbeatMillis < 0) {
+            throw new IllegalArgumentException("heartbeat can't be negative, was " + heartbeatMillis);
+        }
+        this.heartbeatMillis = heartbeatMillis;
+        this.next = next;
+    }
+
+    @Override
+    public void sample(long timestamp, ObjectName objectName, String attributeName, Object value) throws IOException {
+        synchronized (this) {
+            int id = series.idOf(objectName, attributeName);
+            ensureCapacity(id);
+            if (!remember(id, value) && (heartbeatMillis == 0 || timestamp - emitted[id] < heartbeatMillis)) {
+                suppressed++;
+                return;
+            }
+            emitted[id] = timestamp;
+        }
+        next.sample(timestamp, objectName, attributeName, value);
+    }
+
+    /**
+     * @return how many samples have been left out because they hadn't changed
+     */
+    public synchronized long getSuppressedCount() {
+        return suppressed;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (next instanceof Flushable) {
+            ((Flushable) next).flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        next.close();
+    }
+
+    /**
+     * Keeps the value as the last one passed on for the series.
+     *
+     * @return whether it differs from the one before, which it always does for the first sample of a series
+     */
+    private boolean remember(int id, Object value) {
+        byte kind;
+        long valueBits = 0;
+        int hash = 0;
+        if (value == null) {
+            kind = NULL;
+        } else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            kind = WHOLE;
+            valueBits = ((Number) value).longValue();
+        } else if (value instanceof Double || value instanceof Float) {
+            kind = FRACTIONAL;
+            valueBits = Double.doubleToLongBits(((Number) value).doubleValue());
+        } else {
+            kind = OBJECT;
+            hash = value.getClass().isArray() ? Arrays.deepHashCode(new Object[]{value}) : value.hashCode();
+        }
+
+        boolean changed;
+        if (kind != kinds[id]) {
+            changed = true;
+        } else if (kind == OBJECT) {
+            changed = hash != hashes[id] || !equal(value, objects[id]);
+        } else {
+            changed = valueBits != bits[id];
+        }
+        if (changed) {
+            kinds[id] = kind;
+            bits[id] = valueBits;
+            hashes[id] = hash;
+            objects[id] = kind == OBJECT ? value : null;
+        }
+        return changed;
+    }
+
+    private static boolean equal(Object value, Object previous) {
+        if (value.getClass().isArray()) {
+            return Arrays.deepEquals(new Object[]{value}, new Object[]{previous});
+        }
+        return value.equals(previous);
+    }
+
+    private void ensureCapacity(int id) {
+        if (id < kinds.length) {
+            return;
+        }
+        int capacity = Math.max(kinds.length * 2, id + 1);
+        kinds = Arrays.copyOf(kinds, capacity);
+        bits = Arrays.copyOf(bits, capacity);
+        hashes = Arrays.copyOf(hashes, capacity);
+        objects = Arrays.copyOf(objects, capacity);
+        emitted = Arrays.copyOf(emitted, capacity);
+    }
+}
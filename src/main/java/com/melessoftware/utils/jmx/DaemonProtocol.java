@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.melessoftware.utils.jmx;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * What {@link JmxDaemon} and {@link JmxClient} say to each other over a socket on the loopback interface.
+ * <p/>
+ * The daemon writes its port and a random token to a {@link PrivateFiles private file}, so only the user who started
+ * it can send it requests. A request is a line each for the token, the command, the number of arguments, and then
+ * each argument. The response is what the command writes to standard output, as it's written, in chunks each
+ * preceded by its length as a four byte int, then an empty chunk, a line with the exit status, and what the command
+ * wrote to standard error. Framing the output by length lets it hold any character, NULs included. The output is UTF-8
+ * throughout.
+ * <p/>
+ * The client deliberately uses nothing but this and {@link PrivateFiles}, so that it starts quickly.
+ */
+final class DaemonProtocol {
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    static final String LIST = "list";
+    /** a list of just the values */
+    static final String GET = "get";
+    static final String STOP = "stop";
+
+    static final int EXIT_STATUS_INVALID_ARGS = -1;
+    static final int EXIT_STATUS_COMMUNICATION = 1;
+
+    private static final String STATE_FILE_NAME = "daemon";
+
+    private DaemonProtocol() {
+    }
+
+    static File stateFile() {
+        return PrivateFiles.tempFile(STATE_FILE_NAME);
+    }
+
+    /**
+     * @return the daemon's port and token, or null if there's no daemon
+     */
+    static String[] readState() throws IOException {
+        String state = PrivateFiles.readFirstLine(stateFile());
+        if (state == null) {
+            return null;
+        }
+        String[] portAndToken = state.split(" ");
+        if (portAndToken.length != 2) {
+            throw new IOException("can't make sense of " + stateFile());
+        }
+        return portAndToken;
+    }
+
+    /**
+     * Writes the command's output as length-prefixed chunks, without closing the stream underneath, which carries the
+     * rest of the response.
+     */
+    static final class ChunkedOutputStream extends OutputStream {
+
+        private final DataOutputStream out;
+        private final byte[] chunk;
+        private int length;
+
+        ChunkedOutputStream(OutputStream out, int chunkSize) {
+            this.out = new DataOutputStream(out);
+            this.chunk = new byte[chunkSize];
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (length == chunk.length) {
+                writeChunk();
+            }
+            chunk[length++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int count) throws IOException {
+            while (count > 0) {
+                if (length == chunk.length) {
+                    writeChunk();
+                }
+                int copied = Math.min(count, chunk.length - length);
+                System.arraycopy(bytes, offset, chunk, length, copied);
+                length += copied;
+                offset += copied;
+                count -= copied;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            writeChunk();
+            out.flush();
+        }
+
+        /**
+         * Writes what's left and the empty chunk that ends the output.
+         */
+        void finish() throws IOException {
+            writeChunk();
+            out.writeInt(0);
+            out.flush();
+        }
+
+        private void writeChunk() throws IOException {
+            if (length > 0) {
+                out.writeInt(length);
+                out.write(chunk, 0, length);
+                length = 0;
+            }
+        }
+    }
+}
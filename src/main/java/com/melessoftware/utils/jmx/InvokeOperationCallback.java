@@ -0,0 +1,316 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.melessoftware.utils.jmx;
+
+import org.slf4j.Logger;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.JMRuntimeException;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectInstance;
+import javax.management.ObjectName;
+import javax.management.QueryExp;
+import javax.management.RuntimeErrorException;
+import javax.management.RuntimeMBeanException;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+/**
+ * Invokes an operation on every MBean matching a pattern, writing a line for each with how it went.
+ * <p/>
+ * The operation is picked out from the {@link MBeanInfo} of each class of MBean, read once per class, by its name
+ * and the number of arguments, as described by {@link Operation}. An MBean whose class has no such operation is
+ * reported as failed without being invoked.
+ * <p/>
+ * With a parallelism greater than one, several MBeans are invoked at once. A rate limiter, if given, spaces out the
+ * invocations so the server isn't overwhelmed. Like {@link ListObjectsCallback}, invocations run a bounded window ahead
+ * of the report, and the lines are written in the order of the names, each as soon as it and every line before it
+ * are ready. In a dry run the operation is looked up but not invoked.
+ * <p/>
+ * Each line is the object name, then {@code ok} followed by the result, {@code failed} followed by why, or
+ * {@code dry-run} followed by the invocation that would have been made, separated like the lister's columns. A prefix,
+ * such as the target's name, can be put at the start of every line, and each line is appended in one go, so several
+ * callbacks can share the output.
+ */
+public class InvokeOperationCallback implements MBeanServerCallback<Void> {
+
+    private static final int INVOKE_AHEAD_PER_THREAD = 4;
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+    private static final String SEPARATOR = "\t ";
+    private static final Pattern LINE_BREAKS = Pattern.compile("\\s*[\\r\\n]+\\s*");
+
+    private final ObjectName objectNamePattern;
+    private final QueryExp query;
+    private final String operationName;
+    private final List<String> arguments;
+    private final int parallelism;
+    private final RateLimiter rateLimiter;
+    private final boolean dryRun;
+    private final String prefix;
+    private final Appendable out;
+    private final Logger logger;
+
+    private int succeeded;
+    private int failed;
+
+    /**
+     * @param query       filters the objects on the server, or null to invoke all those matching the pattern
+     * @param rateLimiter paces the invocations, or null to invoke as fast as the parallelism allows
+     * @param prefix      put at the start of every line, or null for none
+     */
+    public InvokeOperationCallback(ObjectName objectNamePattern, QueryExp query, String operationName, List<String> arguments,
+                                   int parallelism, RateLimiter rateLimiter, boolean dryRun, String prefix, Appendable out, Logger logger) {
+        this.objectNamePattern = objectNamePattern;
+        this.query = query;
+        this.operationName = operationName;
+        this.arguments = new ArrayList<String>(arguments);
+        this.parallelism = parallelism;
+        this.rateLimiter = rateLimiter;
+        this.dryRun = dryRun;
+        this.prefix = prefix;
+        this.out = out;
+        this.logger = logger;
+    }
+
+    /**
+     * @return how many MBeans the operation succeeded on, or would be invoked on in a dry run
+     */
+    public synchronized int getSucceededCount() {
+        return succeeded;
+    }
+
+    /**
+     * @return how many MBeans the operation failed on, or couldn't be invoked on
+     */
+    public synchronized int getFailedCount() {
+        return failed;
+    }
+
+    @Override
+    public Void execute(final MBeanServerConnection connection) throws IOException {
+        List<ObjectInstance> instances = new ArrayList<ObjectInstance>(connection.queryMBeans(objectNamePattern, query));
+        Collections.sort(instances, new Comparator<ObjectInstance>() {
+            @Override
+            public int compare(ObjectInstance a, ObjectInstance b) {
+                return a.getObjectName().compareTo(b.getObjectName());
+            }
+        });
+        final Map<String, Object> operations = resolve(connection, instances);
+
+        ExecutorService invokers = parallelism <= 1 ? null : Executors.newFixedThreadPool(parallelism);
+        try {
+            int window = Math.max(parallelism, 1) * INVOKE_AHEAD_PER_THREAD;
+            Deque<Future<String>> pending = new ArrayDeque<Future<String>>(window);
+            for (final ObjectInstance instance : instances) {
+                Callable<String> invocation = new Callable<String>() {
+                    @Override
+                    public String call() throws IOException {
+                        ObjectName objectName = instance.getObjectName();
+                        return objectName + SEPARATOR + invoke(connection, objectName, operations.get(instance.getClassName()));
+                    }
+                };
+                if (invokers == null) {
+                    writeLine(call(invocation));
+                    continue;
+                }
+                if (pending.size() == window) {
+                    writeLine(await(pending.removeFirst()));
+                }
+                pending.addLast(invokers.submit(invocation));
+            }
+            while (!pending.isEmpty()) {
+                writeLine(await(pending.removeFirst()));
+            }
+        } finally {
+            if (invokers != null) {
+                invokers.shutdownNow();
+            }
+        }
+        flush();
+        return null;
+    }
+
+    /**
+     * @return the operation for each class of MBean, or why it couldn't be found
+     */
+    private Map<String, Object> resolve(MBeanServerConnection connection, List<ObjectInstance> instances) throws IOException {
+        Map<String, Object> operations = new HashMap<String, Object>();
+        for (ObjectInstance instance : instances) {
+            String className = instance.getClassName();
+            if (operations.containsKey(className)) {
+                continue;
+            }
+            try {
+                operations.put(className, Operation.resolve(connection.getMBeanInfo(instance.getObjectName()), operationName, arguments));
+            } catch (IllegalArgumentException iae) {
+                operations.put(className, iae.getMessage());
+            } catch (InstanceNotFoundException infe) {
+                // gone already, so try the next one of the class
+                logger.debug("MBean {} disappeared", instance.getObjectName());
+            } catch (JMException jme) {
+                operations.put(className, "couldn't get the MBean info: " + jme);
+            }
+        }
+        return operations;
+    }
+
+    /**
+     * @return the status and detail columns of the line for the MBean
+     */
+    private String invoke(MBeanServerConnection connection, ObjectName objectName, Object resolved) throws IOException {
+        if (!(resolved instanceof Operation)) {
+            return failed(resolved == null ? "disappeared" : (String) resolved);
+        }
+        Operation operation = (Operation) resolved;
+        if (dryRun) {
+            return succeeded("dry-run" + SEPARATOR + operation);
+        }
+        if (rateLimiter != null) {
+            rateLimiter.acquire();
+        }
+        try {
+            Object result = operation.invoke(connection, objectName);
+            return succeeded("ok" + (operation.isVoid() ? "" : SEPARATOR + format(result)));
+        } catch (MBeanException me) {
+            return failed("threw " + me.getTargetException());
+        } catch (RuntimeMBeanException rme) {
+            // thrown by the operation rather than the connection, so it's just this MBean that failed
+            return failed("threw " + rme.getTargetException());
+        } catch (RuntimeErrorException ree) {
+            return failed("threw " + ree.getTargetError());
+        } catch (JMRuntimeException jmre) {
+            return failed(String.valueOf(jmre));
+        } catch (InstanceNotFoundException infe) {
+            return failed("disappeared");
+        } catch (JMException jme) {
+            return failed(String.valueOf(jme));
+        }
+    }
+
+    private synchronized String succeeded(String columns) {
+        succeeded++;
+        return columns;
+    }
+
+    private synchronized String failed(String why) {
+        failed++;
+        return "failed" + SEPARATOR + oneLine(why);
+    }
+
+    /**
+     * @return the text with its line breaks, such as those in the messages of nested exceptions, replaced by spaces,
+     *         so that the report has one line per object
+     */
+    static String oneLine(String text) {
+        return LINE_BREAKS.matcher(text).replaceAll(" ");
+    }
+
+    private static String format(Object result) throws IOException {
+        if (result instanceof CompositeData || result instanceof TabularData) {
+            final StringBuilder flattened = new StringBuilder();
+            OpenDataFlattener.flatten("", result, new OpenDataFlattener.Visitor() {
+                @Override
+                public void leaf(String name, Object value) {
+                    if (flattened.length() > 0) {
+                        flattened.append(' ');
+                    }
+                    flattened.append(name).append('=').append(value);
+                }
+            });
+            return flattened.toString();
+        }
+        if (result != null && result.getClass().isArray()) {
+            String formatted = Arrays.deepToString(new Object[]{result});
+            return formatted.substring(1, formatted.length() - 1);
+        }
+        return String.valueOf(result);
+    }
+
+    private void writeLine(String columns) throws IOException {
+        StringBuilder line = new StringBuilder();
+        if (prefix != null) {
+            line.append(prefix).append(SEPARATOR);
+        }
+        line.append(columns).append(LINE_SEPARATOR);
+        synchronized (out) {
+            out.append(line);
+        }
+    }
+
+    private void flush() throws IOException {
+        if (out instanceof Flushable) {
+            synchronized (out) {
+                ((Flushable) out).flush();
+            }
+        }
+    }
+
+    private static String call(Callable<String> invocation) throws IOException {
+        try {
+            return invocation.call();
+        } catch (IOException ioe) {
+            throw ioe;
+        } catch (Exception e) {
+            throw new IllegalStateException("unexpected exception invoking", e);
+        }
+    }
+
+    private String await(Future<String> future) throws IOException {
+        if (!future.isDone()) {
+            flush();
+        }
+        try {
+            return future.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for invocations");
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw (Error) cause;
+        }
+    }
+}
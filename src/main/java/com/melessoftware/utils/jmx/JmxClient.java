@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.melessoftware.utils.jmx;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+
+/**
+ * Sends a {@code list} or {@code get} to {@link JmxDaemon}, with the same options as {@link JmxLister}, and writes out
+ * the result as it arrives. A {@code get} is a list of just the attribute values, one object to a line. A
+ * {@code stop} stops the daemon.
+ * <p/>
+ * When there's no daemon running the list is done by the client itself, connecting afresh just as the lister does.
+ */
+public class JmxClient {
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Give a command, list, get or stop, followed by the options for it, as for list");
+            System.exit(DaemonProtocol.EXIT_STATUS_INVALID_ARGS);
+        }
+        String command = args[0];
+        String[] commandArgs = Arrays.copyOfRange(args, 1, args.length);
+        if (!DaemonProtocol.LIST.equals(command) && !DaemonProtocol.GET.equals(command) && !DaemonProtocol.STOP.equals(command)) {
+            System.err.printf("Unknown command: %s%n", command);
+            System.exit(DaemonProtocol.EXIT_STATUS_INVALID_ARGS);
+        }
+
+        Socket socket;
+        try {
+            socket = connect();
+        } catch (IOException ioe) {
+            // such as the daemon's state file being somewhere others could have tampered with it
+            System.err.printf("Couldn't reach the daemon: %s%n", ioe.getMessage());
+            System.exit(DaemonProtocol.EXIT_STATUS_COMMUNICATION);
+            return;
+        }
+        int status;
+        if (socket != null) {
+            try {
+                status = request(socket, command, commandArgs);
+            } finally {
+                socket.close();
+            }
+        } else if (DaemonProtocol.STOP.equals(command)) {
+            System.err.println("No daemon is running");
+            status = DaemonProtocol.EXIT_STATUS_COMMUNICATION;
+        } else {
+            status = runHere(command, commandArgs);
+        }
+        System.exit(status);
+    }
+
+    /**
+     * @return a socket connected to the daemon, or null if it isn't running
+     */
+    private static Socket connect() throws IOException {
+        String[] portAndToken = DaemonProtocol.readState();
+        if (portAndToken == null) {
+            return null;
+        }
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress("127.0.0.1", Integer.parseInt(portAndToken[0])), CONNECT_TIMEOUT_MILLIS);
+        } catch (ConnectException ce) {
+            // it went without tidying up after itself
+            socket.close();
+            return null;
+        } catch (SocketTimeoutException ste) {
+            // the same, with the port since taken by something that doesn't answer
+            socket.close();
+            return null;
+        }
+        Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), DaemonProtocol.UTF_8));
+        out.write(portAndToken[1]);
+        out.write('\n');
+        out.flush();
+        return socket;
+    }
+
+    private static int request(Socket socket, String command, String[] args) throws IOException {
+        Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), DaemonProtocol.UTF_8));
+        out.write(command);
+        out.write('\n');
+        out.write(Integer.toString(args.length));
+        out.write('\n');
+        for (String arg : args) {
+            if (arg.indexOf('\n') >= 0 || arg.indexOf('\r') >= 0) {
+                System.err.println("Options can't have line breaks in them");
+                return DaemonProtocol.EXIT_STATUS_INVALID_ARGS;
+            }
+            out.write(arg);
+            out.write('\n');
+        }
+        out.flush();
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try {
+            int length;
+            while ((length = in.readInt()) != 0) {
+                if (length < 0) {
+                    throw new IOException("bad chunk length " + length);
+                }
+                while (length > 0) {
+                    int read = Math.min(length, buffer.length);
+                    in.readFully(buffer, 0, read);
+                    System.out.write(buffer, 0, read);
+                    length -= read;
+                }
+            }
+        } catch (EOFException eofe) {
+            System.out.flush();
+            System.err.println("The daemon stopped before finishing");
+            return DaemonProtocol.EXIT_STATUS_COMMUNICATION;
+        }
+        System.out.flush();
+        return trailer(buffer, in);
+    }
+
+    /**
+     * Reads the exit status, and copies what the command wrote to standard error.
+     */
+    private static int trailer(byte[] buffer, InputStream in) throws IOException {
+        ByteArrayOutputStream rest = new ByteArrayOutputStream();
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            rest.write(buffer, 0, read);
+        }
+        String trailer = rest.toString(DaemonProtocol.UTF_8.name());
+        int newline = trailer.indexOf('\n');
+        if (newline < 0) {
+            System.err.println("The daemon stopped before finishing");
+            return DaemonProtocol.EXIT_STATUS_COMMUNICATION;
+        }
+        System.err.print(trailer.substring(newline + 1));
+        System.err.flush();
+        try {
+            return Integer.parseInt(trailer.substring(0, newline));
+        } catch (NumberFormatException nfe) {
+            System.err.printf("The daemon sent a bad exit status: %s%n", trailer.substring(0, newline));
+            return DaemonProtocol.EXIT_STATUS_COMMUNICATION;
+        }
+    }
+
+    private static int runHere(String command, String[] args) throws IOException {
+        if (DaemonProtocol.GET.equals(command)) {
+            String[] valuesOnly = new String[args.length + 1];
+            valuesOnly[0] = "-v";
+            System.arraycopy(args, 0, valuesOnly, 1, args.length);
+            args = valuesOnly;
+        }
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out), BUFFER_SIZE);
+        return JmxLister.run(args, JmxLister.NEW_CONNECTIONS, out, System.err);
+    }
+}
@@ -0,0 +1,530 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.melessoftware.utils.jmx;
+
+import joptsimple.OptionException;
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+import joptsimple.OptionSpec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+import javax.management.remote.JMXServiceURL;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps connections open to the servers it's asked about, and lists their objects for {@link JmxClient}, so that
+ * scripts calling the client many times a minute don't pay for starting a JVM and connecting each time.
+ * <p/>
+ * There's a {@link PersistentJmxTemplate} for each JMX service url, shared by all the requests for it, and closed
+ * once it has been idle for a while. JVMs given by pid are attached to once, and then reached through the same
+ * templates as urls, until connecting to the address found fails, when they're attached to again. Requests are taken
+ * on a port on the loopback interface, as described by {@link DaemonProtocol}.
+ * <p/>
+ * Output is written to the client as it's listed, from inside the template's callback. A client that goes away, such
+ * as one piped into {@code head}, makes those writes fail, which the template would take to be the server failing
+ * and close the connection shared with every other request. So failures writing to the client are carried past the
+ * template unchecked, and only turned back into an {@link IOException} once out of it.
+ * <p/>
+ * With {@code -c}, the requests for a server also share the results of identical reads through a
+ * {@link CachingJmxTemplate}, so that scripts asking for the same attributes at the same time make one read between
+ * them. Each server's {@link ResultCache} is registered with the platform MBean server to show how well it's doing.
+ */
+public class JmxDaemon implements JmxLister.Templates {
+
+    private static final int EXIT_STATUS_INVALID_ARGS = -1;
+
+    private static final int DEFAULT_IDLE_MINUTES = 10;
+    private static final int DEFAULT_MAX_BACKOFF_SECONDS = 5;
+    private static final int BACKLOG = 50;
+    private static final int REQUEST_TIMEOUT_MILLIS = 10000;
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+    private static final int TOKEN_BYTES = 16;
+    private static final String CACHE_OBJECT_NAME = "com.melessoftware.utils.jmx:type=ResultCache,target=";
+
+    private static final Logger LOG = LoggerFactory.getLogger(JmxDaemon.class);
+
+    public static void main(String[] args) throws IOException {
+        OptionParser parser = new OptionParser();
+        OptionSpec<Integer> portSpec = parser.accepts("P", "take requests on this port on the loopback interface, or 0 for any free port").withRequiredArg().ofType(Integer.class).defaultsTo(0);
+        OptionSpec<Integer> idleSpec = parser.accepts("x", "close connections that haven't been used for this many minutes").withRequiredArg().ofType(Integer.class).defaultsTo(DEFAULT_IDLE_MINUTES);
+        OptionSpec<Integer> maxBackoffSpec = parser.accepts("b", "longest wait in seconds between attempts to reconnect to a server that is down, during which requests for it fail straight away").withRequiredArg().ofType(Integer.class).defaultsTo(DEFAULT_MAX_BACKOFF_SECONDS);
+        OptionSpec<Integer> cacheSpec = parser.accepts("c", "share the results of identical reads of a server made by different requests within this many milliseconds of each other, or 0 to share only reads made at the same time").withRequiredArg().ofType(Integer.class);
+
+        OptionSet options = null;
+        try {
+            options = parser.parse(args);
+        } catch (OptionException oe) {
+            System.err.println(oe.getMessage());
+            parser.printHelpOn(System.err);
+            System.exit(EXIT_STATUS_INVALID_ARGS);
+        }
+
+        ReconnectBackoff backoff = ReconnectBackoff.DEFAULT.withMaxDelay(options.valueOf(maxBackoffSpec), TimeUnit.SECONDS);
+        JmxDaemon daemon = new JmxDaemon(backoff, options.valueOf(idleSpec), TimeUnit.MINUTES);
+        if (options.has(cacheSpec)) {
+            if (options.valueOf(cacheSpec) < 0) {
+                System.err.printf("Invalid cache time: %d%n", options.valueOf(cacheSpec));
+                System.exit(EXIT_STATUS_INVALID_ARGS);
+            }
+            daemon.setCacheTimeToLive(options.valueOf(cacheSpec), TimeUnit.MILLISECONDS);
+        }
+        daemon.serve(options.valueOf(portSpec));
+    }
+
+    private final ReconnectBackoff backoff;
+    private final long idleMillis;
+    // negative when results aren't shared
+    private long cacheMillis = -1;
+
+    private final ConcurrentMap<String, Warm> templates = new ConcurrentHashMap<String, Warm>();
+    private final ConcurrentMap<Integer, JMXServiceURL> pidAddresses = new ConcurrentHashMap<Integer, JMXServiceURL>();
+
+    private final String token;
+    private final ExecutorService requests = Executors.newCachedThreadPool(new DaemonThreadFactory("daemon-request"));
+    private final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("daemon-sweeper"));
+
+    public JmxDaemon(ReconnectBackoff backoff, long idleTimeout, TimeUnit unit) {
+        this.backoff = backoff;
+        this.idleMillis = unit.toMillis(idleTimeout);
+        byte[] bytes = new byte[TOKEN_BYTES];
+        new SecureRandom().nextBytes(bytes);
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b & 0xff));
+        }
+        token = hex.toString();
+    }
+
+    /**
+     * Shares the results of identical reads made by different requests, as described by {@link ResultCache}. Only
+     * templates made after this is called share results.
+     */
+    public void setCacheTimeToLive(long timeToLive, TimeUnit unit) {
+        cacheMillis = unit.toMillis(timeToLive);
+    }
+
+    /**
+     * Takes requests until stopped, writing the port and token to the state file once it's listening.
+     */
+    public void serve(int port) throws IOException {
+        final ServerSocket server = new ServerSocket(port, BACKLOG, InetAddress.getByName("127.0.0.1"));
+        final File stateFile = DaemonProtocol.stateFile();
+        PrivateFiles.write(stateFile, server.getLocalPort() + " " + token);
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                shutdown(server, stateFile);
+            }
+        });
+        long sweepMillis = Math.max(idleMillis / 2, 1);
+        sweeper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                closeIdle();
+            }
+        }, sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+        LOG.info("taking requests on 127.0.0.1:{}", server.getLocalPort());
+
+        while (true) {
+            final Socket socket;
+            try {
+                socket = server.accept();
+            } catch (SocketException se) {
+                // closed because we're shutting down
+                LOG.debug("stopped taking requests", se);
+                return;
+            }
+            requests.execute(new Runnable() {
+                @Override
+                public void run() {
+                    handle(socket);
+                }
+            });
+        }
+    }
+
+    @Override
+    public JmxTemplate forUrl(JMXServiceURL url) {
+        String key = url.toString();
+        Warm warm = templates.get(key);
+        if (warm == null) {
+            PersistentJmxTemplate template = new PersistentJmxTemplate(url, backoff);
+            CachingJmxTemplate caching = cacheMillis < 0 ? null : new CachingJmxTemplate(template, cacheMillis, TimeUnit.MILLISECONDS);
+            warm = new Warm(template, caching);
+            Warm existing = templates.putIfAbsent(key, warm);
+            if (existing != null) {
+                warm = existing;
+            } else if (caching != null) {
+                publish(caching.getCache(), key);
+            }
+        }
+        return warm;
+    }
+
+    private static void publish(ResultCache cache, String url) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(cache, new ObjectName(CACHE_OBJECT_NAME + ObjectName.quote(url)));
+        } catch (JMException jme) {
+            LOG.warn("couldn't register the result cache for " + url, jme);
+        }
+    }
+
+    private static void unpublish(Warm warm, String url) {
+        if (warm.runner == warm.template) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(CACHE_OBJECT_NAME + ObjectName.quote(url)));
+        } catch (JMException jme) {
+            LOG.debug("couldn't unregister the result cache for " + url, jme);
+        }
+    }
+
+    @Override
+    public JmxTemplate forPid(int pid) throws IOException {
+        JMXServiceURL address = pidAddresses.get(pid);
+        if (address != null) {
+            Warm warm = templates.get(address.toString());
+            if (warm != null && warm.template.getState() == PersistentJmxTemplate.CircuitState.OPEN) {
+                // the JVM may have restarted its agent on another port, or the pid be another process's by now
+                LOG.debug("couldn't connect to process {} at {}, attaching again", pid, address);
+                pidAddresses.remove(pid, address);
+                if (templates.remove(address.toString(), warm)) {
+                    warm.retire();
+                    unpublish(warm, address.toString());
+                }
+                address = null;
+            }
+        }
+        if (address == null) {
+            // attach afresh rather than trust a cached address, as the template would retry a stale one for ever
+            address = LocalAttach.connectorAddress(pid, false);
+            pidAddresses.put(pid, address);
+        }
+        return forUrl(address);
+    }
+
+    private void handle(Socket socket) {
+        try {
+            try {
+                socket.setSoTimeout(REQUEST_TIMEOUT_MILLIS);
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), DaemonProtocol.UTF_8));
+                String requestToken = in.readLine();
+                if (requestToken == null || !MessageDigest.isEqual(token.getBytes(DaemonProtocol.UTF_8), requestToken.getBytes(DaemonProtocol.UTF_8))) {
+                    LOG.warn("ignored a request without the right token");
+                    return;
+                }
+                String command = in.readLine();
+                String[] args = readArgs(in);
+                if (args == null) {
+                    LOG.warn("refused a request without a valid count of arguments");
+                    endResponse(socket, new DaemonProtocol.ChunkedOutputStream(socket.getOutputStream(), OUTPUT_BUFFER_SIZE),
+                            DaemonProtocol.EXIT_STATUS_INVALID_ARGS, String.format("The daemon couldn't read the arguments sent%n"));
+                    return;
+                }
+                socket.setSoTimeout(0);
+                respond(command, args, socket);
+            } finally {
+                socket.close();
+            }
+        } catch (IOException ioe) {
+            LOG.debug("exception handling request", ioe);
+        } catch (ClientGoneException cge) {
+            LOG.debug("client went away", cge.getCause());
+        } catch (RuntimeException re) {
+            LOG.error("exception handling request", re);
+        }
+    }
+
+    /**
+     * @return the arguments, or null if the count isn't a number or the request ends before them
+     */
+    private static String[] readArgs(BufferedReader in) throws IOException {
+        String count = in.readLine();
+        String[] args;
+        try {
+            args = new String[Integer.parseInt(count)];
+        } catch (NumberFormatException nfe) {
+            return null;
+        } catch (NegativeArraySizeException nase) {
+            return null;
+        }
+        for (int i = 0; i < args.length; i++) {
+            args[i] = in.readLine();
+            if (args[i] == null) {
+                return null;
+            }
+        }
+        return args;
+    }
+
+    private void respond(String command, String[] args, Socket socket) throws IOException {
+        DaemonProtocol.ChunkedOutputStream chunks = new DaemonProtocol.ChunkedOutputStream(socket.getOutputStream(), OUTPUT_BUFFER_SIZE);
+        Writer out = new ClientWriter(new OutputStreamWriter(chunks, DaemonProtocol.UTF_8));
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        PrintStream err = new PrintStream(errors, true, DaemonProtocol.UTF_8.name());
+        int status;
+        if (DaemonProtocol.LIST.equals(command)) {
+            status = list(args, out, err);
+        } else if (DaemonProtocol.GET.equals(command)) {
+            String[] valuesOnly = new String[args.length + 1];
+            valuesOnly[0] = "-v";
+            System.arraycopy(args, 0, valuesOnly, 1, args.length);
+            status = list(valuesOnly, out, err);
+        } else if (DaemonProtocol.STOP.equals(command)) {
+            LOG.info("stopping as requested");
+            status = 0;
+        } else {
+            err.printf("Unknown command: %s%n", command);
+            status = DaemonProtocol.EXIT_STATUS_INVALID_ARGS;
+        }
+        err.flush();
+        out.flush();
+        endResponse(socket, chunks, status, errors.toString(DaemonProtocol.UTF_8.name()));
+        if (DaemonProtocol.STOP.equals(command)) {
+            // the shutdown hook closes everything
+            System.exit(0);
+        }
+    }
+
+    private static void endResponse(Socket socket, DaemonProtocol.ChunkedOutputStream chunks, int status, String errors) throws IOException {
+        chunks.finish();
+        Writer trailer = new OutputStreamWriter(socket.getOutputStream(), DaemonProtocol.UTF_8);
+        trailer.write(status + "\n");
+        trailer.write(errors);
+        trailer.flush();
+    }
+
+    private int list(String[] args, Writer out, PrintStream err) throws IOException {
+        try {
+            return JmxLister.run(args, this, out, err);
+        } catch (ClientGoneException cge) {
+            throw cge.getCause();
+        }
+    }
+
+    private void closeIdle() {
+        long cutoff = System.currentTimeMillis() - idleMillis;
+        for (Warm warm : templates.values()) {
+            warm.closeIfIdleSince(cutoff);
+        }
+    }
+
+    private void shutdown(ServerSocket server, File stateFile) {
+        try {
+            server.close();
+        } catch (IOException ioe) {
+            LOG.trace("exception closing server socket", ioe);
+        }
+        try {
+            // unless another daemon has since taken over
+            String state = PrivateFiles.readFirstLine(stateFile);
+            if (state != null && state.endsWith(" " + token) && !stateFile.delete()) {
+                LOG.warn("couldn't delete {}", stateFile);
+            }
+        } catch (IOException ioe) {
+            LOG.debug("couldn't read " + stateFile, ioe);
+        }
+        sweeper.shutdown();
+        requests.shutdown();
+        for (Warm warm : templates.values()) {
+            warm.closeIfIdleSince(Long.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Shares a template between requests, keeping track of when it was last used so it can be closed when idle. A
+     * closed template connects again when it's next used.
+     */
+    private static final class Warm implements JmxTemplate {
+
+        private final PersistentJmxTemplate template;
+        // the template to run callbacks with, which is the persistent one unless results are shared
+        private final JmxTemplate runner;
+        private int users;
+        private long lastUsed = System.currentTimeMillis();
+        private boolean open;
+        // no longer handed out, so closed as soon as the requests still using it are done
+        private boolean retired;
+
+        private Warm(PersistentJmxTemplate template, CachingJmxTemplate caching) {
+            this.template = template;
+            this.runner = caching == null ? template : caching;
+        }
+
+        @Override
+        public <T> T runWithConnection(final MBeanServerCallback<T> callback) throws IOException {
+            synchronized (this) {
+                users++;
+                open = true;
+            }
+            final ClientGoneException[] gone = new ClientGoneException[1];
+            try {
+                T result = runner.runWithConnection(new MBeanServerCallback<T>() {
+                    @Override
+                    public T execute(MBeanServerConnection connection) throws IOException {
+                        try {
+                            return callback.execute(connection);
+                        } catch (ClientGoneException cge) {
+                            // kept from the template, which would close the connection for it
+                            gone[0] = cge;
+                            return null;
+                        }
+                    }
+                });
+                if (gone[0] != null) {
+                    throw gone[0].getCause();
+                }
+                return result;
+            } finally {
+                synchronized (this) {
+                    users--;
+                    lastUsed = System.currentTimeMillis();
+                    if (retired) {
+                        closeIfIdleSince(Long.MAX_VALUE);
+                    }
+                }
+            }
+        }
+
+        private synchronized void retire() {
+            retired = true;
+            closeIfIdleSince(Long.MAX_VALUE);
+        }
+
+        private synchronized void closeIfIdleSince(long cutoff) {
+            if (!open || users > 0 || lastUsed > cutoff) {
+                return;
+            }
+            try {
+                template.close();
+            } catch (IOException ioe) {
+                LOG.debug("exception closing idle connection", ioe);
+            }
+            open = false;
+        }
+
+        @Override
+        public void close() {
+            // shared with other requests, and closed when idle
+        }
+    }
+
+    /**
+     * Passes writes on to the client, failing with a {@link ClientGoneException} rather than an {@link IOException}.
+     */
+    private static final class ClientWriter extends Writer {
+
+        private final Writer out;
+
+        private ClientWriter(Writer out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(char[] chars, int offset, int length) {
+            try {
+                out.write(chars, offset, length);
+            } catch (IOException ioe) {
+                throw new ClientGoneException(ioe);
+            }
+        }
+
+        @Override
+        public void write(String string, int offset, int length) {
+            try {
+                out.write(string, offset, length);
+            } catch (IOException ioe) {
+                throw new ClientGoneException(ioe);
+            }
+        }
+
+        @Override
+        public void flush() {
+            try {
+                out.flush();
+            } catch (IOException ioe) {
+                throw new ClientGoneException(ioe);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    private static final class ClientGoneException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        private ClientGoneException(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        private DaemonThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, prefix + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.melessoftware.utils.jmx;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import joptsimple.OptionException;
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+import joptsimple.OptionSpec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.QueryExp;
+import javax.management.remote.JMXServiceURL;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves the attributes of the matching MBeans over HTTP in the OpenMetrics text format, for scraping by Prometheus
+ * and the like.
+ * <p/>
+ * Nothing is polled in the background. A scrape that finds the last snapshot too old fetches a new one, and any other
+ * scrapes arriving meanwhile wait for that fetch rather than starting their own, so however many scrapers there are
+ * the target is read at most once per maximum age.
+ */
+public class JmxExporter {
+
+    private static final int EXIT_STATUS_INVALID_ARGS = -1;
+
+    private static final int DEFAULT_PORT = 9404;
+    private static final String DEFAULT_HOST = "localhost";
+    private static final String METRICS_PATH = "/metrics";
+    private static final int HTTP_THREADS = 4;
+
+    private static final String RMI_RESPONSE_TIMEOUT_PROPERTY = "sun.rmi.transport.tcp.responseTimeout";
+    private static final String DEFAULT_RMI_RESPONSE_TIMEOUT = "30000";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final Logger LOG = LoggerFactory.getLogger(JmxExporter.class);
+
+    public static void main(String[] args) throws IOException {
+        OptionParser parser = new OptionParser();
+        OptionSpec<String> urlSpec = parser.accepts("u", "JMX service url").withRequiredArg().required();
+        OptionSpec<String> objectNameSpec = parser.accepts("n", "find objects with names matching this pattern").withRequiredArg().required();
+        OptionSpec<String> querySpec = parser.accepts("q", "only export objects passing this filter, evaluated by the server, such as \"ActiveCount > 0 and Name like 'http*'\"").withRequiredArg();
+        OptionSpec<String> counterNameSpec = parser.accepts("r", "export this attribute, or every attribute matching a wildcard such as *Count, as a counter (may be repeated or comma separated)").withRequiredArg().withValuesSeparatedBy(',');
+        OptionSpec<String> attributeNameSpec = parser.accepts("a", "export this attribute as a gauge (may be repeated or comma separated), or every attribute matching a wildcard such as * or *Count").requiredUnless("r").withRequiredArg().withValuesSeparatedBy(',');
+        OptionSpec<String> hostSpec = parser.accepts("H", "listen on this address").withRequiredArg().defaultsTo(DEFAULT_HOST);
+        OptionSpec<Integer> portSpec = parser.accepts("p", "listen on this port").withRequiredArg().ofType(Integer.class).defaultsTo(DEFAULT_PORT);
+        OptionSpec<String> maxAgeSpec = parser.accepts("i", "serve scrapes from a snapshot up to this old before fetching a new one, such as 500ms or 10s").withRequiredArg().defaultsTo("1s");
+
+        OptionSet options = null;
+        try {
+            options = parser.parse(args);
+        } catch (OptionException oe) {
+            System.err.println(oe.getMessage());
+            parser.printHelpOn(System.err);
+            System.exit(EXIT_STATUS_INVALID_ARGS);
+        }
+
+        List<String> counterNames = options.valuesOf(counterNameSpec);
+        List<String> attributeNames = new ArrayList<String>(options.valuesOf(attributeNameSpec));
+        attributeNames.addAll(counterNames);
+
+        QueryExp query = null;
+        long maxAge;
+        ObjectName objectNamePattern;
+        try {
+            if (options.has(querySpec)) {
+                query = QueryParser.parse(options.valueOf(querySpec));
+            }
+            maxAge = AttributeSchedule.parseInterval(options.valueOf(maxAgeSpec));
+            objectNamePattern = new ObjectName(options.valueOf(objectNameSpec));
+        } catch (IllegalArgumentException iae) {
+            System.err.println(iae.getMessage());
+            System.exit(EXIT_STATUS_INVALID_ARGS);
+            return;
+        } catch (MalformedObjectNameException mone) {
+            System.err.printf("Invalid object name: %s%n", options.valueOf(objectNameSpec));
+            System.exit(EXIT_STATUS_INVALID_ARGS);
+            return;
+        }
+
+        if (System.getProperty(RMI_RESPONSE_TIMEOUT_PROPERTY) == null) {
+            // without a response timeout a hung target would hold up every scrape from then on
+            System.setProperty(RMI_RESPONSE_TIMEOUT_PROPERTY, DEFAULT_RMI_RESPONSE_TIMEOUT);
+        }
+
+        // only ever used by one fetch at a time, as the coalescer runs them one after another
+        final JmxTemplate template = new PersistentJmxTemplate(new JMXServiceURL(options.valueOf(urlSpec)));
+        OpenMetricsSink sink = new OpenMetricsSink(counterNames);
+        LogAttributeCallback callback = new LogAttributeCallback(new ObjectNameCache(objectNamePattern, query), attributeNames, sink, LOG);
+        RefreshCoalescer coalescer = new RefreshCoalescer(template, callback, maxAge);
+
+        InetSocketAddress address = new InetSocketAddress(options.valueOf(hostSpec), options.valueOf(portSpec));
+        final HttpServer server = HttpServer.create(address, 0);
+        final ExecutorService handlers = Executors.newFixedThreadPool(HTTP_THREADS);
+        server.createContext(METRICS_PATH, new ScrapeHandler(coalescer, sink));
+        server.setExecutor(handlers);
+        server.start();
+        LOG.info("serving metrics on http://{}:{}{}", new Object[]{address.getHostString(), server.getAddress().getPort(), METRICS_PATH});
+
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                server.stop(0);
+                handlers.shutdown();
+                try {
+                    template.close();
+                } catch (IOException ioe) {
+                    // we're shutting down anyway. Don't worry about it
+                    LOG.trace("exception disconnecting client", ioe);
+                }
+            }
+        });
+    }
+
+    private static class ScrapeHandler implements HttpHandler {
+
+        private final RefreshCoalescer coalescer;
+        private final OpenMetricsSink sink;
+
+        private ScrapeHandler(RefreshCoalescer coalescer, OpenMetricsSink sink) {
+            this.coalescer = coalescer;
+            this.sink = sink;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                String method = exchange.getRequestMethod();
+                if (!"GET".equals(method) && !"HEAD".equals(method)) {
+                    exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+                    send(exchange, 405, "text/plain; charset=utf-8", "Only GET and HEAD are supported\n".getBytes(UTF_8));
+                    return;
+                }
+                byte[] snapshot;
+                try {
+                    coalescer.refreshIfStale();
+                    snapshot = sink.getSnapshot();
+                } catch (IOException ioe) {
+                    LOG.debug("couldn't fetch metrics for scrape", ioe);
+                    send(exchange, 503, "text/plain; charset=utf-8", ("Couldn't read the target: " + ioe.getMessage() + "\n").getBytes(UTF_8));
+                    return;
+                } catch (RuntimeException re) {
+                    // such as an MBean's getter throwing, which would otherwise leave the scraper with no response
+                    LOG.warn("scrape failed", re);
+                    send(exchange, 500, "text/plain; charset=utf-8", ("Scrape failed: " + re + "\n").getBytes(UTF_8));
+                    return;
+                }
+                send(exchange, 200, OpenMetricsSink.CONTENT_TYPE, snapshot);
+            } finally {
+                exchange.close();
+            }
+        }
+
+        private static void send(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+            exchange.getResponseHeaders().set("Content-Type", contentType);
+            if ("HEAD".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(status, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(status, body.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(body);
+        }
+    }
+}
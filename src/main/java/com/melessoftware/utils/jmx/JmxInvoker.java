@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.melessoftware.utils.jmx;
+
+import joptsimple.OptionException;
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+import joptsimple.OptionSpec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.QueryExp;
+import javax.management.remote.JMXServiceURL;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Invokes an operation on every object matching a pattern, on one target or on every target in a file.
+ * <p/>
+ * Each target is connected to once, and several targets are worked on at once. A line is written for every object as
+ * its invocation completes, prefixed by the target's name when there's more than one, and a target that can't be
+ * reached gets a line saying so. The exit status tells whether everything succeeded.
+ */
+public class JmxInvoker {
+
+    private static final int EXIT_STATUS_INVALID_ARGS = -1;
+    private static final int EXIT_STATUS_COMMUNICATION = 1;
+    private static final int EXIT_STATUS_FAILED = 2;
+
+    private static final int DEFAULT_PARALLELISM = 4;
+    private static final double DEFAULT_RATE = 20;
+    private static final int DEFAULT_THREADS = 8;
+
+    private static final String RMI_RESPONSE_TIMEOUT_PROPERTY = "sun.rmi.transport.tcp.responseTimeout";
+    private static final String DEFAULT_RMI_RESPONSE_TIMEOUT = "30000";
+
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
+    private static final Logger LOG = LoggerFactory.getLogger(JmxInvoker.class);
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        OptionParser parser = new OptionParser();
+        OptionSpec<File> targetsSpec = parser.accepts("f", "invoke on every target listed in this file, one JMX service url and optional name per line").withRequiredArg().ofType(File.class);
+        OptionSpec<Integer> pidSpec = parser.accepts("p", "invoke on the JVM with this pid on this host, through its local management agent, which is started if need be").withRequiredArg().ofType(Integer.class);
+        OptionSpec<String> urlSpec = parser.accepts("u", "JMX service url").requiredUnless("f", "p").withRequiredArg();
+        OptionSpec<String> objectNameSpec = parser.accepts("n", "invoke on the objects with names matching this pattern").withRequiredArg().required();
+        OptionSpec<String> querySpec = parser.accepts("q", "only invoke on objects passing this filter, evaluated by the server, such as \"ActiveCount > 0\"").withRequiredArg();
+        OptionSpec<String> operationSpec = parser.accepts("o", "the operation to invoke, whose arguments follow the options").withRequiredArg().required();
+        OptionSpec<Integer> parallelismSpec = parser.accepts("P", "invoke on up to this many objects at once on each target").withRequiredArg().ofType(Integer.class).defaultsTo(DEFAULT_PARALLELISM);
+        OptionSpec<Double> rateSpec = parser.accepts("R", "start at most this many invocations a second on each target, or 0 for no limit").withRequiredArg().ofType(Double.class).defaultsTo(DEFAULT_RATE);
+        OptionSpec<Integer> threadsSpec = parser.accepts("t", "work on up to this many targets at once").withRequiredArg().ofType(Integer.class).defaultsTo(DEFAULT_THREADS);
+        OptionSpec<Void> dryRunSpec = parser.accepts("d", "show what would be invoked, without invoking anything");
+
+        OptionSet options;
+        try {
+            options = parser.parse(args);
+        } catch (OptionException oe) {
+            System.err.println(oe.getMessage());
+            parser.printHelpOn(System.err);
+            System.exit(EXIT_STATUS_INVALID_ARGS);
+            return;
+        }
+
+        if ((options.has(targetsSpec) ? 1 : 0) + (options.has(urlSpec) ? 1 : 0) + (options.has(pidSpec) ? 1 : 0) > 1) {
+            System.err.println("Give only one of a targets file, a JMX service url or a pid");
+            System.exit(EXIT_STATUS_INVALID_ARGS);
+        }
+        if (options.valueOf(parallelismSpec) < 1 || options.valueOf(threadsSpec) < 1) {
+            System.err.println("Parallelism and threads must be at least 1");
+            System.exit(EXIT_STATUS_INVALID_ARGS);
+        }
+        double rate = options.valueOf(rateSpec);
+        if (rate < 0) {
+            System.err.println("Rate can't be negative");
+            System.exit(EXIT_STATUS_INVALID_ARGS);
+        }
+
+        String objectNamePattern = options.valueOf(objectNameSpec);
+        ObjectName pattern;
+        try {
+            pattern = new ObjectName(objectNamePattern);
+        } catch (MalformedObjectNameException mone) {
+            System.err.printf("Invalid ObjectName pattern: %s, %s%n", objectNamePattern, mone.getMessage());
+            System.exit(EXIT_STATUS_INVALID_ARGS);
+            return;
+        }
+        QueryExp query = null;
+        if (options.has(querySpec)) {
+            try {
+                query = QueryParser.parse(options.valueOf(querySpec));
+            } catch (IllegalArgumentException iae) {
+                System.err.println(iae.getMessage());
+                System.exit(EXIT_STATUS_INVALID_ARGS);
+            }
+        }
+        List<String> arguments = new ArrayList<String>();
+        for (Object argument : options.nonOptionArguments()) {
+            arguments.add(String.valueOf(argument));
+        }
+
+        List<Target> targets;
+        boolean prefixed = false;
+        if (options.has(targetsSpec)) {
+            File targetsFile = options.valueOf(targetsSpec);
+            targets = Target.load(targetsFile);
+            if (targets.isEmpty()) {
+                System.err.printf("No targets in %s%n", targetsFile);
+                System.exit(EXIT_STATUS_INVALID_ARGS);
+            }
+            prefixed = true;
+            if (System.getProperty(RMI_RESPONSE_TIMEOUT_PROPERTY) == null) {
+                // without a response timeout a hung target would hold on to its thread forever
+                System.setProperty(RMI_RESPONSE_TIMEOUT_PROPERTY, DEFAULT_RMI_RESPONSE_TIMEOUT);
+            }
+        } else if (options.has(pidSpec)) {
+            targets = Collections.singletonList(new Target("process " + options.valueOf(pidSpec), null));
+        } else {
+            String url = options.valueOf(urlSpec);
+            try {
+                targets = Collections.singletonList(new Target(url, new JMXServiceURL(url)));
+            } catch (MalformedURLException mue) {
+                System.err.printf("Invalid JMX URL: %s, %s%n", url, mue.getMessage());
+                System.exit(EXIT_STATUS_INVALID_ARGS);
+                return;
+            }
+        }
+
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out), OUTPUT_BUFFER_SIZE);
+        List<Invocation> invocations = new ArrayList<Invocation>();
+        for (Target target : targets) {
+            JmxTemplate template = options.has(pidSpec) ? new LocalJmxTemplate(options.valueOf(pidSpec)) : new SimpleJmxTemplate(target.getUrl());
+            InvokeOperationCallback callback = new InvokeOperationCallback(pattern, query, options.valueOf(operationSpec), arguments,
+                    options.valueOf(parallelismSpec), rate == 0 ? null : new RateLimiter(rate), options.has(dryRunSpec),
+                    prefixed ? target.getName() : null, out, LOG);
+            invocations.add(new Invocation(target.getName(), template, callback, prefixed, out));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(options.valueOf(threadsSpec), invocations.size()));
+        for (Invocation invocation : invocations) {
+            executor.execute(invocation);
+        }
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        out.flush();
+
+        int succeeded = 0;
+        int failed = 0;
+        int unreachable = 0;
+        for (Invocation invocation : invocations) {
+            succeeded += invocation.callback.getSucceededCount();
+            failed += invocation.callback.getFailedCount();
+            if (invocation.failure != null) {
+                unreachable++;
+                if (!prefixed) {
+                    System.err.printf("Failure communicating with %s: %s%n", invocation.name, invocation.failure);
+                }
+            }
+        }
+        System.err.printf("%s %d, failed %d%s%n", options.has(dryRunSpec) ? "would invoke" : "succeeded", succeeded, failed,
+                unreachable == 0 ? "" : String.format(", couldn't finish %d of %d targets", unreachable, invocations.size()));
+        if (unreachable > 0) {
+            System.exit(EXIT_STATUS_COMMUNICATION);
+        }
+        if (failed > 0) {
+            System.exit(EXIT_STATUS_FAILED);
+        }
+    }
+
+    private static class Invocation implements Runnable {
+
+        private final String name;
+        private final JmxTemplate template;
+        private final InvokeOperationCallback callback;
+        private final boolean reported;
+        private final Writer out;
+
+        private volatile String failure;
+
+        private Invocation(String name, JmxTemplate template, InvokeOperationCallback callback, boolean reported, Writer out) {
+            this.name = name;
+            this.template = template;
+            this.callback = callback;
+            this.reported = reported;
+            this.out = out;
+        }
+
+        @Override
+        public void run() {
+            try {
+                template.runWithConnection(callback);
+            } catch (IOException ioe) {
+                LOG.debug("exception invoking on " + name, ioe);
+                failure = InvokeOperationCallback.oneLine(ioe.getMessage() == null ? ioe.toString() : ioe.getMessage());
+                if (reported) {
+                    // in the report, so it's clear which targets are missing from it
+                    try {
+                        synchronized (out) {
+                            out.append(name).append("\t unreachable\t ").append(failure).append(System.getProperty("line.separator"));
+                        }
+                    } catch (IOException e) {
+                        LOG.trace("exception writing output", e);
+                    }
+                }
+            } catch (RuntimeException re) {
+                LOG.error("exception invoking on " + name, re);
+                failure = re.toString();
+            } finally {
+                try {
+                    template.close();
+                } catch (IOException ioe) {
+                    LOG.debug("exception closing connection to " + name, ioe);
+                }
+            }
+        }
+    }
+}
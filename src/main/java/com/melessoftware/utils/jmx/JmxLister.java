@@ -27,92 +27,220 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.QueryExp;
 import javax.management.remote.JMXServiceURL;
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
 import java.net.MalformedURLException;
+import java.util.Collections;
+import java.util.List;
 
 public class JmxLister {
 
     private static final int EXIT_STATUS_INVALID_ARGS = -1;
     private static final int EXIT_STATUS_COMMUNICATION = 1;
 
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
     private static final Logger LOG = LoggerFactory.getLogger(JmxLister.class);
 
+    /**
+     * Where the lister gets its connections from, so that {@link JmxDaemon} can lend it ones it keeps open.
+     */
+    public interface Templates {
+
+        JmxTemplate forUrl(JMXServiceURL url) throws IOException;
+
+        /**
+         * @return a template for the JVM with this pid on this host
+         */
+        JmxTemplate forPid(int pid) throws IOException;
+    }
+
+    /**
+     * Connects afresh for each listing.
+     */
+    public static final Templates NEW_CONNECTIONS = new Templates() {
+        @Override
+        public JmxTemplate forUrl(JMXServiceURL url) {
+            return new SimpleJmxTemplate(url);
+        }
+
+        @Override
+        public JmxTemplate forPid(int pid) {
+            return new LocalJmxTemplate(pid);
+        }
+    };
+
     public static void main(String[] args) throws IOException {
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out), OUTPUT_BUFFER_SIZE);
+        int status = run(args, NEW_CONNECTIONS, out, System.err);
+        if (status != 0) {
+            System.exit(status);
+        }
+    }
 
+    /**
+     * Lists as the command line asks, without exiting.
+     *
+     * @return the exit status
+     */
+    public static int run(String[] args, Templates templates, Writer out, PrintStream err) throws IOException {
         OptionParser parser = new OptionParser();
-        OptionSpec<String> urlSpec = parser.accepts("u", "JMX service url").withRequiredArg().required();
+        OptionSpec<Integer> pidSpec = parser.accepts("p", "list the objects of the JVM with this pid on this host, through its local management agent, which is started if need be").withRequiredArg().ofType(Integer.class);
+        OptionSpec<String> urlSpec = parser.accepts("u", "JMX service url").requiredUnless("p").withRequiredArg();
         OptionSpec<String> objectNameSpec = parser.accepts("n", "find objects with names matching this pattern").withRequiredArg().defaultsTo("*:*");
-        OptionSpec<String> attributeNameSpec = parser.accepts("a", "show the value of this attribute").withRequiredArg();
-
-        OptionSet options = null;
+        OptionSpec<String> attributeNameSpec = parser.accepts("a", "show the value of this attribute (may be repeated or comma separated), or of every attribute matching a wildcard such as * or *Count").withRequiredArg().withValuesSeparatedBy(',');
+        OptionSpec<Void> valuesOnlySpec = parser.accepts("v", "write only the attribute values, without the object names");
+        OptionSpec<Integer> parallelismSpec = parser.accepts("P", "read the attributes of up to this many objects at once").withRequiredArg().ofType(Integer.class).defaultsTo(1);
+        OptionSpec<String> querySpec = parser.accepts("q", "only list objects passing this filter, evaluated by the server, such as \"ActiveCount > 0 and Name like 'http*'\"").withRequiredArg();
+        OptionSpec<Void> aggregateSpec = parser.accepts("A", "write the count, sum, min, max, mean and percentiles of each attribute across all the matching objects instead of each object's values");
+        OptionSpec<String> groupKeySpec = parser.accepts("g", "aggregate separately for each value of this key property, such as type (implies -A)").withRequiredArg();
+        OptionSpec<Void> streamingSpec = parser.accepts("s", "query one domain at a time and write each as soon as it's read, to keep memory down on servers with very many objects");
+
+        OptionSet options;
         try {
             options = parser.parse(args);
         } catch (OptionException oe) {
-            System.err.println(oe.getMessage());
-            parser.printHelpOn(System.err);
-            System.exit(EXIT_STATUS_INVALID_ARGS);
+            err.println(oe.getMessage());
+            parser.printHelpOn(err);
+            return EXIT_STATUS_INVALID_ARGS;
         }
 
+        if (options.has(urlSpec) && options.has(pidSpec)) {
+            err.println("Give either a JMX service url or a pid, not both");
+            return EXIT_STATUS_INVALID_ARGS;
+        }
         String url = options.valueOf(urlSpec);
+        String target = options.has(pidSpec) ? "process " + options.valueOf(pidSpec) : url;
         String objectNamePattern = options.valueOf(objectNameSpec);
-        String attributeName = options.valueOf(attributeNameSpec);
-        JmxLister lister = null;
-        try {
-            lister = new JmxLister(url);
-        } catch (MalformedURLException mue) {
-            exitMalformedUrl(url, mue);
+        List<String> attributeNames = options.valuesOf(attributeNameSpec);
+        boolean aggregating = options.has(aggregateSpec) || options.has(groupKeySpec);
+        if (aggregating && attributeNames.isEmpty()) {
+            err.println("Aggregating needs attributes to aggregate");
+            return EXIT_STATUS_INVALID_ARGS;
+        }
+        QueryExp query = null;
+        if (options.has(querySpec)) {
+            try {
+                query = QueryParser.parse(options.valueOf(querySpec));
+            } catch (IllegalArgumentException iae) {
+                err.println(iae.getMessage());
+                return EXIT_STATUS_INVALID_ARGS;
+            }
         }
         try {
-            lister.list(objectNamePattern, attributeName, System.out);
+            JmxLister lister = new JmxLister(options.has(pidSpec) ? templates.forPid(options.valueOf(pidSpec)) : templates.forUrl(new JMXServiceURL(url)));
+            lister.setParallelism(options.valueOf(parallelismSpec));
+            lister.setStreaming(options.has(streamingSpec));
+            lister.setAggregating(aggregating, options.valueOf(groupKeySpec));
+            lister.setQuery(query);
+            lister.setValuesOnly(options.has(valuesOnlySpec));
+            lister.list(objectNamePattern, attributeNames, out);
+            out.flush();
         } catch (MalformedURLException mue) {
-            exitMalformedUrl(url, mue);
+            String message = mue.getMessage();
+            if (message == null) {
+                err.printf("Invalid JMX URL: %s%n", url);
+            } else {
+                err.printf("Invalid JMX URL: %s, %s%n", url, message);
+            }
+            return EXIT_STATUS_INVALID_ARGS;
         } catch (IOException e) {
+            flushQuietly(out);
             String message = e.getMessage();
             if (message == null) {
-                System.err.printf("Failure communicating with %s%n", url);
+                err.printf("Failure communicating with %s%n", target);
             } else {
-                System.err.printf("Failure communicating with %s: %s%n", url, message);
+                err.printf("Failure communicating with %s: %s%n", target, message);
             }
-            System.exit(EXIT_STATUS_COMMUNICATION);
+            return EXIT_STATUS_COMMUNICATION;
         } catch (MalformedObjectNameException mone) {
             String message = mone.getMessage();
             if (message == null) {
-                System.err.printf("Invalid ObjectName pattern: %s%n", objectNamePattern);
+                err.printf("Invalid ObjectName pattern: %s%n", objectNamePattern);
             } else {
-                System.err.printf("Invalid ObjectName pattern: %s, %s%n", objectNamePattern, message);
+                err.printf("Invalid ObjectName pattern: %s, %s%n", objectNamePattern, message);
             }
-            System.exit(EXIT_STATUS_INVALID_ARGS);
+            return EXIT_STATUS_INVALID_ARGS;
         }
+        return 0;
     }
 
-    private static void exitMalformedUrl(String url, MalformedURLException mue) {
-        String message = mue.getMessage();
-        if (message == null) {
-            System.err.printf("Invalid JMX URL: %s%n", url);
-        } else {
-            System.err.printf("Invalid JMX URL: %s, %s%n", url, message);
+    private static void flushQuietly(Writer out) {
+        try {
+            out.flush();
+        } catch (IOException ioe) {
+            LOG.trace("exception flushing output", ioe);
         }
-        System.exit(EXIT_STATUS_INVALID_ARGS);
     }
 
-    private JMXServiceURL url;
+    private final JmxTemplate template;
+    private int parallelism = 1;
+    private boolean streaming;
+    private QueryExp query;
+    private boolean aggregating;
+    private String groupKey;
+    private boolean valuesOnly;
 
     public JmxLister(String url) throws MalformedURLException {
         this(new JMXServiceURL(url));
     }
 
     public JmxLister(JMXServiceURL url) {
-        this.url = url;
+        this(new SimpleJmxTemplate(url));
+    }
+
+    /**
+     * @param template connects for each listing, and is left open
+     */
+    public JmxLister(JmxTemplate template) {
+        this.template = template;
+    }
+
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    /**
+     * @param query filters the objects on the server, or null to list all those matching the pattern
+     */
+    public void setQuery(QueryExp query) {
+        this.query = query;
+    }
+
+    /**
+     * @param groupKey when aggregating, the key property to aggregate separately for each value of, or null to
+     *                 aggregate all the objects together
+     */
+    public void setAggregating(boolean aggregating, String groupKey) {
+        this.aggregating = aggregating;
+        this.groupKey = groupKey;
+    }
+
+    /**
+     * @param valuesOnly whether to leave the object names out, and write only the values of their attributes
+     */
+    public void setValuesOnly(boolean valuesOnly) {
+        this.valuesOnly = valuesOnly;
     }
 
     public void list(String objectNamePattern, String attributeName, Appendable out) throws IOException, MalformedObjectNameException {
-        JmxTemplate template = new SimpleJmxTemplate(url);
-        try {
-            template.runWithConnection(new ListObjectsCallback(objectNamePattern, attributeName, out, LOG));
-        } finally {
-            template.close();
-        }
+        list(objectNamePattern, attributeName == null ? Collections.<String>emptyList() : Collections.singletonList(attributeName), out);
+    }
+
+    public void list(String objectNamePattern, List<String> attributeNames, Appendable out) throws IOException, MalformedObjectNameException {
+        ListObjectsCallback callback = new ListObjectsCallback(new ObjectName(objectNamePattern), query, attributeNames, parallelism, streaming, aggregating, groupKey, out, LOG);
+        callback.setValuesOnly(valuesOnly);
+        template.runWithConnection(callback);
     }
 
 }
@@ -26,22 +26,65 @@ import joptsimple.OptionSpec;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.management.JMException;
 import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.QueryExp;
+import javax.management.remote.JMXServiceURL;
+import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
 public class JmxLogger {
 
     private static final int EXIT_STATUS_INVALID_ARGS = -1;
+    private static final int EXIT_STATUS_COMMUNICATION = 1;
+
+    private static final long HEARTBEAT_MILLIS = 1000;
+    private static final int DEFAULT_THREADS = 8;
+    private static final int DEFAULT_MAX_BACKOFF_SECONDS = 60;
+    private static final int DEFAULT_SUMMARY_SECONDS = 60;
+    private static final int DEFAULT_QUEUE_SIZE = 16384;
+
+    private static final String METRICS_OBJECT_NAME = "com.melessoftware.utils.jmx:type=PollerMetrics";
+    private static final String QUEUE_OBJECT_NAME = "com.melessoftware.utils.jmx:type=SampleQueue";
+
+    private static final String TIME_SERIES_SUFFIX = ".ts";
+
+    private static final String RMI_RESPONSE_TIMEOUT_PROPERTY = "sun.rmi.transport.tcp.responseTimeout";
+    private static final String DEFAULT_RMI_RESPONSE_TIMEOUT = "30000";
 
     private static final Logger LOG = LoggerFactory.getLogger(JmxLogger.class);
 
     public static void main(String[] args) throws IOException {
         OptionParser parser = new OptionParser();
-        OptionSpec<String> urlSpec = parser.accepts("u", "JMX service url").withRequiredArg().required();
+        OptionSpec<File> targetsSpec = parser.accepts("f", "poll every target listed in this file, one JMX service url and optional name per line").withRequiredArg().ofType(File.class);
+        OptionSpec<Integer> pidSpec = parser.accepts("p", "poll the JVM with this pid on this host, through its local management agent, which is started if need be").withRequiredArg().ofType(Integer.class);
+        OptionSpec<String> urlSpec = parser.accepts("u", "JMX service url").requiredUnless("f", "p").withRequiredArg();
+        OptionSpec<Integer> threadsSpec = parser.accepts("t", "number of worker threads polling the targets").withRequiredArg().ofType(Integer.class).defaultsTo(DEFAULT_THREADS);
+        OptionSpec<Integer> maxBackoffSpec = parser.accepts("b", "longest wait in seconds between attempts to reconnect to a target that is down").withRequiredArg().ofType(Integer.class).defaultsTo(DEFAULT_MAX_BACKOFF_SECONDS);
         OptionSpec<String> objectNameSpec = parser.accepts("n", "find objects with names matching this pattern").withRequiredArg().required();
-        OptionSpec<String> attributeNameSpec = parser.accepts("a", "show the value of this attribute").withRequiredArg().required();
+        OptionSpec<String> querySpec = parser.accepts("q", "only poll objects passing this filter, evaluated by the server on every poll, such as \"ActiveCount > 0 and Name like 'http*'\"").withRequiredArg();
+        OptionSpec<Void> notificationsSpec = parser.accepts("e", "log the notifications emitted by matching objects as they arrive, instead of polling attributes");
+        OptionSpec<String> counterNameSpec = parser.accepts("r", "show the value of this counter attribute along with how much it went up since the last poll and its rate per second (may be repeated or comma separated, and given an interval like -a)").withRequiredArg().withValuesSeparatedBy(',');
+        OptionSpec<String> attributeNameSpec = parser.accepts("a", "show the value of this attribute (may be repeated or comma separated), or of every attribute matching a wildcard such as * or *Count, optionally polled at its own interval, such as HeapMemoryUsage@5s").requiredUnless("e", "r").withRequiredArg().withValuesSeparatedBy(',');
+        OptionSpec<Void> aggregateSpec = parser.accepts("A", "log the count, sum, min, max, mean and percentiles of each attribute across all the matching objects on each poll instead of each object's values");
+        OptionSpec<String> groupKeySpec = parser.accepts("g", "aggregate separately for each value of this key property, such as type (implies -A)").withRequiredArg();
+        OptionSpec<File> outputSpec = parser.accepts("o", "write the values to this compact time series file instead of logging them, keeping only numbers (read it back with tsdump). With -f, a directory to write a file per target in").withRequiredArg().ofType(File.class);
+        OptionSpec<String> intervalSpec = parser.accepts("i", "poll attributes at this interval unless they give their own, such as 500ms, 10s or 5m").withRequiredArg().defaultsTo("1s");
+        OptionSpec<String> heartbeatSpec = parser.accepts("c", "only log values that have changed since they were last logged, and each unchanged one again after this long, such as 5m, or 0 never to").withRequiredArg();
+        OptionSpec<Integer> queueSizeSpec = parser.accepts("s", "hand the values to the log or file through a queue of this many samples, so that slow output doesn't hold up polling, or 0 to write them from the polling threads (default: " + DEFAULT_QUEUE_SIZE + " with -o, otherwise 0; logged values handed over through a queue start with the time they were read)").withRequiredArg().ofType(Integer.class);
+        OptionSpec<String> overflowSpec = parser.accepts("w", "what to do when the queue is full: block the poller, drop-oldest or drop the new samples").withRequiredArg().defaultsTo("block");
+        OptionSpec<Integer> summarySpec = parser.accepts("m", "log a summary of the poller's own ticks, samples and latencies every this many seconds, or 0 never to").withRequiredArg().ofType(Integer.class).defaultsTo(DEFAULT_SUMMARY_SECONDS);
 
         OptionSet options = null;
         try {
@@ -52,16 +95,68 @@ public class JmxLogger {
             System.exit(EXIT_STATUS_INVALID_ARGS);
         }
 
-        String url = options.valueOf(urlSpec);
         final String objectName = options.valueOf(objectNameSpec);
-        final String attributeName = options.valueOf(attributeNameSpec);
+        final List<String> attributeNames = new ArrayList<String>(options.valuesOf(attributeNameSpec));
+        final List<String> counterNames = new ArrayList<String>();
+        for (String counterSpec : options.valuesOf(counterNameSpec)) {
+            attributeNames.add(counterSpec);
+            counterNames.add(AttributeSchedule.attributeName(counterSpec));
+        }
+        boolean notifications = options.has(notificationsSpec);
+        boolean aggregating = options.has(aggregateSpec) || options.has(groupKeySpec);
+        String groupKey = options.valueOf(groupKeySpec);
+        ReconnectBackoff backoff = ReconnectBackoff.DEFAULT.withMaxDelay(options.valueOf(maxBackoffSpec), TimeUnit.SECONDS);
 
-        PersistentJmxTemplate template = new PersistentJmxTemplate(url);
-        closeTemplateOnShutdown(template);
+        if ((options.has(targetsSpec) ? 1 : 0) + (options.has(urlSpec) ? 1 : 0) + (options.has(pidSpec) ? 1 : 0) > 1) {
+            System.err.println("Give only one of a targets file, a JMX service url or a pid");
+            System.exit(EXIT_STATUS_INVALID_ARGS);
+        }
+        if (notifications && options.has(outputSpec)) {
+            System.err.println("Notifications can only be logged, not written to a time series file");
+            System.exit(EXIT_STATUS_INVALID_ARGS);
+        }
+        if (notifications && options.has(querySpec)) {
+            System.err.println("Filters can only be used when polling attributes, not with notifications");
+            System.exit(EXIT_STATUS_INVALID_ARGS);
+        }
+        if (notifications && !counterNames.isEmpty()) {
+            System.err.println("Rates can only be worked out for polled attributes, not notifications");
+            System.exit(EXIT_STATUS_INVALID_ARGS);
+        }
+        if (notifications && aggregating) {
+            System.err.println("Only polled attributes can be aggregated, not notifications");
+            System.exit(EXIT_STATUS_INVALID_ARGS);
+        }
+        if (notifications && options.has(heartbeatSpec)) {
+            System.err.println("Only polled attributes can be left out when unchanged, not notifications");
+            System.exit(EXIT_STATUS_INVALID_ARGS);
+        }
+
+        QueryExp query = null;
+        long defaultInterval;
+        long period;
+        SampleQueue.OverflowPolicy overflowPolicy;
+        long heartbeat = -1;
+        try {
+            if (options.has(heartbeatSpec)) {
+                String spec = options.valueOf(heartbeatSpec);
+                heartbeat = "0".equals(spec.trim()) ? 0 : AttributeSchedule.parseInterval(spec);
+            }
+            overflowPolicy = parseOverflowPolicy(options.valueOf(overflowSpec));
+            if (options.has(querySpec)) {
+                query = QueryParser.parse(options.valueOf(querySpec));
+            }
+            defaultInterval = AttributeSchedule.parseInterval(options.valueOf(intervalSpec));
+            period = notifications ? HEARTBEAT_MILLIS : AttributeSchedule.periodMillis(attributeNames, defaultInterval);
+        } catch (IllegalArgumentException iae) {
+            System.err.println(iae.getMessage());
+            System.exit(EXIT_STATUS_INVALID_ARGS);
+            return;
+        }
 
-        LogAttributeCallback callback;
+        ObjectName objectNamePattern;
         try {
-            callback = new LogAttributeCallback(objectName, attributeName, "JmxLogger");
+            objectNamePattern = new ObjectName(objectName);
         } catch (MalformedObjectNameException mone) {
             String message = mone.getMessage();
             if (message == null) {
@@ -73,23 +168,206 @@ public class JmxLogger {
             return;
         }
 
-        Executors.newScheduledThreadPool(1).scheduleAtFixedRate(logAttributeTask(template, callback), 0, 1000, TimeUnit.MILLISECONDS);
+        File output = options.valueOf(outputSpec);
+
+        PollerMetrics metrics = new PollerMetrics();
+        publish(metrics, options.valueOf(summarySpec));
+
+        SampleQueue queue = null;
+        // the log stamps each line with when it was written, which through the queue isn't when the value was read
+        int queueSize = options.has(queueSizeSpec) ? options.valueOf(queueSizeSpec) : output == null ? 0 : DEFAULT_QUEUE_SIZE;
+        if (!notifications && queueSize > 0) {
+            queue = new SampleQueue(queueSize, overflowPolicy);
+            publish(queue);
+        }
+
+        if (options.has(targetsSpec)) {
+            File targetsFile = options.valueOf(targetsSpec);
+            List<Target> targets = Target.load(targetsFile);
+            if (targets.isEmpty()) {
+                System.err.printf("No targets in %s%n", targetsFile);
+                System.exit(EXIT_STATUS_INVALID_ARGS);
+            }
+            if (System.getProperty(RMI_RESPONSE_TIMEOUT_PROPERTY) == null) {
+                // without a response timeout a hung target would hold on to its worker thread forever
+                System.setProperty(RMI_RESPONSE_TIMEOUT_PROPERTY, DEFAULT_RMI_RESPONSE_TIMEOUT);
+            }
+            if (output != null && !output.isDirectory() && !output.mkdirs()) {
+                System.err.printf("Couldn't create output directory %s%n", output);
+                System.exit(EXIT_STATUS_INVALID_ARGS);
+            }
+            if (output != null) {
+                // two targets writing to one file would corrupt it. Names differing only in case are counted as the
+                // same, as they are on some file systems
+                Map<String, Target> byFileName = new HashMap<String, Target>();
+                for (Target target : targets) {
+                    String fileName = fileName(target.getName());
+                    Target clash = byFileName.put(fileName.toLowerCase(Locale.ENGLISH), target);
+                    if (clash != null) {
+                        System.err.printf("Targets %s (%s) and %s (%s) would both be written to %s, give them different names in %s%n",
+                                clash.getName(), clash.getUrl(), target.getName(), target.getUrl(), fileName, targetsFile);
+                        System.exit(EXIT_STATUS_INVALID_ARGS);
+                    }
+                }
+            }
+            PollingScheduler scheduler = new PollingScheduler(Math.min(options.valueOf(threadsSpec), targets.size()), metrics);
+            for (int i = 0; i < targets.size(); i++) {
+                Target target = targets.get(i);
+                // spread the targets across the period rather than hitting them all at once
+                long offset = period * i / targets.size();
+                schedule(scheduler, target.getName(), target.getUrl(), LoggerFactory.getLogger("JmxLogger." + target.getName()),
+                        objectNamePattern, query, attributeNames, counterNames, defaultInterval, notifications, aggregating, groupKey, heartbeat,
+                        output == null ? null : new File(output, fileName(target.getName())), queue, backoff, period, offset);
+            }
+        } else {
+            String name;
+            JMXServiceURL url;
+            if (options.has(pidSpec)) {
+                int pid = options.valueOf(pidSpec);
+                name = "process " + pid;
+                try {
+                    // attach every time, rather than trusting a cached address that we'd then retry for ever
+                    url = LocalAttach.connectorAddress(pid, false);
+                } catch (IOException ioe) {
+                    System.err.printf("Couldn't attach to process %d: %s%n", pid, ioe.getMessage());
+                    System.exit(EXIT_STATUS_COMMUNICATION);
+                    return;
+                }
+            } else {
+                name = options.valueOf(urlSpec);
+                url = new JMXServiceURL(name);
+            }
+            schedule(new PollingScheduler(1, metrics), name, url, LoggerFactory.getLogger("JmxLogger"),
+                    objectNamePattern, query, attributeNames, counterNames, defaultInterval, notifications, aggregating, groupKey, heartbeat,
+                    output, queue, backoff, period, 0);
+        }
+    }
+
+    private static void schedule(PollingScheduler scheduler, String name, JMXServiceURL url, Logger logger,
+                                 ObjectName objectNamePattern, QueryExp query, List<String> attributeNames, List<String> counterNames,
+                                 long defaultInterval, boolean notifications, boolean aggregating, String groupKey, long heartbeat,
+                                 File output, SampleQueue queue, ReconnectBackoff backoff, long period, long offset) throws IOException {
+        if (notifications) {
+            // the proxy keeps the listeners across reconnects, and each tick just checks the connection is still alive
+            ProxyJmxTemplate template = new ProxyJmxTemplate(url, backoff);
+            template.setMetrics(scheduler.getMetrics());
+            closeTemplateOnShutdown(template);
+            scheduler.scheduleJob(name, template, PollingScheduler.every(new LogNotificationsCallback(objectNamePattern, logger)), offset, period, TimeUnit.MILLISECONDS);
+        } else {
+            PersistentJmxTemplate template = new PersistentJmxTemplate(url, backoff);
+            template.setMetrics(scheduler.getMetrics());
+            closeTemplateOnShutdown(template);
+            SampleSink sink;
+            if (output == null) {
+                sink = new LoggingSampleSink(logger, queue != null);
+            } else {
+                sink = new TimeSeriesFileSink(output);
+                if (queue == null) {
+                    // otherwise the queue closes it once it has written everything queued
+                    closeSinkOnShutdown(sink);
+                }
+            }
+            sink = scheduler.getMetrics().instrument(sink);
+            if (heartbeat >= 0) {
+                // after the rates and aggregates, which need every value
+                sink = new ChangeFilterSink(heartbeat, sink);
+            }
+            if (aggregating) {
+                sink = new AggregatingSink(objectNamePattern, groupKey, sink);
+            }
+            if (!counterNames.isEmpty()) {
+                sink = new RateComputingSink(counterNames, sink);
+            }
+            if (queue != null) {
+                sink = queue.wrap(sink);
+            }
+            AttributeSchedule schedule = new AttributeSchedule(attributeNames, defaultInterval, new ObjectNameCache(objectNamePattern, query), sink, logger);
+            scheduler.scheduleJob(name, template, schedule, offset, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server, so they can be watched with any JMX client including this
+     * one, and logs a summary of them every {@code summarySeconds}.
+     */
+    private static void publish(final PollerMetrics metrics, int summarySeconds) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, new ObjectName(METRICS_OBJECT_NAME));
+        } catch (JMException jme) {
+            LOG.warn("couldn't register the poller's metrics", jme);
+        }
+        if (summarySeconds <= 0) {
+            return;
+        }
+        ScheduledExecutorService summaries = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "poll-summary");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        summaries.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                metrics.logSummary(LOG);
+            }
+        }, summarySeconds, summarySeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Registers the queue with the platform MBean server, and closes it on shutdown so that what's queued is written.
+     */
+    private static void publish(final SampleQueue queue) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(queue, new ObjectName(QUEUE_OBJECT_NAME));
+        } catch (JMException jme) {
+            LOG.warn("couldn't register the output queue", jme);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                try {
+                    queue.close();
+                } catch (IOException ioe) {
+                    LOG.error("exception closing output", ioe);
+                }
+                if (queue.getDroppedCount() > 0) {
+                    LOG.warn("dropped {} samples because the output queue was full", queue.getDroppedCount());
+                }
+            }
+        });
+    }
+
+    private static SampleQueue.OverflowPolicy parseOverflowPolicy(String policy) {
+        try {
+            return SampleQueue.OverflowPolicy.valueOf(policy.trim().toUpperCase().replace('-', '_'));
+        } catch (IllegalArgumentException iae) {
+            throw new IllegalArgumentException("invalid overflow policy: " + policy + ", expected block, drop-oldest or drop");
+        }
+    }
+
+    /**
+     * @return a file name for the target's output, since the same object can be found on every target
+     */
+    private static String fileName(String targetName) {
+        return targetName.replaceAll("[^A-Za-z0-9._-]", "_") + TIME_SERIES_SUFFIX;
     }
 
-    private static Runnable logAttributeTask(final JmxTemplate template, final MBeanServerCallback<?> callback) {
-        return new Runnable() {
+    private static void closeSinkOnShutdown(final SampleSink sink) {
+        Runtime.getRuntime().addShutdownHook(new Thread() {
             @Override
             public void run() {
                 try {
-                    template.runWithConnection(callback);
+                    sink.close();
                 } catch (IOException ioe) {
-                    LOG.debug("exception executing query", ioe);
+                    LOG.error("exception closing output", ioe);
                 }
             }
-        };
+        });
     }
 
-    private static void closeTemplateOnShutdown(final PersistentJmxTemplate template) {
+    private static void closeTemplateOnShutdown(final JmxTemplate template) {
         Runtime.getRuntime().addShutdownHook(new Thread() {
             @Override
             public void run() {
@@ -0,0 +1,732 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.melessoftware.utils.jmx;
+
+import joptsimple.OptionException;
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+import joptsimple.OptionSpec;
+import jline.console.ConsoleReader;
+import jline.console.UserInterruptException;
+import jline.console.completer.CandidateListCompletionHandler;
+import jline.console.completer.Completer;
+import jline.console.history.FileHistory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.IntrospectionException;
+import javax.management.JMException;
+import javax.management.JMRuntimeException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServerConnection;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.QueryExp;
+import javax.management.ReflectionException;
+import javax.management.RuntimeErrorException;
+import javax.management.RuntimeMBeanException;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+import javax.management.remote.JMXServiceURL;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.MalformedURLException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs list, get, find, invoke and watch commands typed at a prompt, all against one {@link PersistentJmxTemplate}, so
+ * that trying out one pattern after another pays for neither a JVM nor a connection each time.
+ * <p/>
+ * Object names, attributes and operations are completed with tab. The names come from an {@link ObjectNameCache} of
+ * every name on the server, which is kept up to date from registration notifications rather than queried on each
+ * tab, and the attributes and operations from each object's {@link MBeanInfo}, which is kept once it has been read
+ * until the object is unregistered.
+ */
+public class JmxShell implements JmxLister.Templates {
+
+    private static final int EXIT_STATUS_INVALID_ARGS = -1;
+    private static final int EXIT_STATUS_COMMUNICATION = 1;
+
+    private static final int DEFAULT_MAX_BACKOFF_SECONDS = 5;
+    private static final String DEFAULT_WATCH_INTERVAL = "1s";
+    private static final long MIN_WATCH_INTERVAL_MILLIS = 100;
+    // when completing the attributes of a pattern, how many of the matching objects to look at
+    private static final int MAX_INFOS_PER_PATTERN = 10;
+
+    private static final String PROMPT = "jmx> ";
+    private static final String HISTORY_FILE = ".meles-jmx-history";
+    private static final List<String> COMMANDS = Arrays.asList("list", "get", "find", "invoke", "watch", "refresh", "help", "exit");
+    private static final String[] HELP = {
+            "list <options>                      list objects, taking the same options as the list program, such as -n and -a",
+            "get <name> <attribute>...           show the values of attributes of an object",
+            "find <pattern or text> [<query>]    show the names matching a pattern, or containing some text, optionally filtered by a query",
+            "invoke <name> <operation> [<arg>...] run an operation on an object and show the result, or on every object matching a pattern",
+            "watch [<interval>] <options>        list objects again every interval, such as 500ms or 5 (seconds), 1s unless given, until a key is pressed",
+            "refresh                             forget the names, attributes and operations kept for completion",
+            "exit                                leave the shell",
+    };
+
+    private static final Logger LOG = LoggerFactory.getLogger(JmxShell.class);
+
+    public static void main(String[] args) throws IOException {
+        OptionParser parser = new OptionParser();
+        OptionSpec<Integer> pidSpec = parser.accepts("p", "connect to the JVM with this pid on this host, through its local management agent, which is started if need be").withRequiredArg().ofType(Integer.class);
+        OptionSpec<String> urlSpec = parser.accepts("u", "JMX service url").requiredUnless("p").withRequiredArg();
+        OptionSpec<Integer> maxBackoffSpec = parser.accepts("b", "longest wait in seconds between attempts to reconnect to a server that is down, during which commands fail straight away").withRequiredArg().ofType(Integer.class).defaultsTo(DEFAULT_MAX_BACKOFF_SECONDS);
+
+        OptionSet options = null;
+        try {
+            options = parser.parse(args);
+        } catch (OptionException oe) {
+            System.err.println(oe.getMessage());
+            parser.printHelpOn(System.err);
+            System.exit(EXIT_STATUS_INVALID_ARGS);
+        }
+        if (options.has(urlSpec) && options.has(pidSpec)) {
+            System.err.println("Give either a JMX service url or a pid, not both");
+            System.exit(EXIT_STATUS_INVALID_ARGS);
+        }
+
+        String target;
+        JMXServiceURL url;
+        if (options.has(pidSpec)) {
+            int pid = options.valueOf(pidSpec);
+            target = "process " + pid;
+            try {
+                url = LocalAttach.connectorAddress(pid, false);
+            } catch (IOException ioe) {
+                System.err.printf("Couldn't attach to process %d: %s%n", pid, ioe.getMessage());
+                System.exit(EXIT_STATUS_COMMUNICATION);
+                return;
+            }
+        } else {
+            target = options.valueOf(urlSpec);
+            try {
+                url = new JMXServiceURL(target);
+            } catch (MalformedURLException mue) {
+                System.err.printf("Invalid JMX URL: %s, %s%n", target, mue.getMessage());
+                System.exit(EXIT_STATUS_INVALID_ARGS);
+                return;
+            }
+        }
+
+        ReconnectBackoff backoff = ReconnectBackoff.DEFAULT.withMaxDelay(options.valueOf(maxBackoffSpec), TimeUnit.SECONDS);
+        PersistentJmxTemplate template = new PersistentJmxTemplate(url, backoff);
+        ConsoleReader reader = new ConsoleReader();
+        try {
+            new JmxShell(template, url, target, reader).run();
+        } finally {
+            template.close();
+            reader.close();
+            try {
+                reader.getTerminal().restore();
+            } catch (Exception e) {
+                LOG.trace("exception restoring terminal", e);
+            }
+        }
+    }
+
+    private final PersistentJmxTemplate template;
+    private final JMXServiceURL url;
+    private final String target;
+    private final ConsoleReader reader;
+    private final Writer out;
+    private final PrintStream err = System.err;
+
+    private final ConcurrentMap<ObjectName, MBeanInfo> infos = new ConcurrentHashMap<ObjectName, MBeanInfo>();
+    private volatile ObjectNameCache names = newNameCache();
+
+    public JmxShell(PersistentJmxTemplate template, JMXServiceURL url, String target, ConsoleReader reader) {
+        this.template = template;
+        this.url = url;
+        this.target = target;
+        this.reader = reader;
+        this.out = reader.getOutput();
+    }
+
+    public void run() throws IOException {
+        reader.setPrompt(PROMPT);
+        reader.setHandleUserInterrupt(true);
+        CandidateListCompletionHandler completionHandler = new CandidateListCompletionHandler();
+        // most completions, such as a domain, are only the start of a word
+        completionHandler.setPrintSpaceAfterFullCompletion(false);
+        reader.setCompletionHandler(completionHandler);
+        reader.addCompleter(new ShellCompleter());
+        FileHistory history = new FileHistory(new File(System.getProperty("user.home"), HISTORY_FILE));
+        reader.setHistory(history);
+        reader.println("Connected to " + target + ", type help for the commands");
+        try {
+            while (true) {
+                String line;
+                try {
+                    line = reader.readLine();
+                } catch (UserInterruptException uie) {
+                    continue;
+                }
+                if (line == null) {
+                    break;
+                }
+                List<String> words;
+                try {
+                    words = split(line);
+                } catch (IllegalArgumentException iae) {
+                    reader.println(iae.getMessage());
+                    continue;
+                }
+                if (words.isEmpty()) {
+                    continue;
+                }
+                String command = words.get(0);
+                if ("exit".equals(command) || "quit".equals(command)) {
+                    break;
+                }
+                try {
+                    execute(command, words.subList(1, words.size()));
+                } catch (IOException ioe) {
+                    reader.println("Failure communicating with " + target + ": " + ioe.getMessage());
+                } catch (RuntimeException re) {
+                    // one command going wrong shouldn't take the shell, and the connection, down with it
+                    LOG.debug("exception running " + command, re);
+                    reader.println(command + " failed: " + re);
+                }
+                reader.flush();
+            }
+        } finally {
+            history.flush();
+        }
+    }
+
+    @Override
+    public JmxTemplate forUrl(JMXServiceURL url) {
+        // always the url we were started with, as the shell puts it on the command line
+        return template;
+    }
+
+    @Override
+    public JmxTemplate forPid(int pid) throws IOException {
+        throw new IOException("the shell is connected to " + target + ", and can't connect to another process");
+    }
+
+    private void execute(String command, List<String> args) throws IOException {
+        if ("list".equals(command)) {
+            list(args);
+        } else if ("get".equals(command)) {
+            if (args.size() < 2) {
+                reader.println("get <name> <attribute>...");
+                return;
+            }
+            list(Arrays.asList("-v", "-n", args.get(0), "-a", join(args.subList(1, args.size()))));
+        } else if ("find".equals(command)) {
+            find(args);
+        } else if ("invoke".equals(command)) {
+            invoke(args);
+        } else if ("watch".equals(command)) {
+            watch(args);
+        } else if ("refresh".equals(command)) {
+            names = newNameCache();
+            infos.clear();
+        } else if ("help".equals(command)) {
+            for (String help : HELP) {
+                reader.println(help);
+            }
+        } else {
+            reader.println("Unknown command: " + command + ", type help for the commands");
+        }
+    }
+
+    /**
+     * @return the lister's exit status
+     */
+    private int list(List<String> args) throws IOException {
+        List<String> withUrl = new ArrayList<String>();
+        withUrl.add("-u");
+        withUrl.add(url.toString());
+        withUrl.addAll(args);
+        return JmxLister.run(withUrl.toArray(new String[withUrl.size()]), this, out, err);
+    }
+
+    private void find(List<String> args) throws IOException {
+        if (args.isEmpty()) {
+            reader.println("find <pattern or text> [<query>]");
+            return;
+        }
+        final ObjectName pattern;
+        final String text;
+        final QueryExp query;
+        try {
+            // anything that can't be an object name is looked for in the names
+            boolean isName = args.get(0).indexOf(':') >= 0;
+            pattern = isName ? new ObjectName(args.get(0)) : ObjectName.WILDCARD;
+            text = isName ? null : args.get(0).toLowerCase(Locale.ENGLISH);
+            query = args.size() > 1 ? QueryParser.parse(join(args.subList(1, args.size()), " ")) : null;
+        } catch (MalformedObjectNameException mone) {
+            reader.println("Invalid ObjectName pattern: " + args.get(0) + ", " + mone.getMessage());
+            return;
+        } catch (IllegalArgumentException iae) {
+            reader.println(iae.getMessage());
+            return;
+        }
+        Set<ObjectName> found = template.runWithConnection(new MBeanServerCallback<Set<ObjectName>>() {
+            @Override
+            public Set<ObjectName> execute(MBeanServerConnection connection) throws IOException {
+                if (query != null) {
+                    return connection.queryNames(pattern, query);
+                }
+                // from the index, without asking the server
+                return names.getNames(connection);
+            }
+        });
+        SortedSet<ObjectName> sorted = new TreeSet<ObjectName>();
+        for (ObjectName objectName : found) {
+            if (pattern.apply(objectName) && (text == null || objectName.toString().toLowerCase(Locale.ENGLISH).contains(text))) {
+                sorted.add(objectName);
+            }
+        }
+        for (ObjectName objectName : sorted) {
+            reader.println(objectName.toString());
+        }
+    }
+
+    private void invoke(List<String> args) throws IOException {
+        if (args.size() < 2) {
+            reader.println("invoke <name> <operation> [<arg>...]");
+            return;
+        }
+        final ObjectName objectName;
+        try {
+            objectName = new ObjectName(args.get(0));
+        } catch (MalformedObjectNameException mone) {
+            reader.println("Invalid ObjectName: " + args.get(0) + ", " + mone.getMessage());
+            return;
+        }
+        final String operationName = args.get(1);
+        final List<String> arguments = args.subList(2, args.size());
+        if (objectName.isPattern()) {
+            // one at a time, as someone at a prompt is better off seeing them in order than quickly
+            template.runWithConnection(new InvokeOperationCallback(objectName, null, operationName, arguments, 1, null, false, null, out, LOG));
+            return;
+        }
+        template.runWithConnection(new MBeanServerCallback<Void>() {
+            @Override
+            public Void execute(MBeanServerConnection connection) throws IOException {
+                try {
+                    Operation operation = Operation.resolve(info(connection, objectName), operationName, arguments);
+                    Object result = operation.invoke(connection, objectName);
+                    if (operation.isVoid()) {
+                        reader.println("done");
+                    } else {
+                        printResult(result);
+                    }
+                } catch (IllegalArgumentException iae) {
+                    reader.println(iae.getMessage());
+                } catch (InstanceNotFoundException infe) {
+                    reader.println("No such object: " + objectName);
+                } catch (MBeanException me) {
+                    reader.println(operationName + " threw " + me.getTargetException());
+                } catch (RuntimeMBeanException rme) {
+                    // thrown by the operation, so nothing's wrong with the connection
+                    reader.println(operationName + " threw " + rme.getTargetException());
+                } catch (RuntimeErrorException ree) {
+                    reader.println(operationName + " threw " + ree.getTargetError());
+                } catch (JMRuntimeException jmre) {
+                    reader.println("Couldn't invoke " + operationName + ": " + jmre);
+                } catch (JMException jme) {
+                    reader.println("Couldn't invoke " + operationName + ": " + jme);
+                }
+                return null;
+            }
+        });
+    }
+
+    private void printResult(Object result) throws IOException {
+        if (result instanceof CompositeData || result instanceof TabularData) {
+            OpenDataFlattener.flatten("", result, new OpenDataFlattener.Visitor() {
+                @Override
+                public void leaf(String name, Object value) throws IOException {
+                    reader.println(name + " = " + format(value));
+                }
+            });
+        } else {
+            reader.println(format(result));
+        }
+    }
+
+    private static String format(Object value) {
+        if (value != null && value.getClass().isArray()) {
+            String formatted = Arrays.deepToString(new Object[]{value});
+            // without the brackets of the array we wrapped it in
+            return formatted.substring(1, formatted.length() - 1);
+        }
+        return String.valueOf(value);
+    }
+
+    private void watch(List<String> args) throws IOException {
+        long interval = AttributeSchedule.parseInterval(DEFAULT_WATCH_INTERVAL);
+        List<String> listArgs = args;
+        if (!args.isEmpty() && !args.get(0).isEmpty() && Character.isDigit(args.get(0).charAt(0))) {
+            String given = args.get(0);
+            try {
+                // a bare number is in seconds here, which is what anyone watching by hand means
+                interval = given.matches("\\d+") ? TimeUnit.SECONDS.toMillis(Long.parseLong(given)) : AttributeSchedule.parseInterval(given);
+            } catch (IllegalArgumentException iae) {
+                reader.println("Invalid interval: " + given + ", give one such as 500ms, 10s or 5m");
+                return;
+            }
+            if (interval < MIN_WATCH_INTERVAL_MILLIS) {
+                reader.println("Invalid interval: " + given + ", the shortest is " + MIN_WATCH_INTERVAL_MILLIS + "ms");
+                return;
+            }
+            listArgs = args.subList(1, args.size());
+        }
+        final List<String> watched = listArgs;
+        final SimpleDateFormat time = new SimpleDateFormat("HH:mm:ss");
+        // held while a tick writes, so that no tick writes once the prompt is back
+        final Object output = new Object();
+        final AtomicBoolean stopped = new AtomicBoolean();
+        reader.println("--- " + time.format(new Date()) + ", press any key to stop");
+        if (list(watched) == EXIT_STATUS_INVALID_ARGS) {
+            return;
+        }
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "shell-watch");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        timer.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (output) {
+                    if (stopped.get()) {
+                        return;
+                    }
+                    try {
+                        reader.println("--- " + time.format(new Date()));
+                        list(watched);
+                        reader.flush();
+                    } catch (IOException ioe) {
+                        LOG.debug("exception writing watched values", ioe);
+                    } catch (RuntimeException re) {
+                        // which would otherwise quietly stop the ticks
+                        LOG.debug("exception listing watched values", re);
+                    }
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+        try {
+            reader.readCharacter();
+        } finally {
+            timer.shutdown();
+            // waits for a list that's under way to finish before the prompt comes back
+            synchronized (output) {
+                stopped.set(true);
+            }
+        }
+    }
+
+    /**
+     * @return a cache of every name, which also forgets the info of objects once they're unregistered, as an object
+     * registered again under the same name may well have other attributes and operations
+     */
+    private ObjectNameCache newNameCache() {
+        return new ObjectNameCache(ObjectName.WILDCARD) {
+            @Override
+            protected void unregistered(ObjectName objectName) {
+                infos.remove(objectName);
+            }
+        };
+    }
+
+    private MBeanInfo info(MBeanServerConnection connection, ObjectName objectName) throws IOException, InstanceNotFoundException, IntrospectionException, ReflectionException {
+        MBeanInfo info = infos.get(objectName);
+        if (info == null) {
+            // so that the cache is listening for the object going before we keep its info
+            names.getNames(connection);
+            info = connection.getMBeanInfo(objectName);
+            infos.put(objectName, info);
+        }
+        return info;
+    }
+
+    private static String join(List<String> words) {
+        return join(words, ",");
+    }
+
+    private static String join(List<String> words, String separator) {
+        StringBuilder joined = new StringBuilder();
+        for (String word : words) {
+            if (joined.length() > 0) {
+                joined.append(separator);
+            }
+            joined.append(word);
+        }
+        return joined.toString();
+    }
+
+    /**
+     * Splits a line into words at whitespace, keeping together what's in single or double quotes, and taking a
+     * character after a backslash as it is.
+     */
+    static List<String> split(String line) {
+        List<String> words = new ArrayList<String>();
+        StringBuilder word = null;
+        char quote = 0;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                } else {
+                    word.append(c);
+                }
+            } else if (Character.isWhitespace(c)) {
+                if (word != null) {
+                    words.add(word.toString());
+                    word = null;
+                }
+            } else {
+                if (word == null) {
+                    word = new StringBuilder();
+                }
+                if (c == '\'' || c == '"') {
+                    quote = c;
+                } else if (c == '\\' && i + 1 < line.length()) {
+                    word.append(line.charAt(++i));
+                } else {
+                    word.append(c);
+                }
+            }
+        }
+        if (quote != 0) {
+            throw new IllegalArgumentException("Missing closing quote");
+        }
+        if (word != null) {
+            words.add(word.toString());
+        }
+        return words;
+    }
+
+    /**
+     * @return where the last word of the line starts, or the end of the line if it ends in whitespace
+     */
+    private static int lastWordStart(String line) {
+        int start = 0;
+        char quote = 0;
+        boolean inWord = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (Character.isWhitespace(c)) {
+                inWord = false;
+            } else {
+                if (!inWord) {
+                    start = i;
+                    inWord = true;
+                }
+                if (c == '\'' || c == '"') {
+                    quote = c;
+                } else if (c == '\\') {
+                    i++;
+                }
+            }
+        }
+        return inWord ? start : line.length();
+    }
+
+    private class ShellCompleter implements Completer {
+
+        @Override
+        public int complete(String buffer, int cursor, List<CharSequence> candidates) {
+            String line = buffer == null ? "" : buffer.substring(0, cursor);
+            int start = lastWordStart(line);
+            String word = line.substring(start);
+            List<String> before = split(line.substring(0, start));
+            char quote = 0;
+            if (word.startsWith("'") || word.startsWith("\"")) {
+                quote = word.charAt(0);
+                word = word.substring(1);
+            }
+
+            SortedSet<String> matches = new TreeSet<String>();
+            try {
+                if (before.isEmpty()) {
+                    addMatches(COMMANDS, "", word, matches);
+                } else {
+                    String command = before.get(0);
+                    String previous = before.get(before.size() - 1);
+                    boolean firstArgument = before.size() == 1 && !"list".equals(command) && !"watch".equals(command);
+                    if ("-n".equals(previous) || firstArgument) {
+                        addNames(word, matches);
+                    } else if ("-a".equals(previous)) {
+                        int comma = word.lastIndexOf(',');
+                        String done = word.substring(0, comma + 1);
+                        addMatches(attributes(namedIn(before, 1)), done, word.substring(comma + 1), matches);
+                    } else if ("get".equals(command)) {
+                        addMatches(attributes(before.get(1)), "", word, matches);
+                    } else if ("invoke".equals(command) && before.size() == 2) {
+                        addMatches(operations(before.get(1)), "", word, matches);
+                    }
+                }
+            } catch (IOException ioe) {
+                LOG.debug("couldn't complete", ioe);
+                return -1;
+            }
+            for (String match : matches) {
+                boolean needsQuote = quote != 0 || match.indexOf(' ') >= 0 || match.indexOf('"') >= 0 || match.indexOf('\'') >= 0;
+                char used = quote != 0 ? quote : match.indexOf('\'') >= 0 ? '"' : '\'';
+                // a domain is only the start of a name, so its quote is left open
+                String closing = match.endsWith(":") ? "" : String.valueOf(used);
+                candidates.add(needsQuote ? used + match + closing : match);
+            }
+            return candidates.isEmpty() ? -1 : start;
+        }
+
+        private void addMatches(Iterable<String> words, String done, String prefix, Set<String> matches) {
+            for (String word : words) {
+                if (word.startsWith(prefix)) {
+                    matches.add(done + word);
+                }
+            }
+        }
+
+        /**
+         * Adds the domains matching what's been typed, and once a domain has been typed, the names in it.
+         */
+        private void addNames(String prefix, Set<String> matches) throws IOException {
+            for (ObjectName objectName : allNames()) {
+                String name = objectName.toString();
+                if (prefix.indexOf(':') < 0) {
+                    String domain = objectName.getDomain() + ":";
+                    if (domain.startsWith(prefix)) {
+                        matches.add(domain);
+                    }
+                } else if (name.startsWith(prefix)) {
+                    matches.add(name);
+                }
+            }
+        }
+
+        /**
+         * @return the name after the -n, or the first argument if there's no -n
+         */
+        private String namedIn(List<String> words, int firstArgument) {
+            int n = words.indexOf("-n");
+            if (n >= 0 && n + 1 < words.size()) {
+                return words.get(n + 1);
+            }
+            return words.size() > firstArgument ? words.get(firstArgument) : null;
+        }
+
+        private Set<String> attributes(String name) throws IOException {
+            Set<String> attributeNames = new TreeSet<String>();
+            for (MBeanInfo info : infos(name)) {
+                for (MBeanAttributeInfo attribute : info.getAttributes()) {
+                    attributeNames.add(attribute.getName());
+                }
+            }
+            return attributeNames;
+        }
+
+        private Set<String> operations(String name) throws IOException {
+            Set<String> operationNames = new TreeSet<String>();
+            for (MBeanInfo info : infos(name)) {
+                for (MBeanOperationInfo operation : info.getOperations()) {
+                    operationNames.add(operation.getName());
+                }
+            }
+            return operationNames;
+        }
+
+        private Set<ObjectName> allNames() throws IOException {
+            return template.runWithConnection(new MBeanServerCallback<Set<ObjectName>>() {
+                @Override
+                public Set<ObjectName> execute(MBeanServerConnection connection) throws IOException {
+                    return names.getNames(connection);
+                }
+            });
+        }
+
+        /**
+         * @return the infos of the named object, or of a few of those matching a pattern
+         */
+        private List<MBeanInfo> infos(String name) throws IOException {
+            final ObjectName pattern;
+            try {
+                pattern = name == null ? null : new ObjectName(name);
+            } catch (MalformedObjectNameException mone) {
+                return new ArrayList<MBeanInfo>();
+            }
+            if (pattern == null) {
+                return new ArrayList<MBeanInfo>();
+            }
+            final Set<ObjectName> all = pattern.isPattern() ? allNames() : null;
+            return template.runWithConnection(new MBeanServerCallback<List<MBeanInfo>>() {
+                @Override
+                public List<MBeanInfo> execute(MBeanServerConnection connection) throws IOException {
+                    List<MBeanInfo> found = new ArrayList<MBeanInfo>();
+                    List<ObjectName> objectNames = new ArrayList<ObjectName>();
+                    if (all == null) {
+                        objectNames.add(pattern);
+                    } else {
+                        for (ObjectName objectName : all) {
+                            if (pattern.apply(objectName) && objectNames.size() < MAX_INFOS_PER_PATTERN) {
+                                objectNames.add(objectName);
+                            }
+                        }
+                    }
+                    for (ObjectName objectName : objectNames) {
+                        try {
+                            found.add(info(connection, objectName));
+                        } catch (JMException jme) {
+                            LOG.debug("couldn't get the info of " + objectName, jme);
+                        }
+                    }
+                    return found;
+                }
+            });
+        }
+    }
+}
@@ -21,58 +21,339 @@ package com.melessoftware.utils.jmx;
 
 import org.slf4j.Logger;
 
-import javax.management.*;
+import javax.management.Attribute;
+import javax.management.MBeanServerConnection;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.QueryExp;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+import java.io.Flushable;
 import java.io.IOException;
-import java.util.Set;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+/**
+ * Writes the names of the matching MBeans, sorted, optionally followed by the values of some of their attributes.
+ * <p/>
+ * Attribute names may have a dotted path to pick out part of a composite or tabular value, such as
+ * {@code HeapMemoryUsage.used}. Composite and tabular values are written as {@code name=value} pairs. Attribute names
+ * may also be wildcards, such as {@code *} or {@code *Count}, as described by {@link AttributeExpander}. Each
+ * attribute matched by a wildcard gets a column after the others, written as {@code name=value}, as they differ from
+ * one MBean to the next.
+ * <p/>
+ * With a parallelism greater than one the attributes of several MBeans are read at once. The RMI connector opens
+ * another socket whenever all of its existing ones are busy, so concurrent reads on the one connection really do go
+ * out in parallel. Reads run a bounded window ahead of the output, and each line is written as soon as it and every
+ * line before it are ready.
+ * <p/>
+ * In streaming mode the names are queried one domain at a time rather than all at once, so only one domain's names
+ * are held in memory, and the first lines are written without waiting for the rest. JMX has no way of paging through
+ * a query, so a domain is as small a piece as the query can be split into. If the output is {@link Flushable} it is
+ * flushed whenever the callback is about to wait for the server, so it can be buffered without holding lines back.
+ * <p/>
+ * When aggregating, the values are folded together rather than written, and a line is written at the end for each
+ * group of MBeans, as described by {@link Aggregator}, with the count, sum, min, max, mean and approximate percentiles
+ * of each attribute.
+ */
 public class ListObjectsCallback implements MBeanServerCallback<Void> {
 
+    private static final int READ_AHEAD_PER_THREAD = 4;
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
     private final ObjectName objectNamePattern;
-    private final String attributeName;
+    private final QueryExp query;
+    private final AttributeExpander attributes;
+    private final boolean readsAttributes;
+    private final int parallelism;
+    private final boolean streaming;
+    private final Aggregator aggregator;
     private final Appendable out;
     private final Logger logger;
+    private boolean valuesOnly;
 
     public ListObjectsCallback(ObjectName objectNamePattern, String attributeName, Appendable out, Logger logger) {
+        this(objectNamePattern, attributeName == null ? Collections.<String>emptyList() : Collections.singletonList(attributeName), out, logger);
+    }
+
+    public ListObjectsCallback(String objectNamePattern, String attributeName, Appendable out, Logger logger) throws MalformedObjectNameException {
+        this(new ObjectName(objectNamePattern), attributeName, out, logger);
+    }
+
+    public ListObjectsCallback(ObjectName objectNamePattern, List<String> attributeNames, Appendable out, Logger logger) {
+        this(objectNamePattern, attributeNames, 1, out, logger);
+    }
+
+    public ListObjectsCallback(String objectNamePattern, List<String> attributeNames, Appendable out, Logger logger) throws MalformedObjectNameException {
+        this(new ObjectName(objectNamePattern), attributeNames, out, logger);
+    }
+
+    public ListObjectsCallback(ObjectName objectNamePattern, List<String> attributeNames, int parallelism, Appendable out, Logger logger) {
+        this(objectNamePattern, attributeNames, parallelism, false, out, logger);
+    }
+
+    public ListObjectsCallback(ObjectName objectNamePattern, List<String> attributeNames, int parallelism, boolean streaming, Appendable out, Logger logger) {
+        this(objectNamePattern, null, attributeNames, parallelism, streaming, out, logger);
+    }
+
+    /**
+     * @param query filters the objects on the server, or null to list all those matching the pattern
+     */
+    public ListObjectsCallback(ObjectName objectNamePattern, QueryExp query, List<String> attributeNames, int parallelism, boolean streaming, Appendable out, Logger logger) {
+        this(objectNamePattern, query, attributeNames, parallelism, streaming, false, null, out, logger);
+    }
+
+    /**
+     * @param aggregating write the statistics of the attributes across the MBeans rather than each MBean's values
+     * @param groupKey    when aggregating, the key property to aggregate separately for each value of, or null to
+     *                    aggregate all the MBeans together
+     */
+    public ListObjectsCallback(ObjectName objectNamePattern, QueryExp query, List<String> attributeNames, int parallelism, boolean streaming,
+                               boolean aggregating, String groupKey, Appendable out, Logger logger) {
         this.objectNamePattern = objectNamePattern;
-        this.attributeName = attributeName;
+        this.query = query;
+        this.attributes = new AttributeExpander(attributeNames);
+        this.readsAttributes = !attributeNames.isEmpty();
+        this.parallelism = parallelism;
+        this.streaming = streaming;
+        this.aggregator = aggregating ? new Aggregator(objectNamePattern, groupKey) : null;
         this.out = out;
         this.logger = logger;
     }
 
-    public ListObjectsCallback(String objectNamePattern, String attributeName, Appendable out, Logger logger) throws MalformedObjectNameException {
-        this(new ObjectName(objectNamePattern), attributeName, out, logger);
+    /**
+     * @param valuesOnly whether to leave the object names out, and write only the values of their attributes
+     */
+    public void setValuesOnly(boolean valuesOnly) {
+        this.valuesOnly = valuesOnly;
     }
 
     @Override
     public Void execute(MBeanServerConnection connection) throws IOException {
-        Set<ObjectInstance> objects = connection.queryMBeans(objectNamePattern, null);
-        for (ObjectInstance object : objects) {
-            ObjectName objectName = object.getObjectName();
+        ExecutorService readers = !readsAttributes || parallelism <= 1 ? null : Executors.newFixedThreadPool(parallelism);
+        try {
+            if (streaming) {
+                for (ObjectName domainPattern : domainPatterns(connection)) {
+                    flush();
+                    write(connection, domainPattern, readers);
+                }
+            } else {
+                write(connection, objectNamePattern, readers);
+            }
+        } finally {
+            if (readers != null) {
+                readers.shutdownNow();
+            }
+        }
+        if (aggregator != null) {
+            writeAggregates();
+        }
+        flush();
 
-            out.append(objectName.toString());
-            if (attributeName != null) {
+        return null;
+    }
+
+    /**
+     * @return the pattern narrowed to each of the matching domains in turn, in order
+     */
+    private List<ObjectName> domainPatterns(MBeanServerConnection connection) throws IOException {
+        String[] domains = connection.getDomains();
+        Arrays.sort(domains);
+        String canonical = objectNamePattern.getCanonicalName();
+        String keys = canonical.substring(canonical.indexOf(':') + 1);
+        Pattern domainPattern = Globs.toRegex(objectNamePattern.getDomain());
+        List<ObjectName> patterns = new ArrayList<ObjectName>();
+        for (String domain : domains) {
+            if (domainPattern.matcher(domain).matches()) {
                 try {
-                    Object attributeValue = connection.getAttribute(objectName, attributeName);
-                    out.append("\t ");
-                    out.append(attributeValue.toString());
-                } catch (MBeanException e) {
-                    // wraps exception thrown by mbean's getter
-                    logger.error("{} MBean threw Exception executing getter for {} {}", new Object[]{objectName, attributeName, e.getTargetException()});
-                } catch (AttributeNotFoundException e) {
-                    // attribute not accessible in mbean
-                    logger.error("attribute {} was not accessible in {} MBean", attributeName, objectName);
-                } catch (InstanceNotFoundException e) {
-                    // mbean doesn't exist on server
-                    // There is a small race window for this to happen, but it's quite unlikely. The server has just told us that the object exists.
-                    logger.debug("MBean {} disappeared", objectName);
-                } catch (ReflectionException e) {
-                    // wraps Exception thrown when trying to invoke getter (javadoc for connection.getAttribute says "invoke setter"???)
-                    logger.error("{} MBean threw Exception executing getter for {} {}", new Object[]{objectName, attributeName, e.getTargetException()});
+                    patterns.add(new ObjectName(domain + ":" + keys));
+                } catch (MalformedObjectNameException mone) {
+                    throw new IllegalStateException("couldn't narrow " + objectNamePattern + " to domain " + domain, mone);
                 }
             }
-            out.append(System.getProperty("line.separator"));
         }
+        return patterns;
+    }
 
-        return null;
+    private List<ObjectName> sortedNames(MBeanServerConnection connection, ObjectName pattern) throws IOException {
+        List<ObjectName> objectNames = new ArrayList<ObjectName>(connection.queryNames(pattern, query));
+        Collections.sort(objectNames);
+        return objectNames;
+    }
+
+    private void write(MBeanServerConnection connection, ObjectName pattern, ExecutorService readers) throws IOException {
+        List<ObjectName> objectNames = sortedNames(connection, pattern);
+        if (readsAttributes) {
+            attributes.prepare(connection, pattern, objectNames, logger);
+        }
+        if (readers == null) {
+            for (ObjectName objectName : objectNames) {
+                List<Attribute> values;
+                if (!readsAttributes) {
+                    values = Collections.emptyList();
+                } else {
+                    flush();
+                    values = AttributeFetcher.fetch(connection, objectName, attributes.expansionFor(objectName).attributeNames, logger);
+                }
+                writeLine(objectName, values);
+            }
+        } else {
+            writeInParallel(connection, objectNames, readers);
+        }
+    }
+
+    private void writeInParallel(final MBeanServerConnection connection, List<ObjectName> objectNames, ExecutorService readers) throws IOException {
+        int window = parallelism * READ_AHEAD_PER_THREAD;
+        Deque<Future<List<Attribute>>> pending = new ArrayDeque<Future<List<Attribute>>>(window);
+        int written = 0;
+        for (final ObjectName objectName : objectNames) {
+            if (pending.size() == window) {
+                writeLine(objectNames.get(written++), await(pending.removeFirst()));
+            }
+            pending.addLast(readers.submit(new Callable<List<Attribute>>() {
+                @Override
+                public List<Attribute> call() throws IOException {
+                    return AttributeFetcher.fetch(connection, objectName, attributes.expansionFor(objectName).attributeNames, logger);
+                }
+            }));
+        }
+        while (!pending.isEmpty()) {
+            writeLine(objectNames.get(written++), await(pending.removeFirst()));
+        }
+    }
+
+    private void flush() throws IOException {
+        if (out instanceof Flushable) {
+            ((Flushable) out).flush();
+        }
+    }
+
+    private List<Attribute> await(Future<List<Attribute>> future) throws IOException {
+        if (!future.isDone()) {
+            flush();
+        }
+        try {
+            return future.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for attribute values");
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw (Error) cause;
+        }
+    }
+
+    private void writeLine(final ObjectName objectName, List<Attribute> values) throws IOException {
+        AttributeExpander.Expansion expansion = attributes.expansionFor(objectName);
+        if (aggregator != null) {
+            for (AttributePath column : expansion.paths) {
+                Object value = column.valueIn(values);
+                if (value instanceof CompositeData || value instanceof TabularData) {
+                    OpenDataFlattener.flatten(column.getName(), value, new OpenDataFlattener.Visitor() {
+                        @Override
+                        public void leaf(String name, Object leafValue) {
+                            aggregator.add(objectName, name, leafValue);
+                        }
+                    });
+                } else {
+                    aggregator.add(objectName, column.getName(), value);
+                }
+            }
+            return;
+        }
+        boolean separate = !valuesOnly;
+        if (!valuesOnly) {
+            out.append(objectName.toString());
+        }
+        for (int i = 0; i < expansion.paths.length; i++) {
+            AttributePath column = expansion.paths[i];
+            Object value = column.valueIn(values);
+            // keep the columns aligned when an attribute couldn't be read, but columns matched by a wildcard differ
+            // from one MBean to the next anyway, so they're labelled rather than aligned
+            boolean labelled = i >= expansion.namedCount;
+            if (labelled && value == AttributePath.MISSING) {
+                continue;
+            }
+            if (separate) {
+                out.append("\t ");
+            }
+            separate = true;
+            if (value instanceof CompositeData || value instanceof TabularData) {
+                writeFlattened(labelled ? column.getName() : "", value);
+            } else if (value != AttributePath.MISSING) {
+                if (labelled) {
+                    out.append(column.getName()).append('=');
+                }
+                out.append(String.valueOf(value));
+            }
+        }
+        out.append(LINE_SEPARATOR);
+    }
+
+    /**
+     * Writes a line for each group, with a column for each attribute holding its name followed by its statistics as
+     * {@code name=value} pairs.
+     */
+    private void writeAggregates() throws IOException {
+        final ObjectName[] currentGroup = {null};
+        aggregator.visit(new Aggregator.Visitor() {
+            @Override
+            public void aggregate(ObjectName group, String attributeName, Aggregate aggregate) throws IOException {
+                if (!group.equals(currentGroup[0])) {
+                    if (currentGroup[0] != null) {
+                        out.append(LINE_SEPARATOR);
+                    }
+                    out.append(group.toString());
+                    currentGroup[0] = group;
+                }
+                out.append("\t ").append(attributeName);
+                aggregate.visit("", new OpenDataFlattener.Visitor() {
+                    @Override
+                    public void leaf(String name, Object value) throws IOException {
+                        out.append(' ').append(name).append('=').append(String.valueOf(value));
+                    }
+                });
+            }
+        });
+        if (currentGroup[0] != null) {
+            out.append(LINE_SEPARATOR);
+        }
+        aggregator.clear();
+    }
+
+    /**
+     * Writes a composite or tabular value as space separated {@code name=value} pairs, rather than its toString.
+     *
+     * @param name put in front of each pair's name, or empty to leave them as they are
+     */
+    private void writeFlattened(String name, Object value) throws IOException {
+        final boolean[] first = {true};
+        OpenDataFlattener.flatten(name, value, new OpenDataFlattener.Visitor() {
+            @Override
+            public void leaf(String name, Object leafValue) throws IOException {
+                if (!first[0]) {
+                    out.append(' ');
+                }
+                first[0] = false;
+                out.append(name).append('=').append(String.valueOf(leafValue));
+            }
+        });
     }
 }
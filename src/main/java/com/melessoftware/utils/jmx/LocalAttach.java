@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.melessoftware.utils.jmx;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.remote.JMXServiceURL;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Properties;
+
+/**
+ * Finds the address of the local management agent of another JVM on this host, starting the agent if it isn't
+ * running, so that the JVM can be reached without it having a remote JMX port open.
+ * <p/>
+ * The agent is started through the attach API, which is in {@code tools.jar} up to Java 8 and in the
+ * {@code jdk.attach} module after that. It is used by reflection so that it needn't be on the class path to build or
+ * run against remote targets, and {@code tools.jar} is loaded from the JDK when it isn't on the class path. Only a
+ * JDK has the attach API, not a JRE.
+ * <p/>
+ * Attaching takes a while, so the address is kept in a {@link PrivateFiles private file} in the temporary directory,
+ * and later runs use that. An address that turns out to be stale, because the JVM has gone and another has since
+ * been given the same pid, has to be {@link #forget(int) forgotten} and found again.
+ */
+public final class LocalAttach {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LocalAttach.class);
+
+    private static final String LOCAL_CONNECTOR_ADDRESS_PROPERTY = "com.sun.management.jmxremote.localConnectorAddress";
+    private static final String VIRTUAL_MACHINE_CLASS = "com.sun.tools.attach.VirtualMachine";
+    private static final String MANAGEMENT_AGENT_JAR = "lib" + File.separator + "management-agent.jar";
+    private static final String MANAGEMENT_AGENT_OPTIONS = "com.sun.management.jmxremote";
+
+    private LocalAttach() {
+    }
+
+    /**
+     * @param useCached whether an address found by an earlier run can be used without checking it
+     * @return the address of the JVM's local management agent
+     */
+    public static JMXServiceURL connectorAddress(int pid, boolean useCached) throws IOException {
+        if (useCached) {
+            String cached = readCached(pid);
+            if (cached != null) {
+                LOG.debug("using cached connector address for process {}", pid);
+                return new JMXServiceURL(cached);
+            }
+        }
+        String address = attach(pid);
+        writeCached(pid, address);
+        return new JMXServiceURL(address);
+    }
+
+    /**
+     * @return whether there's a cached address for the JVM
+     */
+    public static boolean isCached(int pid) {
+        return cacheFile(pid).isFile();
+    }
+
+    /**
+     * Forgets the cached address for the JVM, so that the next lookup attaches to it again.
+     */
+    public static void forget(int pid) {
+        File file = cacheFile(pid);
+        if (file.exists() && !file.delete()) {
+            LOG.warn("couldn't delete {}", file);
+        }
+    }
+
+    private static String attach(int pid) throws IOException {
+        Class<?> virtualMachine = virtualMachineClass();
+        Object vm = invoke(method(virtualMachine, "attach", String.class), null, String.valueOf(pid));
+        try {
+            String address = localConnectorAddress(virtualMachine, vm);
+            if (address == null) {
+                startAgent(virtualMachine, vm, pid);
+                address = localConnectorAddress(virtualMachine, vm);
+            }
+            if (address == null) {
+                throw new IOException("couldn't start the management agent in process " + pid);
+            }
+            return address;
+        } finally {
+            try {
+                invoke(method(virtualMachine, "detach"), vm);
+            } catch (IOException ioe) {
+                LOG.debug("exception detaching from process " + pid, ioe);
+            }
+        }
+    }
+
+    private static String localConnectorAddress(Class<?> virtualMachine, Object vm) throws IOException {
+        Properties properties = (Properties) invoke(method(virtualMachine, "getAgentProperties"), vm);
+        return properties.getProperty(LOCAL_CONNECTOR_ADDRESS_PROPERTY);
+    }
+
+    private static void startAgent(Class<?> virtualMachine, Object vm, int pid) throws IOException {
+        Method startLocalManagementAgent;
+        try {
+            startLocalManagementAgent = virtualMachine.getMethod("startLocalManagementAgent");
+        } catch (NoSuchMethodException nsme) {
+            // before Java 8 the agent has to be loaded from the target's own JDK
+            Properties properties = (Properties) invoke(method(virtualMachine, "getSystemProperties"), vm);
+            File agent = new File(properties.getProperty("java.home"), MANAGEMENT_AGENT_JAR);
+            LOG.debug("loading {} into process {}", agent, pid);
+            invoke(method(virtualMachine, "loadAgent", String.class, String.class), vm, agent.getPath(), MANAGEMENT_AGENT_OPTIONS);
+            return;
+        }
+        LOG.debug("starting the local management agent in process {}", pid);
+        invoke(startLocalManagementAgent, vm);
+    }
+
+    private static Class<?> virtualMachineClass() throws IOException {
+        try {
+            return Class.forName(VIRTUAL_MACHINE_CLASS);
+        } catch (ClassNotFoundException cnfe) {
+            // up to Java 8 it's in the JDK's tools.jar, which isn't on the class path unless put there
+            File javaHome = new File(System.getProperty("java.home"));
+            File toolsJar = new File(javaHome.getParentFile(), "lib" + File.separator + "tools.jar");
+            if (!toolsJar.isFile()) {
+                throw new IOException("the attach API isn't available, run with a JDK rather than a JRE");
+            }
+            try {
+                ClassLoader loader = new URLClassLoader(new URL[]{toolsJar.toURI().toURL()});
+                return Class.forName(VIRTUAL_MACHINE_CLASS, true, loader);
+            } catch (ClassNotFoundException e) {
+                throw new IOException("the attach API isn't in " + toolsJar);
+            }
+        }
+    }
+
+    private static Method method(Class<?> type, String name, Class<?>... parameterTypes) throws IOException {
+        try {
+            return type.getMethod(name, parameterTypes);
+        } catch (NoSuchMethodException nsme) {
+            throw new IOException("unsupported attach API, " + type.getName() + " has no " + name + " method");
+        }
+    }
+
+    private static Object invoke(Method method, Object target, Object... args) throws IOException {
+        try {
+            return method.invoke(target, args);
+        } catch (IllegalAccessException iae) {
+            throw new IOException("can't use the attach API: " + iae.getMessage(), iae);
+        } catch (InvocationTargetException ite) {
+            Throwable cause = ite.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            // such as AttachNotSupportedException, when there's no such process or it belongs to another user
+            throw new IOException(cause.getMessage() == null ? cause.toString() : cause.getMessage(), cause);
+        }
+    }
+
+    private static File cacheFile(int pid) {
+        return PrivateFiles.tempFile(pid + ".address");
+    }
+
+    private static String readCached(int pid) {
+        File file = cacheFile(pid);
+        try {
+            return PrivateFiles.readFirstLine(file);
+        } catch (IOException ioe) {
+            LOG.debug("couldn't read " + file, ioe);
+            return null;
+        }
+    }
+
+    private static void writeCached(int pid, String address) {
+        try {
+            PrivateFiles.write(cacheFile(pid), address);
+        } catch (IOException ioe) {
+            LOG.debug("couldn't cache the connector address for process " + pid, ioe);
+        }
+    }
+}
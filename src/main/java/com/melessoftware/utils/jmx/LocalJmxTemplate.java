@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.melessoftware.utils.jmx;
+
+import javax.management.MBeanServerConnection;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+import java.io.IOException;
+
+/**
+ * Connects afresh for each callback, like {@link SimpleJmxTemplate}, to a JVM on this host found by its pid through
+ * {@link LocalAttach}.
+ * <p/>
+ * The cached connector address is used if there is one. If connecting to it fails, it's taken to be stale and the
+ * JVM is attached to again to find the current one.
+ */
+public class LocalJmxTemplate implements JmxTemplate {
+
+    private final int pid;
+
+    public LocalJmxTemplate(int pid) {
+        this.pid = pid;
+    }
+
+    @Override
+    public <T> T runWithConnection(MBeanServerCallback<T> callback) throws IOException {
+        JMXConnector connector = connect();
+        try {
+            MBeanServerConnection connection = connector.getMBeanServerConnection();
+            return callback.execute(connection);
+        } finally {
+            connector.close();
+        }
+    }
+
+    private JMXConnector connect() throws IOException {
+        boolean cached = LocalAttach.isCached(pid);
+        JMXServiceURL address = LocalAttach.connectorAddress(pid, true);
+        try {
+            return JMXConnectorFactory.connect(address);
+        } catch (IOException ioe) {
+            if (!cached) {
+                throw ioe;
+            }
+            LocalAttach.forget(pid);
+            return JMXConnectorFactory.connect(LocalAttach.connectorAddress(pid, false));
+        }
+    }
+
+    @Override
+    public void close() {
+        // don't need to do anything as we don't maintain resources
+    }
+}
@@ -22,56 +22,96 @@ package com.melessoftware.utils.jmx;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.management.AttributeNotFoundException;
-import javax.management.InstanceNotFoundException;
-import javax.management.MBeanException;
+import javax.management.Attribute;
 import javax.management.MBeanServerConnection;
 import javax.management.MalformedObjectNameException;
-import javax.management.ObjectInstance;
 import javax.management.ObjectName;
-import javax.management.ReflectionException;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+import java.io.Flushable;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
 import java.util.Set;
 
+/**
+ * Reads attributes of the matching MBeans and passes their values to a sink.
+ * <p/>
+ * Attribute names may have a dotted path to pick out part of a composite or tabular value, such as
+ * {@code HeapMemoryUsage.used}, and composite and tabular values are broken down into their simple values, each passed
+ * on separately with a dotted name. Attribute names may also be wildcards, such as {@code *} or {@code *Count}, to read
+ * every readable attribute that matches, as described by {@link AttributeExpander}.
+ * <p/>
+ * If the sink is {@link Flushable} it is flushed once every MBean has been read, marking the end of the tick. It's
+ * flushed even if reading fails part way, so that one tick's values aren't mixed up with the next's.
+ */
 public class LogAttributeCallback implements MBeanServerCallback<Void> {
 
-    private static final String LOG_PATTERN = "{} {} {}";
-
-    private ObjectName objectNamePattern;
-    private String attributeName;
+    private ObjectNameCache objectNames;
+    private AttributeExpander attributes;
+    private SampleSink sink;
     private Logger logger;
 
     public LogAttributeCallback(String objectNamePattern, String attributeName, String logger) throws MalformedObjectNameException {
-        this(new ObjectName(objectNamePattern), attributeName, LoggerFactory.getLogger(logger));
+        this(objectNamePattern, Collections.singletonList(attributeName), logger);
+    }
+
+    public LogAttributeCallback(String objectNamePattern, List<String> attributeNames, String logger) throws MalformedObjectNameException {
+        this(new ObjectName(objectNamePattern), attributeNames, LoggerFactory.getLogger(logger));
     }
 
     public LogAttributeCallback(ObjectName objectNamePattern, String attributeName, Logger logger) {
-        this.objectNamePattern = objectNamePattern;
-        this.attributeName = attributeName;
+        this(objectNamePattern, Collections.singletonList(attributeName), logger);
+    }
+
+    public LogAttributeCallback(ObjectName objectNamePattern, List<String> attributeNames, Logger logger) {
+        this(new ObjectNameCache(objectNamePattern), attributeNames, logger);
+    }
+
+    /**
+     * Lets several callbacks share the names they poll, which are kept up to date from notifications.
+     */
+    public LogAttributeCallback(ObjectNameCache objectNames, List<String> attributeNames, Logger logger) {
+        this(objectNames, attributeNames, new LoggingSampleSink(logger), logger);
+    }
+
+    /**
+     * Sends the values to {@code sink} rather than logging them. Problems reading them are still logged to
+     * {@code logger}.
+     */
+    public LogAttributeCallback(ObjectNameCache objectNames, List<String> attributeNames, SampleSink sink, Logger logger) {
+        this.objectNames = objectNames;
+        this.attributes = new AttributeExpander(attributeNames);
+        this.sink = sink;
         this.logger = logger;
     }
 
     @Override
     public Void execute(MBeanServerConnection connection) throws IOException {
-        Set<ObjectInstance> objects = connection.queryMBeans(objectNamePattern, null);
-        for (ObjectInstance object : objects) {
-            ObjectName objectName = object.getObjectName();
-            try {
-                Object attributeValue = connection.getAttribute(objectName, attributeName);
-                logger.info(LOG_PATTERN, new Object[]{objectName, attributeName, attributeValue});
-            } catch (MBeanException e) {
-                // wraps exception thrown by mbean's getter
-                logger.error("{} MBean threw Exception executing getter for {} {}", new Object[]{objectName, attributeName, e.getTargetException()});
-            } catch (AttributeNotFoundException e) {
-                // attribute not accessible in mbean
-                logger.error("attribute {} was not accessible in {} MBean", attributeName, objectName);
-            } catch (InstanceNotFoundException e) {
-                // mbean doesn't exist on server
-                // There is a small race window for this to happen, but it's quite unlikely. The server has just told us that the object exists.
-                logger.debug("MBean {} disappeared", objectName);
-            } catch (ReflectionException e) {
-                // wraps Exception thrown when trying to invoke getter (javadoc for connection.getAttribute says "invoke setter"???)
-                logger.error("{} MBean threw Exception executing getter for {} {}", new Object[]{objectName, attributeName, e.getTargetException()});
+        try {
+            Set<ObjectName> names = objectNames.getNames(connection);
+            attributes.prepare(connection, objectNames.getObjectNamePattern(), names, logger);
+            for (final ObjectName objectName : names) {
+                AttributeExpander.Expansion expansion = attributes.expansionFor(objectName);
+                List<Attribute> values = AttributeFetcher.fetch(connection, objectName, expansion.attributeNames, logger);
+                final long timestamp = System.currentTimeMillis();
+                for (AttributePath path : expansion.paths) {
+                    Object value = path.valueIn(values);
+                    if (value instanceof CompositeData || value instanceof TabularData) {
+                        OpenDataFlattener.flatten(path.getName(), value, new OpenDataFlattener.Visitor() {
+                            @Override
+                            public void leaf(String name, Object leafValue) throws IOException {
+                                sink.sample(timestamp, objectName, name, leafValue);
+                            }
+                        });
+                    } else if (value != AttributePath.MISSING) {
+                        sink.sample(timestamp, objectName, path.getName(), value);
+                    }
+                }
+            }
+        } finally {
+            if (sink instanceof Flushable) {
+                ((Flushable) sink).flush();
             }
         }
 
@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.melessoftware.utils.jmx;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.AttributeChangeNotification;
+import javax.management.InstanceNotFoundException;
+import javax.management.ListenerNotFoundException;
+import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
+import javax.management.MalformedObjectNameException;
+import javax.management.Notification;
+import javax.management.NotificationBroadcaster;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.relation.MBeanServerNotificationFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Logs the notifications emitted by the matching MBeans, including ones registered later, as they arrive.
+ * <p/>
+ * Listeners only survive as long as the connection they were added through, so this is meant to be run through a
+ * {@link ProxyJmxTemplate}, which adds them again after a reconnect. The first run adds the listeners. After that
+ * each run is a cheap round trip that lets the template notice a broken connection and reconnect.
+ * <p/>
+ * Registrations made while disconnected are never notified, and the template drops the listeners of MBeans that had
+ * gone by the time it reconnected, so the first run after a reconnect, which is handed a new connection, takes off
+ * the listeners it added before and starts again from a fresh query.
+ */
+public class LogNotificationsCallback implements MBeanServerCallback<Void> {
+
+    private static final String LOG_PATTERN = "{} {} {}";
+    private static final String LOG_PATTERN_WITH_DATA = "{} {} {} {}";
+
+    private final ObjectName objectNamePattern;
+    private final Logger logger;
+
+    private final NotificationListener listener = new NotificationListener() {
+        @Override
+        public void handleNotification(Notification notification, Object handback) {
+            if (notification instanceof AttributeChangeNotification) {
+                // the same shape as the lines written when polling
+                AttributeChangeNotification change = (AttributeChangeNotification) notification;
+                logger.info(LOG_PATTERN, new Object[]{handback, change.getAttributeName(), change.getNewValue()});
+            } else if (notification.getUserData() == null) {
+                logger.info(LOG_PATTERN, new Object[]{handback, notification.getType(), notification.getMessage()});
+            } else {
+                logger.info(LOG_PATTERN_WITH_DATA, new Object[]{handback, notification.getType(), notification.getMessage(), notification.getUserData()});
+            }
+        }
+    };
+
+    private final NotificationListener registrationListener = new RegistrationListener();
+    private final Set<ObjectName> listeningTo = Collections.synchronizedSet(new HashSet<ObjectName>());
+
+    private volatile MBeanServerConnection connection;
+    private boolean listeningForRegistrations;
+    private boolean subscribed;
+
+    public LogNotificationsCallback(String objectNamePattern, String logger) throws MalformedObjectNameException {
+        this(new ObjectName(objectNamePattern), LoggerFactory.getLogger(logger));
+    }
+
+    public LogNotificationsCallback(ObjectName objectNamePattern, Logger logger) {
+        this.objectNamePattern = objectNamePattern;
+        this.logger = logger;
+    }
+
+    @Override
+    public Void execute(MBeanServerConnection connection) throws IOException {
+        if (connection != this.connection) {
+            stopListening(connection);
+            this.connection = connection;
+            subscribed = false;
+        }
+        if (subscribed) {
+            connection.getMBeanCount();
+            return null;
+        }
+        // a run that failed part way through is picked up again, without adding anything twice
+        if (!listeningForRegistrations) {
+            MBeanServerNotificationFilter filter = new MBeanServerNotificationFilter();
+            filter.enableAllObjectNames();
+            try {
+                connection.addNotificationListener(MBeanServerDelegate.DELEGATE_NAME, registrationListener, filter, null);
+            } catch (InstanceNotFoundException e) {
+                logger.warn("server has no MBeanServerDelegate, MBeans registered later won't be listened to");
+            }
+            listeningForRegistrations = true;
+        }
+        for (ObjectName objectName : connection.queryNames(objectNamePattern, null)) {
+            listenTo(objectName);
+        }
+        subscribed = true;
+        return null;
+    }
+
+    private void listenTo(ObjectName objectName) throws IOException {
+        synchronized (listeningTo) {
+            if (listeningTo.contains(objectName)) {
+                return;
+            }
+            try {
+                if (connection.isInstanceOf(objectName, NotificationBroadcaster.class.getName())) {
+                    connection.addNotificationListener(objectName, listener, null, objectName);
+                    listeningTo.add(objectName);
+                }
+            } catch (InstanceNotFoundException e) {
+                // There is a small race window for this to happen, but it's quite unlikely. The server has just told us that the object exists.
+                logger.debug("MBean {} disappeared", objectName);
+            }
+        }
+    }
+
+    /**
+     * Takes off the listeners added through earlier connections, whether or not the template added them again, so that
+     * the fresh query that follows adds each exactly once. The names are forgotten as they're done, so a run that
+     * fails part way through leaves only the rest for the next.
+     */
+    private void stopListening(MBeanServerConnection connection) throws IOException {
+        synchronized (listeningTo) {
+            for (ObjectName objectName : new ArrayList<ObjectName>(listeningTo)) {
+                try {
+                    connection.removeNotificationListener(objectName, listener);
+                } catch (InstanceNotFoundException e) {
+                    logger.trace("MBean {} unregistered while disconnected", objectName);
+                } catch (ListenerNotFoundException e) {
+                    logger.trace("listener for MBean {} was dropped while disconnected", objectName);
+                }
+                listeningTo.remove(objectName);
+            }
+        }
+    }
+
+    private class RegistrationListener implements NotificationListener {
+
+        @Override
+        public void handleNotification(Notification notification, Object handback) {
+            if (!(notification instanceof MBeanServerNotification)) {
+                return;
+            }
+            ObjectName objectName = ((MBeanServerNotification) notification).getMBeanName();
+            if (!objectNamePattern.apply(objectName)) {
+                return;
+            }
+            try {
+                if (MBeanServerNotification.REGISTRATION_NOTIFICATION.equals(notification.getType())) {
+                    listenTo(objectName);
+                } else if (listeningTo.remove(objectName)) {
+                    connection.removeNotificationListener(objectName, listener);
+                }
+            } catch (InstanceNotFoundException e) {
+                // gone already, and the server has dropped its listeners with it
+                logger.trace("MBean {} already unregistered", objectName);
+            } catch (ListenerNotFoundException e) {
+                logger.trace("MBean {} wasn't being listened to", objectName);
+            } catch (IOException ioe) {
+                logger.debug("exception changing listeners for " + objectName, ioe);
+            }
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.melessoftware.utils.jmx;
+
+import org.slf4j.Logger;
+
+import javax.management.ObjectName;
+
+/**
+ * Logs each sample as a line of text with the object name, attribute name and value.
+ * <p/>
+ * The time the log gives each line is when it was written, which is only when the value was read if the sample is
+ * written by the thread that read it. Samples handed over through a {@link SampleQueue} can be written some time
+ * later, so for those the line can start with the time the value was read, in milliseconds since the epoch.
+ */
+public class LoggingSampleSink implements SampleSink {
+
+    private static final String LOG_PATTERN = "{} {} {}";
+    private static final String TIMESTAMPED_LOG_PATTERN = "{} {} {} {}";
+
+    private final Logger logger;
+    private final boolean timestamped;
+
+    public LoggingSampleSink(Logger logger) {
+        this(logger, false);
+    }
+
+    /**
+     * @param timestamped whether to start each line with the time the value was read
+     */
+    public LoggingSampleSink(Logger logger, boolean timestamped) {
+        this.logger = logger;
+        this.timestamped = timestamped;
+    }
+
+    @Override
+    public void sample(long timestamp, ObjectName objectName, String attributeName, Object value) {
+        if (timestamped) {
+            logger.info(TIMESTAMPED_LOG_PATTERN, new Object[]{timestamp, objectName, attributeName, value});
+        } else {
+            logger.info(LOG_PATTERN, new Object[]{objectName, attributeName, value});
+        }
+    }
+
+    @Override
+    public void close() {
+        // nothing to do, the logging framework looks after its own output
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.melessoftware.utils.jmx;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.QueryExp;
+import javax.management.relation.MBeanServerNotificationFilter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Keeps the set of names matching a pattern without querying the server on every use.
+ * <p/>
+ * The server is queried once per connection, and the set is then kept up to date from the registration and
+ * unregistration notifications sent by the {@link MBeanServerDelegate}. The delegate numbers its notifications
+ * consecutively, so a gap in the sequence means some were lost, and the set is queried afresh. A new connection,
+ * as made by {@link PersistentJmxTemplate} after a failure, always starts with a fresh query.
+ * <p/>
+ * If the server won't accept the listener the cache falls back to querying every time.
+ * <p/>
+ * A query expression filters on the objects' attributes, which change without any notification, so a cache with one
+ * queries every time too, passing the expression on so that only the names that pass come back.
+ */
+public class ObjectNameCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ObjectNameCache.class);
+
+    private final ObjectName objectNamePattern;
+    private final QueryExp query;
+    private final NotificationListener listener = new RegistrationListener();
+    private final MBeanServerNotificationFilter filter = new MBeanServerNotificationFilter();
+
+    private MBeanServerConnection subscribedConnection;
+    private boolean subscribed;
+
+    private volatile Set<ObjectName> names;
+    private boolean stale = true;
+    private Query inFlight;
+    private long lastSequenceNumber;
+
+    public ObjectNameCache(ObjectName objectNamePattern) {
+        this(objectNamePattern, null);
+    }
+
+    public ObjectNameCache(ObjectName objectNamePattern, QueryExp query) {
+        this.objectNamePattern = objectNamePattern;
+        this.query = query;
+        filter.enableAllObjectNames();
+    }
+
+    public ObjectName getObjectNamePattern() {
+        return objectNamePattern;
+    }
+
+    /**
+     * @return an unmodifiable snapshot of the names currently matching the pattern
+     */
+    public Set<ObjectName> getNames(MBeanServerConnection connection) throws IOException {
+        if (query != null) {
+            return Collections.unmodifiableSet(connection.queryNames(objectNamePattern, query));
+        }
+        boolean listening;
+        synchronized (this) {
+            listening = connection == subscribedConnection ? subscribed : subscribe(connection);
+        }
+        if (!listening) {
+            return Collections.unmodifiableSet(connection.queryNames(objectNamePattern, null));
+        }
+        Query mine;
+        while (true) {
+            Query inFlight;
+            synchronized (this) {
+                if (this.inFlight == null) {
+                    if (!stale) {
+                        return names;
+                    }
+                    // notifications arriving while we query are held back and replayed over the result. If one of
+                    // them shows a gap the listener marks us stale again and the next call queries again
+                    mine = new Query();
+                    this.inFlight = mine;
+                    stale = false;
+                    break;
+                }
+                inFlight = this.inFlight;
+            }
+            // someone else is already querying, and their result will do for us too
+            inFlight.await();
+        }
+        Set<ObjectName> queried = null;
+        try {
+            queried = new HashSet<ObjectName>(connection.queryNames(objectNamePattern, null));
+            return mine.complete(queried);
+        } finally {
+            if (queried == null) {
+                mine.fail();
+            }
+        }
+    }
+
+    private void apply(Set<ObjectName> names, MBeanServerNotification notification) {
+        ObjectName objectName = notification.getMBeanName();
+        if (!objectNamePattern.apply(objectName)) {
+            return;
+        }
+        if (MBeanServerNotification.REGISTRATION_NOTIFICATION.equals(notification.getType())) {
+            names.add(objectName);
+        } else if (MBeanServerNotification.UNREGISTRATION_NOTIFICATION.equals(notification.getType())) {
+            names.remove(objectName);
+            unregistered(objectName);
+        }
+    }
+
+    /**
+     * Called, holding the cache's lock, for each matching name that has gone from the server, whether seen going by
+     * its notification or missing from a fresh query. The name may be registered again for another object, so
+     * anything kept about the old one should be forgotten here.
+     */
+    protected void unregistered(ObjectName objectName) {
+    }
+
+    /**
+     * Moves the listener to a new connection, holding the lock so that callers with different connections take turns.
+     *
+     * @return whether the listener was added
+     */
+    private boolean subscribe(MBeanServerConnection connection) throws IOException {
+        unsubscribe();
+        subscribedConnection = connection;
+        subscribed = false;
+        stale = true;
+        // a query still running on the previous connection is no use to anyone calling with this one
+        inFlight = null;
+        lastSequenceNumber = 0;
+        try {
+            connection.addNotificationListener(MBeanServerDelegate.DELEGATE_NAME, listener, filter, connection);
+            subscribed = true;
+        } catch (IOException ioe) {
+            // try again with whatever connection we're given next
+            subscribedConnection = null;
+            throw ioe;
+        } catch (InstanceNotFoundException e) {
+            LOG.info("server has no MBeanServerDelegate, names matching {} will be queried on every use", objectNamePattern);
+        } catch (UnsupportedOperationException e) {
+            LOG.info("connection doesn't support notifications, names matching {} will be queried on every use", objectNamePattern);
+        }
+        return subscribed;
+    }
+
+    /**
+     * Takes the listener off the previous connection. That fails if the connection has been closed, which takes its
+     * listeners with it, but a wrapper around a connection that's still open would otherwise leave one listener
+     * behind on the server for each time it was replaced.
+     */
+    private void unsubscribe() {
+        MBeanServerConnection previous = subscribedConnection;
+        if (previous == null || !subscribed) {
+            return;
+        }
+        try {
+            previous.removeNotificationListener(MBeanServerDelegate.DELEGATE_NAME, listener, filter, previous);
+        } catch (IOException ioe) {
+            LOG.trace("couldn't remove listener from previous connection", ioe);
+        } catch (JMException jme) {
+            LOG.trace("couldn't remove listener from previous connection", jme);
+        } catch (RuntimeException re) {
+            LOG.trace("couldn't remove listener from previous connection", re);
+        }
+    }
+
+    private class RegistrationListener implements NotificationListener {
+
+        @Override
+        public void handleNotification(Notification notification, Object handback) {
+            if (!(notification instanceof MBeanServerNotification)) {
+                return;
+            }
+            synchronized (ObjectNameCache.this) {
+                if (handback != subscribedConnection) {
+                    // left over from a connection we've since replaced
+                    return;
+                }
+                long sequenceNumber = notification.getSequenceNumber();
+                if (lastSequenceNumber > 0 && sequenceNumber > 0 && sequenceNumber != lastSequenceNumber + 1) {
+                    LOG.debug("missed registration notifications for {}, will query again", objectNamePattern);
+                    stale = true;
+                }
+                lastSequenceNumber = sequenceNumber;
+                if (inFlight != null) {
+                    inFlight.pending.add((MBeanServerNotification) notification);
+                } else if (!stale) {
+                    // copy on write, so callers can keep using the snapshot they were given
+                    Set<ObjectName> updated = new HashSet<ObjectName>(names);
+                    apply(updated, (MBeanServerNotification) notification);
+                    names = Collections.unmodifiableSet(updated);
+                }
+            }
+        }
+    }
+
+    /**
+     * One query of the server, with the notifications that arrived while it was running, which callers wanting the
+     * names at the same time wait for rather than starting queries of their own.
+     */
+    private class Query {
+
+        private final CountDownLatch done = new CountDownLatch(1);
+        private final List<MBeanServerNotification> pending = new ArrayList<MBeanServerNotification>();
+
+        private Set<ObjectName> complete(Set<ObjectName> queried) {
+            synchronized (ObjectNameCache.this) {
+                for (MBeanServerNotification notification : pending) {
+                    apply(queried, notification);
+                }
+                Set<ObjectName> result = Collections.unmodifiableSet(queried);
+                if (inFlight == this) {
+                    if (names != null) {
+                        for (ObjectName objectName : names) {
+                            if (!queried.contains(objectName)) {
+                                unregistered(objectName);
+                            }
+                        }
+                    }
+                    names = result;
+                    inFlight = null;
+                }
+                done.countDown();
+                return result;
+            }
+        }
+
+        private void fail() {
+            synchronized (ObjectNameCache.this) {
+                if (inFlight == this) {
+                    // the callers waiting for us will try again themselves
+                    stale = true;
+                    inFlight = null;
+                }
+                done.countDown();
+            }
+        }
+
+        private void await() throws InterruptedIOException {
+            try {
+                done.await();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted waiting for the names matching " + objectNamePattern);
+            }
+        }
+    }
+}
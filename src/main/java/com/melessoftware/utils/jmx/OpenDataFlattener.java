@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.melessoftware.utils.jmx;
+
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.TabularData;
+import javax.management.openmbean.TabularType;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Breaks {@link CompositeData} and {@link TabularData} values down into their simple values, each with a dotted name
+ * like {@code HeapMemoryUsage.used}.
+ * <p/>
+ * Composite items are named by their keys, in order. Table rows are named by their index values, joined by commas if
+ * there's more than one, and the index items themselves are left out. Rows with a single item apart from the index,
+ * which is how MXBeans return maps, are named by the index alone.
+ * <p/>
+ * The keys to read and the names they produce are worked out once for each type and name and then cached, so
+ * flattening a value is a walk over arrays.
+ */
+final class OpenDataFlattener {
+
+    interface Visitor {
+
+        void leaf(String name, Object value) throws IOException;
+    }
+
+    // stops a table with ever changing keys filling the caches
+    private static final int MAX_CACHED_NAMES = 1024;
+
+    private static final ConcurrentMap<OpenType<?>, Object> PLANS = new ConcurrentHashMap<OpenType<?>, Object>();
+
+    private OpenDataFlattener() {
+    }
+
+    /**
+     * Passes each simple value within {@code value} to the visitor, or {@code value} itself if it's simple.
+     *
+     * @param name the name of the value, which the names of the parts within it are added to. May be empty
+     */
+    static void flatten(String name, Object value, Visitor visitor) throws IOException {
+        if (value instanceof CompositeData) {
+            CompositeData data = (CompositeData) value;
+            CompositePlan plan = compositePlan(data.getCompositeType());
+            flattenItems(plan, plan.namesFor(name), data, visitor);
+        } else if (value instanceof TabularData) {
+            TabularData table = (TabularData) value;
+            TabularPlan plan = tabularPlan(table.getTabularType());
+            for (Object row : table.values()) {
+                CompositeData data = (CompositeData) row;
+                String rowName = plan.rowName(name, data);
+                if (plan.valueKey != null) {
+                    flatten(rowName, data.get(plan.valueKey), visitor);
+                } else {
+                    flattenItems(plan.valuePlan, plan.valuePlan.namesFor(rowName), data, visitor);
+                }
+            }
+        } else {
+            visitor.leaf(name, value);
+        }
+    }
+
+    private static void flattenItems(CompositePlan plan, String[] names, CompositeData data, Visitor visitor) throws IOException {
+        for (int i = 0; i < plan.keys.length; i++) {
+            flatten(names[i], data.get(plan.keys[i]), visitor);
+        }
+    }
+
+    /**
+     * @return the key of the only item in a row apart from its index, or null if there's more than one
+     */
+    static String singleValueKey(CompositeType rowType, Collection<String> indexNames) {
+        if (rowType.keySet().size() != indexNames.size() + 1) {
+            return null;
+        }
+        for (String key : rowType.keySet()) {
+            if (!indexNames.contains(key)) {
+                return key;
+            }
+        }
+        return null;
+    }
+
+    private static String join(String prefix, String name) {
+        return prefix.isEmpty() ? name : prefix + "." + name;
+    }
+
+    private static CompositePlan compositePlan(CompositeType type) {
+        CompositePlan plan = (CompositePlan) PLANS.get(type);
+        if (plan == null) {
+            plan = new CompositePlan(type.keySet());
+            PLANS.putIfAbsent(type, plan);
+        }
+        return plan;
+    }
+
+    private static TabularPlan tabularPlan(TabularType type) {
+        TabularPlan plan = (TabularPlan) PLANS.get(type);
+        if (plan == null) {
+            plan = new TabularPlan(type);
+            PLANS.putIfAbsent(type, plan);
+        }
+        return plan;
+    }
+
+    private static final class CompositePlan {
+
+        private final String[] keys;
+        private final ConcurrentMap<String, String[]> namesByPrefix = new ConcurrentHashMap<String, String[]>();
+
+        private CompositePlan(Collection<String> keys) {
+            TreeSet<String> sorted = new TreeSet<String>(keys);
+            this.keys = sorted.toArray(new String[sorted.size()]);
+        }
+
+        private String[] namesFor(String prefix) {
+            String[] names = namesByPrefix.get(prefix);
+            if (names == null) {
+                names = new String[keys.length];
+                for (int i = 0; i < keys.length; i++) {
+                    names[i] = join(prefix, keys[i]);
+                }
+                if (namesByPrefix.size() < MAX_CACHED_NAMES) {
+                    namesByPrefix.putIfAbsent(prefix, names);
+                }
+            }
+            return names;
+        }
+    }
+
+    private static final class TabularPlan {
+
+        private final String[] indexNames;
+        private final String valueKey;
+        private final CompositePlan valuePlan;
+        private final ConcurrentMap<String, ConcurrentMap<Object, String>> rowNamesByPrefix =
+                new ConcurrentHashMap<String, ConcurrentMap<Object, String>>();
+
+        private TabularPlan(TabularType type) {
+            List<String> index = type.getIndexNames();
+            CompositeType rowType = type.getRowType();
+            indexNames = index.toArray(new String[index.size()]);
+            valueKey = singleValueKey(rowType, index);
+            List<String> valueKeys = new ArrayList<String>(rowType.keySet());
+            valueKeys.removeAll(index);
+            valuePlan = new CompositePlan(valueKeys);
+        }
+
+        private String rowName(String prefix, CompositeData row) {
+            if (indexNames.length != 1) {
+                StringBuilder key = new StringBuilder();
+                for (String indexName : indexNames) {
+                    if (key.length() > 0) {
+                        key.append(',');
+                    }
+                    key.append(row.get(indexName));
+                }
+                return join(prefix, key.toString());
+            }
+
+            Object key = row.get(indexNames[0]);
+            ConcurrentMap<Object, String> rowNames = rowNamesByPrefix.get(prefix);
+            if (rowNames == null) {
+                rowNames = new ConcurrentHashMap<Object, String>();
+                if (rowNamesByPrefix.size() < MAX_CACHED_NAMES) {
+                    ConcurrentMap<Object, String> existing = rowNamesByPrefix.putIfAbsent(prefix, rowNames);
+                    if (existing != null) {
+                        rowNames = existing;
+                    }
+                }
+            }
+            String name = key == null ? null : rowNames.get(key);
+            if (name == null) {
+                name = join(prefix, String.valueOf(key));
+                if (key != null && rowNames.size() < MAX_CACHED_NAMES) {
+                    rowNames.putIfAbsent(key, name);
+                }
+            }
+            return name;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.melessoftware.utils.jmx;
+
+import javax.management.ObjectName;
+import java.io.Flushable;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Renders the samples of each tick as an OpenMetrics text exposition, ready to be served to scrapers.
+ * <p/>
+ * Samples are collected until the sink is flushed, which {@link LogAttributeCallback} does at the end of each tick,
+ * and are then rendered once into the {@link #getSnapshot() snapshot}, so that serving a scrape is just a copy. Each
+ * attribute becomes a metric family named after the domain and the attribute, such as {@code java_lang_ThreadCount},
+ * with the object name's key properties as labels. Counter attributes, which may be wildcards and include the parts
+ * of composite attributes as described in {@link AttributeNameMatcher}, are typed as counters, and everything else as
+ * gauges. Booleans are written as 1 or 0, and values that aren't numbers are dropped.
+ */
+public class OpenMetricsSink implements SampleSink, Flushable {
+
+    public static final String CONTENT_TYPE = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String COUNTER_SUFFIX = "_total";
+
+    private final AttributeNameMatcher counterAttributeNames;
+    // whether each attribute is a counter, so that it's only matched once
+    private final Map<String, Boolean> counters = new HashMap<String, Boolean>();
+
+    // sorted so that scrapes are stable, and each family's samples are together as the format requires
+    private final Map<String, StringBuilder> pending = new TreeMap<String, StringBuilder>();
+    private volatile byte[] snapshot;
+
+    public OpenMetricsSink(Collection<String> counterAttributeNames) {
+        this.counterAttributeNames = new AttributeNameMatcher(counterAttributeNames);
+    }
+
+    @Override
+    public synchronized void sample(long timestamp, ObjectName objectName, String attributeName, Object value) {
+        String number = format(value);
+        if (number == null) {
+            return;
+        }
+        Boolean counter = counters.get(attributeName);
+        if (counter == null) {
+            counter = counterAttributeNames.matches(attributeName);
+            counters.put(attributeName, counter);
+        }
+        String family = metricName(objectName.getDomain() + "_" + attributeName);
+        StringBuilder samples = pending.get(family);
+        if (samples == null) {
+            samples = new StringBuilder();
+            samples.append("# TYPE ").append(family).append(counter ? " counter\n" : " gauge\n");
+            pending.put(family, samples);
+        }
+        samples.append(family);
+        if (counter) {
+            samples.append(COUNTER_SUFFIX);
+        }
+        appendLabels(samples, objectName);
+        samples.append(' ').append(number).append('\n');
+    }
+
+    /**
+     * Renders the samples since the last flush into a new snapshot.
+     */
+    @Override
+    public synchronized void flush() {
+        StringBuilder exposition = new StringBuilder();
+        for (StringBuilder samples : pending.values()) {
+            exposition.append(samples);
+        }
+        exposition.append("# EOF\n");
+        pending.clear();
+        snapshot = exposition.toString().getBytes(UTF_8);
+    }
+
+    /**
+     * @return the exposition rendered at the last flush, or null if there hasn't been one
+     */
+    public byte[] getSnapshot() {
+        return snapshot;
+    }
+
+    @Override
+    public void close() {
+        // nothing to release
+    }
+
+    private static String format(Object value) {
+        if (value instanceof Boolean) {
+            return (Boolean) value ? "1" : "0";
+        }
+        if (value instanceof Double || value instanceof Float) {
+            double number = ((Number) value).doubleValue();
+            if (Double.isInfinite(number)) {
+                return number > 0 ? "+Inf" : "-Inf";
+            }
+            return String.valueOf(number);
+        }
+        if (value instanceof Number) {
+            return String.valueOf(value);
+        }
+        return null;
+    }
+
+    private static void appendLabels(StringBuilder samples, ObjectName objectName) {
+        Map<String, String> properties = new TreeMap<String, String>(objectName.getKeyPropertyList());
+        if (properties.isEmpty()) {
+            return;
+        }
+        samples.append('{');
+        boolean first = true;
+        for (Map.Entry<String, String> property : properties.entrySet()) {
+            if (!first) {
+                samples.append(',');
+            }
+            first = false;
+            String value = property.getValue();
+            if (value.length() > 1 && value.charAt(0) == '"') {
+                value = ObjectName.unquote(value);
+            }
+            samples.append(metricName(property.getKey())).append("=\"");
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '\\' || c == '"') {
+                    samples.append('\\').append(c);
+                } else if (c == '\n') {
+                    samples.append("\\n");
+                } else {
+                    samples.append(c);
+                }
+            }
+            samples.append('"');
+        }
+        samples.append('}');
+    }
+
+    /**
+     * @return the name with anything other than letters, digits and underscores replaced by underscores
+     */
+    private static String metricName(String name) {
+        StringBuilder metricName = new StringBuilder(name.length() + 1);
+        if (name.isEmpty() || Character.isDigit(name.charAt(0))) {
+            metricName.append('_');
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            boolean valid = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+            metricName.append(valid ? c : '_');
+        }
+        return metricName.toString();
+    }
+}
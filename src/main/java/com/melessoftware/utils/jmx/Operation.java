@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.melessoftware.utils.jmx;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.MBeanServerConnection;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An operation of an MBean, picked out by its name and the number of arguments given for it, with the arguments
+ * converted from strings to the types it takes.
+ * <p/>
+ * The types come from the MBean's {@link MBeanInfo}. Only the types that can be written on a command line are
+ * supported: strings, the primitives and their wrappers, and object names. When several overloads take the same number
+ * of arguments, the ones the arguments can't be converted for are ruled out, and it's an error if more than one is
+ * left.
+ */
+final class Operation {
+
+    private final String name;
+    private final String[] signature;
+    private final Object[] params;
+    private final String returnType;
+
+    private Operation(String name, String[] signature, Object[] params, String returnType) {
+        this.name = name;
+        this.signature = signature;
+        this.params = params;
+        this.returnType = returnType;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the MBean has no such operation, or the arguments don't suit it
+     */
+    static Operation resolve(MBeanInfo info, String name, List<String> arguments) {
+        List<Operation> candidates = new ArrayList<Operation>();
+        String reason = null;
+        for (MBeanOperationInfo operation : info.getOperations()) {
+            MBeanParameterInfo[] parameters = operation.getSignature();
+            if (!operation.getName().equals(name) || parameters.length != arguments.size()) {
+                continue;
+            }
+            String[] signature = new String[parameters.length];
+            Object[] params = new Object[parameters.length];
+            try {
+                for (int i = 0; i < parameters.length; i++) {
+                    signature[i] = parameters[i].getType();
+                    params[i] = convert(signature[i], arguments.get(i));
+                }
+                candidates.add(new Operation(name, signature, params, operation.getReturnType()));
+            } catch (IllegalArgumentException iae) {
+                reason = iae.getMessage();
+            }
+        }
+        if (candidates.size() == 1) {
+            return candidates.get(0);
+        }
+        if (candidates.size() > 1) {
+            throw new IllegalArgumentException("more than one " + name + " operation takes " + arguments.size() + " arguments like these");
+        }
+        if (reason != null) {
+            throw new IllegalArgumentException(reason);
+        }
+        throw new IllegalArgumentException("no " + name + " operation taking " + arguments.size() + " arguments");
+    }
+
+    /**
+     * @return whether the operation returns nothing
+     */
+    boolean isVoid() {
+        return "void".equals(returnType) || "java.lang.Void".equals(returnType);
+    }
+
+    Object invoke(MBeanServerConnection connection, ObjectName objectName) throws IOException, InstanceNotFoundException, MBeanException, ReflectionException {
+        return connection.invoke(objectName, name, params, signature);
+    }
+
+    private static Object convert(String type, String argument) {
+        try {
+            if ("java.lang.String".equals(type)) {
+                return argument;
+            } else if ("int".equals(type) || "java.lang.Integer".equals(type)) {
+                return Integer.valueOf(argument);
+            } else if ("long".equals(type) || "java.lang.Long".equals(type)) {
+                return Long.valueOf(argument);
+            } else if ("boolean".equals(type) || "java.lang.Boolean".equals(type)) {
+                if (!"true".equalsIgnoreCase(argument) && !"false".equalsIgnoreCase(argument)) {
+                    throw new IllegalArgumentException("expected true or false, not " + argument);
+                }
+                return Boolean.valueOf(argument);
+            } else if ("double".equals(type) || "java.lang.Double".equals(type)) {
+                return Double.valueOf(argument);
+            } else if ("float".equals(type) || "java.lang.Float".equals(type)) {
+                return Float.valueOf(argument);
+            } else if ("short".equals(type) || "java.lang.Short".equals(type)) {
+                return Short.valueOf(argument);
+            } else if ("byte".equals(type) || "java.lang.Byte".equals(type)) {
+                return Byte.valueOf(argument);
+            } else if ("char".equals(type) || "java.lang.Character".equals(type)) {
+                if (argument.length() != 1) {
+                    throw new IllegalArgumentException("expected a single character, not " + argument);
+                }
+                return argument.charAt(0);
+            } else if ("javax.management.ObjectName".equals(type)) {
+                return new ObjectName(argument);
+            }
+        } catch (NumberFormatException nfe) {
+            throw new IllegalArgumentException("expected a number of type " + type + ", not " + argument);
+        } catch (MalformedObjectNameException mone) {
+            throw new IllegalArgumentException("expected an object name, not " + argument);
+        }
+        throw new IllegalArgumentException("can't pass a " + type + " from the command line");
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder string = new StringBuilder(name).append('(');
+        for (int i = 0; i < params.length; i++) {
+            if (i > 0) {
+                string.append(", ");
+            }
+            string.append(params[i]);
+        }
+        return string.append(')').toString();
+    }
+}
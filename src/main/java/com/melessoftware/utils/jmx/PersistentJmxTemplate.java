@@ -29,23 +29,75 @@ import javax.management.remote.JMXServiceURL;
 import java.io.IOException;
 import java.net.MalformedURLException;
 
-public class PersistentJmxTemplate implements JmxTemplate {
+/**
+ * Keeps one connection open across callbacks, reconnecting after a failure.
+ * <p/>
+ * Failed connection attempts trip a circuit breaker. While it's {@link CircuitState#OPEN OPEN} callbacks fail straight
+ * away with a {@link TargetUnavailableException}, without touching the network, until the backoff delay has passed.
+ * The next callback then makes a single {@link CircuitState#HALF_OPEN HALF_OPEN} attempt, which either closes the
+ * circuit or opens it again for a longer delay. Callers can check {@link #isAvailable()} to skip work cheaply while a
+ * target is known to be down.
+ * <p/>
+ * The template can be shared between threads, which all use the one connection. When a callback fails the connection
+ * is closed, unless another thread has already replaced it.
+ */
+public class PersistentJmxTemplate implements JmxTemplate, AvailabilityAware {
+
+    public enum CircuitState {
+        /** connected, or expected to connect */
+        CLOSED,
+        /** connecting failed, and we're waiting before trying again */
+        OPEN,
+        /** trying to connect again after waiting */
+        HALF_OPEN
+    }
 
     private static final Logger log = LoggerFactory.getLogger(PersistentJmxTemplate.class);
 
     private JMXServiceURL jmxUrl;
+    private final ReconnectBackoff backoff;
 
     private JMXConnector connector;
     private MBeanServerConnection connection;
 
+    private volatile CircuitState state = CircuitState.CLOSED;
+    private volatile long retryAt;
+    private int consecutiveFailures;
+
+    private PollerMetrics metrics;
+
     public PersistentJmxTemplate(JMXServiceURL jmxUrl) {
-        this.jmxUrl = jmxUrl;
+        this(jmxUrl, ReconnectBackoff.DEFAULT);
     }
 
     public PersistentJmxTemplate(String jmxUrl) throws MalformedURLException {
         this(new JMXServiceURL(jmxUrl));
     }
 
+    public PersistentJmxTemplate(JMXServiceURL jmxUrl, ReconnectBackoff backoff) {
+        this.jmxUrl = jmxUrl;
+        this.backoff = backoff;
+    }
+
+    /**
+     * @param metrics where to record connects and failed connects, or null not to
+     */
+    public void setMetrics(PollerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public CircuitState getState() {
+        return state;
+    }
+
+    /**
+     * @return false while the circuit is open and it isn't yet time to try connecting again
+     */
+    @Override
+    public boolean isAvailable() {
+        return state != CircuitState.OPEN || System.currentTimeMillis() >= retryAt;
+    }
+
     @Override
     public <T> T runWithConnection(MBeanServerCallback<T> callback) throws IOException {
         MBeanServerConnection currentConnection = getConnection();
@@ -53,23 +105,27 @@ public class PersistentJmxTemplate implements JmxTemplate {
         try {
             result = callback.execute(currentConnection);
         } catch (IOException ioe) {
-            handleError(ioe);
+            handleError(currentConnection, ioe);
         } catch (RuntimeException re) {
-            handleError(re);
+            handleError(currentConnection, re);
         } catch (Error e) {
-            handleError(e);
+            handleError(currentConnection, e);
         }
         return result;
     }
 
     @Override
-    public void close() throws IOException {
+    public synchronized void close() throws IOException {
         cleanup();
     }
 
-    private <E extends Throwable> void handleError(E error) throws E {
+    private <E extends Throwable> void handleError(MBeanServerConnection failedConnection, E error) throws E {
         try {
-            cleanup();
+            synchronized (this) {
+                if (connection == failedConnection) {
+                    cleanup();
+                }
+            }
         } catch (IOException ioe) {
             log.error("IOException while handling {}. Stack trace logged at debug", error.getClass());
             log.debug("IOException while handling error", ioe);
@@ -77,28 +133,67 @@ public class PersistentJmxTemplate implements JmxTemplate {
         throw error;
     }
 
-    private MBeanServerConnection getConnection() throws IOException {
+    private synchronized MBeanServerConnection getConnection() throws IOException {
         if (connection == null) {
-            if (connector == null) {
-                connector = JMXConnectorFactory.connect(jmxUrl);
+            if (state == CircuitState.OPEN) {
+                long now = System.currentTimeMillis();
+                if (now < retryAt) {
+                    throw new TargetUnavailableException(jmxUrl, retryAt - now);
+                }
+                state = CircuitState.HALF_OPEN;
             }
+            long start = System.nanoTime();
             try {
-                connection = connector.getMBeanServerConnection();
-            } finally {
-                if (connection == null) {
-                    terminateConnector();
+                if (connector == null) {
+                    connector = JMXConnectorFactory.connect(jmxUrl);
+                }
+                try {
+                    connection = connector.getMBeanServerConnection();
+                } finally {
+                    if (connection == null) {
+                        terminateConnector();
+                    }
+                }
+            } catch (IOException ioe) {
+                if (metrics != null) {
+                    metrics.connectFailed(System.nanoTime() - start);
                 }
+                connectFailed(ioe);
+                throw ioe;
             }
+            if (metrics != null) {
+                metrics.connected(System.nanoTime() - start);
+            }
+            if (consecutiveFailures > 0) {
+                log.info("reconnected to {} after {} failed attempts", jmxUrl, consecutiveFailures);
+                consecutiveFailures = 0;
+            }
+            state = CircuitState.CLOSED;
         }
         return connection;
     }
 
+    private void connectFailed(IOException ioe) {
+        consecutiveFailures++;
+        long delay = backoff.delayMillis(consecutiveFailures);
+        retryAt = System.currentTimeMillis() + delay;
+        if (consecutiveFailures == 1) {
+            log.warn("couldn't connect to {}, will retry in {} ms: {}", new Object[]{jmxUrl, delay, ioe.getMessage()});
+        } else {
+            log.debug("couldn't connect to {} after {} attempts, will retry in {} ms", new Object[]{jmxUrl, consecutiveFailures, delay});
+        }
+        state = CircuitState.OPEN;
+    }
+
     private void cleanup() throws IOException {
         connection = null;
         terminateConnector();
     }
 
     private void terminateConnector() throws IOException {
+        if (connector == null) {
+            return;
+        }
         try {
             connector.close();
         } finally {
@@ -0,0 +1,263 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.melessoftware.utils.jmx;
+
+import org.slf4j.Logger;
+
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanException;
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectInstance;
+import javax.management.ObjectName;
+import javax.management.QueryExp;
+import javax.management.ReflectionException;
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * Counts and times what the poller does: ticks, connects, queries, reads and the samples they produce.
+ * <p/>
+ * Everything is recorded with {@link StripedCounter}s and {@link LatencyHistogram}s, so that recording costs a few
+ * uncontended increments and nothing is allocated. The connections handed to callbacks are wrapped by
+ * {@link #instrument(MBeanServerConnection)} to time the queries and reads, and the sink by
+ * {@link #instrument(SampleSink)} to count the samples.
+ */
+public class PollerMetrics implements PollerMetricsMXBean {
+
+    private final StripedCounter ticks = new StripedCounter();
+    private final StripedCounter failedTicks = new StripedCounter();
+    private final StripedCounter missedTicks = new StripedCounter();
+    private final StripedCounter lateTicks = new StripedCounter();
+    private final StripedCounter connects = new StripedCounter();
+    private final StripedCounter connectFailures = new StripedCounter();
+    private final StripedCounter objectsQueried = new StripedCounter();
+    private final StripedCounter samples = new StripedCounter();
+
+    private final LatencyHistogram connectLatency = new LatencyHistogram();
+    private final LatencyHistogram queryLatency = new LatencyHistogram();
+    private final LatencyHistogram readLatency = new LatencyHistogram();
+    private final LatencyHistogram tickLatency = new LatencyHistogram();
+
+    // what had been recorded at the last summary, so each summary covers only the time since
+    private long[] lastTickCounts = new long[0];
+    private long lastTicks;
+    private long lastFailedTicks;
+    private long lastMissedTicks;
+    private long lastSamples;
+    private long lastConnects;
+
+    public void tickCompleted(long nanos, boolean failed) {
+        ticks.increment();
+        if (failed) {
+            failedTicks.increment();
+        }
+        tickLatency.record(nanos);
+    }
+
+    public void ticksMissed(long count) {
+        missedTicks.add(count);
+    }
+
+    public void tickLate() {
+        lateTicks.increment();
+    }
+
+    public void connected(long nanos) {
+        connects.increment();
+        connectLatency.record(nanos);
+    }
+
+    public void connectFailed(long nanos) {
+        connectFailures.increment();
+        connectLatency.record(nanos);
+    }
+
+    /**
+     * @return a connection that passes calls on to {@code connection}, timing the queries and reads
+     */
+    public MBeanServerConnection instrument(MBeanServerConnection connection) {
+        return new InstrumentedConnection(connection);
+    }
+
+    /**
+     * @return a sink that passes samples on to {@code sink}, counting them
+     */
+    public SampleSink instrument(final SampleSink sink) {
+        return new SampleSink() {
+            @Override
+            public void sample(long timestamp, ObjectName objectName, String attributeName, Object value) throws IOException {
+                samples.increment();
+                sink.sample(timestamp, objectName, attributeName, value);
+            }
+
+            @Override
+            public void close() throws IOException {
+                sink.close();
+            }
+        };
+    }
+
+    /**
+     * Logs one line summing up what has happened since the last summary.
+     */
+    public synchronized void logSummary(Logger logger) {
+        long[] tickCounts = tickLatency.getCounts();
+        long[] recentTickCounts = new long[tickCounts.length];
+        for (int i = 0; i < tickCounts.length; i++) {
+            recentTickCounts[i] = tickCounts[i] - (i < lastTickCounts.length ? lastTickCounts[i] : 0);
+        }
+        long currentTicks = ticks.get();
+        long currentFailedTicks = failedTicks.get();
+        long currentMissedTicks = missedTicks.get();
+        long currentSamples = samples.get();
+        long currentConnects = connects.get();
+        logger.info(String.format("ticks=%d failed=%d missed=%d samples=%d connects=%d tick p50=%.3fms p99=%.3fms",
+                currentTicks - lastTicks, currentFailedTicks - lastFailedTicks, currentMissedTicks - lastMissedTicks,
+                currentSamples - lastSamples, currentConnects - lastConnects,
+                LatencyHistogram.percentileMillis(recentTickCounts, 0.5),
+                LatencyHistogram.percentileMillis(recentTickCounts, 0.99)));
+        lastTickCounts = tickCounts;
+        lastTicks = currentTicks;
+        lastFailedTicks = currentFailedTicks;
+        lastMissedTicks = currentMissedTicks;
+        lastSamples = currentSamples;
+        lastConnects = currentConnects;
+    }
+
+    @Override
+    public long getTickCount() {
+        return ticks.get();
+    }
+
+    @Override
+    public long getFailedTickCount() {
+        return failedTicks.get();
+    }
+
+    @Override
+    public long getMissedTickCount() {
+        return missedTicks.get();
+    }
+
+    @Override
+    public long getLateTickCount() {
+        return lateTicks.get();
+    }
+
+    @Override
+    public long getConnectCount() {
+        return connects.get();
+    }
+
+    @Override
+    public long getConnectFailureCount() {
+        return connectFailures.get();
+    }
+
+    @Override
+    public long getObjectsQueriedCount() {
+        return objectsQueried.get();
+    }
+
+    @Override
+    public long getSampleCount() {
+        return samples.get();
+    }
+
+    @Override
+    public LatencySnapshot getConnectLatency() {
+        return connectLatency.snapshot();
+    }
+
+    @Override
+    public LatencySnapshot getQueryLatency() {
+        return queryLatency.snapshot();
+    }
+
+    @Override
+    public LatencySnapshot getReadLatency() {
+        return readLatency.snapshot();
+    }
+
+    @Override
+    public LatencySnapshot getTickLatency() {
+        return tickLatency.snapshot();
+    }
+
+    private class InstrumentedConnection extends DelegatingMBeanServerConnection {
+
+        private final MBeanServerConnection connection;
+
+        private InstrumentedConnection(MBeanServerConnection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        protected MBeanServerConnection delegate() {
+            return connection;
+        }
+
+        @Override
+        public Set<ObjectInstance> queryMBeans(ObjectName name, QueryExp query) throws IOException {
+            long start = System.nanoTime();
+            try {
+                Set<ObjectInstance> instances = connection.queryMBeans(name, query);
+                objectsQueried.add(instances.size());
+                return instances;
+            } finally {
+                queryLatency.record(System.nanoTime() - start);
+            }
+        }
+
+        @Override
+        public Set<ObjectName> queryNames(ObjectName name, QueryExp query) throws IOException {
+            long start = System.nanoTime();
+            try {
+                Set<ObjectName> names = connection.queryNames(name, query);
+                objectsQueried.add(names.size());
+                return names;
+            } finally {
+                queryLatency.record(System.nanoTime() - start);
+            }
+        }
+
+        @Override
+        public Object getAttribute(ObjectName name, String attribute) throws MBeanException, AttributeNotFoundException, InstanceNotFoundException, ReflectionException, IOException {
+            long start = System.nanoTime();
+            try {
+                return connection.getAttribute(name, attribute);
+            } finally {
+                readLatency.record(System.nanoTime() - start);
+            }
+        }
+
+        @Override
+        public AttributeList getAttributes(ObjectName name, String[] attributes) throws InstanceNotFoundException, ReflectionException, IOException {
+            long start = System.nanoTime();
+            try {
+                return connection.getAttributes(name, attributes);
+            } finally {
+                readLatency.record(System.nanoTime() - start);
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.melessoftware.utils.jmx;
+
+/**
+ * How the poller itself is doing, so that it can be watched like the servers it polls.
+ */
+public interface PollerMetricsMXBean {
+
+    long getTickCount();
+
+    long getFailedTickCount();
+
+    long getMissedTickCount();
+
+    long getLateTickCount();
+
+    long getConnectCount();
+
+    long getConnectFailureCount();
+
+    long getObjectsQueriedCount();
+
+    long getSampleCount();
+
+    /**
+     * @return how long connecting took, including failed attempts
+     */
+    LatencySnapshot getConnectLatency();
+
+    /**
+     * @return how long each query for object names took
+     */
+    LatencySnapshot getQueryLatency();
+
+    /**
+     * @return how long each round trip to read attributes took
+     */
+    LatencySnapshot getReadLatency();
+
+    /**
+     * @return how long each tick took, from start to finish
+     */
+    LatencySnapshot getTickLatency();
+}
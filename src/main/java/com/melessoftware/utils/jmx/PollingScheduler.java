@@ -0,0 +1,263 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.melessoftware.utils.jmx;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.MBeanServerConnection;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs callbacks against many targets from a single process.
+ * <p/>
+ * One timer thread fires the ticks, and the JMX work is handed to a fixed pool of {@code threads} worker threads
+ * through a bounded queue. A target that is still busy with its previous tick has the next one skipped rather than
+ * queued, so each target ties up at most one worker or queue slot. When every worker is busy and the queue is full,
+ * the tick is skipped as well, so the thread count stays put however many targets hang, at the cost of their ticks
+ * being missed until the hung ones time out.
+ * <p/>
+ * Ticks fall on wall clock boundaries: every multiple of the period, plus an offset that lets ticks for different
+ * targets be spread across the period. Each tick is scheduled afresh from the clock, so they don't drift. A tick that
+ * starts more than a tenth of a period late is counted as late, and ticks that are skipped, because they were overrun
+ * or the target was still busy, are counted as missed, rather than being bunched up afterwards.
+ * <p/>
+ * The ticks, and the queries and reads the callbacks make, are recorded in a {@link PollerMetrics}.
+ */
+public class PollingScheduler {
+
+    /**
+     * Decides what to run on each tick.
+     */
+    public interface Job {
+
+        /**
+         * @param tickTime the wall clock boundary the tick belongs to, in milliseconds. The tick itself runs this long
+         *                 after it plus the offset it was scheduled with
+         * @return the callback to run for this tick, or null if nothing is due
+         */
+        MBeanServerCallback<?> callbackFor(long tickTime);
+    }
+
+    private static final Logger LOG = LoggerFactory.getLogger(PollingScheduler.class);
+
+    // ticks waiting for a worker, for each worker
+    private static final int QUEUED_TICKS_PER_THREAD = 4;
+
+    private final ScheduledExecutorService timer;
+    private final ExecutorService workers;
+
+    private final PollerMetrics metrics;
+
+    public PollingScheduler(int threads) {
+        this(threads, new PollerMetrics());
+    }
+
+    public PollingScheduler(int threads, PollerMetrics metrics) {
+        this.metrics = metrics;
+        timer = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("poll-timer"));
+        workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(threads * QUEUED_TICKS_PER_THREAD), new NamedThreadFactory("poll-worker"));
+    }
+
+    /**
+     * @return a job that runs the same callback on every tick
+     */
+    public static Job every(final MBeanServerCallback<?> callback) {
+        return new Job() {
+            @Override
+            public MBeanServerCallback<?> callbackFor(long tickTime) {
+                return callback;
+            }
+        };
+    }
+
+    /**
+     * Runs the job on the ticks that fall {@code offset} after each multiple of the period, starting with the next.
+     */
+    public void scheduleJob(String name, JmxTemplate template, Job job, long offset, long period, TimeUnit unit) {
+        long periodMillis = unit.toMillis(period);
+        long offsetMillis = unit.toMillis(offset) % periodMillis;
+        long now = System.currentTimeMillis();
+        long firstTick = ((now - offsetMillis) / periodMillis + 1) * periodMillis + offsetMillis;
+        new Poll(name, template, job, periodMillis, offsetMillis, firstTick).scheduleNext();
+    }
+
+    public PollerMetrics getMetrics() {
+        return metrics;
+    }
+
+    public long getMissedTicks() {
+        return metrics.getMissedTickCount();
+    }
+
+    public long getLateTicks() {
+        return metrics.getLateTickCount();
+    }
+
+    public void shutdown() {
+        timer.shutdown();
+        workers.shutdown();
+    }
+
+    private class Poll implements Runnable {
+
+        private final String name;
+        private final JmxTemplate template;
+        private final Job job;
+        private final long period;
+        private final long offset;
+        private final AtomicBoolean inFlight = new AtomicBoolean();
+
+        private long nextTick;
+
+        // the connection from the template, and the wrapper timing it. The wrapper is only replaced when the
+        // connection is, as callbacks such as ObjectNameCache notice a new connection and start afresh
+        private MBeanServerConnection connection;
+        private MBeanServerConnection instrumented;
+
+        private Poll(String name, JmxTemplate template, Job job, long period, long offset, long firstTick) {
+            this.name = name;
+            this.template = template;
+            this.job = job;
+            this.period = period;
+            this.offset = offset;
+            this.nextTick = firstTick;
+        }
+
+        private void scheduleNext() {
+            try {
+                timer.schedule(this, nextTick - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+            } catch (RuntimeException re) {
+                // rejected because we're shutting down
+                LOG.debug("stopped scheduling " + name, re);
+            }
+        }
+
+        @Override
+        public void run() {
+            long now = System.currentTimeMillis();
+            long tickTime = nextTick;
+            long lateness = now - tickTime;
+            if (lateness < 0) {
+                // woken early, as the timer isn't on the same clock as us
+                scheduleNext();
+                return;
+            }
+            if (lateness >= period) {
+                long missed = lateness / period;
+                metrics.ticksMissed(missed);
+                LOG.warn("missed {} ticks for {}, the timer was running {} ms late", new Object[]{missed, name, lateness});
+                tickTime += missed * period;
+                lateness -= missed * period;
+            }
+            if (lateness > period / 10) {
+                metrics.tickLate();
+                LOG.debug("tick for {} started {} ms late", name, lateness);
+            }
+            nextTick = tickTime + period;
+            scheduleNext();
+
+            MBeanServerCallback<?> callback = job.callbackFor(tickTime - offset);
+            if (callback == null || template instanceof AvailabilityAware && !((AvailabilityAware) template).isAvailable()) {
+                // nothing due, or the target's down and the template will tell us when it's worth trying again
+                return;
+            }
+            if (!inFlight.compareAndSet(false, true)) {
+                metrics.ticksMissed(1);
+                LOG.warn("missed tick for {}, the previous tick is still running", name);
+                return;
+            }
+            try {
+                workers.execute(new Work(callback));
+            } catch (RejectedExecutionException ree) {
+                inFlight.set(false);
+                if (workers.isShutdown()) {
+                    LOG.debug("couldn't start tick for " + name, ree);
+                } else {
+                    metrics.ticksMissed(1);
+                    LOG.warn("missed tick for {}, every worker is busy", name);
+                }
+            }
+        }
+
+        private class Work implements Runnable, MBeanServerCallback<Object> {
+
+            private final MBeanServerCallback<?> callback;
+
+            private Work(MBeanServerCallback<?> callback) {
+                this.callback = callback;
+            }
+
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                boolean failed = true;
+                try {
+                    template.runWithConnection(this);
+                    failed = false;
+                } catch (TargetUnavailableException tue) {
+                    LOG.trace("skipped tick for {}: {}", name, tue.getMessage());
+                } catch (IOException ioe) {
+                    LOG.debug("exception executing query against " + name, ioe);
+                } catch (RuntimeException re) {
+                    LOG.error("exception executing query against " + name, re);
+                } finally {
+                    metrics.tickCompleted(System.nanoTime() - start, failed);
+                    inFlight.set(false);
+                }
+            }
+
+            @Override
+            public Object execute(MBeanServerConnection connection) throws IOException {
+                if (connection != Poll.this.connection) {
+                    Poll.this.connection = connection;
+                    instrumented = metrics.instrument(connection);
+                }
+                return callback.execute(instrumented);
+            }
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        private NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, prefix + "-" + count.incrementAndGet());
+        }
+    }
+}
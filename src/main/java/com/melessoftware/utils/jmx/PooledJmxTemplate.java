@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.melessoftware.utils.jmx;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.MBeanServerConnection;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.MalformedURLException;
+import java.util.Iterator;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps up to {@code maxSize} connectors open to one server and lends them out to callbacks, so it can be shared by
+ * many threads without each paying for a connect.
+ * <p/>
+ * Callers wait for a connector when they're all in use. The most recently returned connector is lent out first, so
+ * that under light load the spare ones sit idle long enough to be closed. Idle connectors are closed after the idle
+ * timeout, checked whenever a connector is borrowed or {@link #evictIdle()} is called. A connector that has been
+ * idle for more than the health check interval is checked with a cheap call before it's lent out. A connector whose
+ * callback fails is closed rather than returned.
+ */
+public class PooledJmxTemplate implements JmxTemplate, AvailabilityAware, PooledJmxTemplateMXBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PooledJmxTemplate.class);
+
+    private static final long DEFAULT_IDLE_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    private static final long DEFAULT_HEALTH_CHECK_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private final JMXServiceURL jmxUrl;
+    private final int maxSize;
+    private final long idleTimeoutMillis;
+    private final long healthCheckMillis;
+
+    private final Semaphore permits;
+    private final LinkedBlockingDeque<PooledConnector> idle = new LinkedBlockingDeque<PooledConnector>();
+    private volatile boolean closed;
+
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong borrows = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong connects = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong failedHealthChecks = new AtomicLong();
+
+    public PooledJmxTemplate(JMXServiceURL jmxUrl, int maxSize) {
+        this(jmxUrl, maxSize, DEFAULT_IDLE_TIMEOUT_MILLIS, DEFAULT_HEALTH_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public PooledJmxTemplate(String jmxUrl, int maxSize) throws MalformedURLException {
+        this(new JMXServiceURL(jmxUrl), maxSize);
+    }
+
+    public PooledJmxTemplate(JMXServiceURL jmxUrl, int maxSize, long idleTimeout, long healthCheckInterval, TimeUnit unit) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize must be at least 1, was " + maxSize);
+        }
+        this.jmxUrl = jmxUrl;
+        this.maxSize = maxSize;
+        this.idleTimeoutMillis = unit.toMillis(idleTimeout);
+        this.healthCheckMillis = unit.toMillis(healthCheckInterval);
+        this.permits = new Semaphore(maxSize, true);
+    }
+
+    @Override
+    public <T> T runWithConnection(MBeanServerCallback<T> callback) throws IOException {
+        if (closed) {
+            throw new IOException("template for " + jmxUrl + " has been closed");
+        }
+        acquirePermit();
+        try {
+            PooledConnector pooled = borrow();
+            active.incrementAndGet();
+            boolean succeeded = false;
+            try {
+                T result = callback.execute(pooled.connection);
+                succeeded = true;
+                return result;
+            } finally {
+                active.decrementAndGet();
+                if (succeeded) {
+                    giveBack(pooled);
+                } else {
+                    discard(pooled);
+                }
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return !closed;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        PooledConnector pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            discard(pooled);
+        }
+    }
+
+    /**
+     * Closes the connectors that have been idle for longer than the idle timeout.
+     */
+    public void evictIdle() {
+        long cutoff = System.currentTimeMillis() - idleTimeoutMillis;
+        // the oldest are at the end
+        Iterator<PooledConnector> oldestFirst = idle.descendingIterator();
+        while (oldestFirst.hasNext()) {
+            PooledConnector pooled = oldestFirst.next();
+            if (pooled.lastUsed > cutoff) {
+                break;
+            }
+            if (idle.remove(pooled)) {
+                evictions.incrementAndGet();
+                discard(pooled);
+            }
+        }
+    }
+
+    private void acquirePermit() throws InterruptedIOException {
+        long start = System.nanoTime();
+        try {
+            permits.acquire();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for a connection to " + jmxUrl);
+        }
+        long waited = System.nanoTime() - start;
+        borrows.incrementAndGet();
+        waitNanos.addAndGet(waited);
+        long max;
+        while (waited > (max = maxWaitNanos.get()) && !maxWaitNanos.compareAndSet(max, waited)) {
+            // raced with another thread, try again
+        }
+    }
+
+    private PooledConnector borrow() throws IOException {
+        evictIdle();
+        long healthCheckCutoff = System.currentTimeMillis() - healthCheckMillis;
+        PooledConnector pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            if (pooled.lastUsed > healthCheckCutoff || pooled.isHealthy()) {
+                return pooled;
+            }
+            failedHealthChecks.incrementAndGet();
+            discard(pooled);
+        }
+        JMXConnector connector = JMXConnectorFactory.connect(jmxUrl);
+        try {
+            PooledConnector connected = new PooledConnector(connector, connector.getMBeanServerConnection());
+            connects.incrementAndGet();
+            return connected;
+        } catch (IOException ioe) {
+            closeQuietly(connector);
+            throw ioe;
+        }
+    }
+
+    private void giveBack(PooledConnector pooled) {
+        pooled.lastUsed = System.currentTimeMillis();
+        idle.offerFirst(pooled);
+        if (closed && idle.remove(pooled)) {
+            // closed while this one was lent out
+            discard(pooled);
+        }
+    }
+
+    private void discard(PooledConnector pooled) {
+        closeQuietly(pooled.connector);
+    }
+
+    private void closeQuietly(JMXConnector connector) {
+        try {
+            connector.close();
+        } catch (IOException ioe) {
+            LOG.debug("exception closing connector to " + jmxUrl, ioe);
+        }
+    }
+
+    @Override
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    @Override
+    public int getActiveCount() {
+        return active.get();
+    }
+
+    @Override
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    @Override
+    public double getUtilisation() {
+        return (double) active.get() / maxSize;
+    }
+
+    @Override
+    public long getBorrowCount() {
+        return borrows.get();
+    }
+
+    @Override
+    public long getTotalWaitTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(waitNanos.get());
+    }
+
+    @Override
+    public double getAverageWaitTimeMillis() {
+        long count = borrows.get();
+        return count == 0 ? 0 : waitNanos.get() / 1e6 / count;
+    }
+
+    @Override
+    public long getMaxWaitTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get());
+    }
+
+    @Override
+    public long getConnectCount() {
+        return connects.get();
+    }
+
+    @Override
+    public long getEvictedCount() {
+        return evictions.get();
+    }
+
+    @Override
+    public long getFailedHealthCheckCount() {
+        return failedHealthChecks.get();
+    }
+
+    private static class PooledConnector {
+
+        private final JMXConnector connector;
+        private final MBeanServerConnection connection;
+        private volatile long lastUsed = System.currentTimeMillis();
+
+        private PooledConnector(JMXConnector connector, MBeanServerConnection connection) {
+            this.connector = connector;
+            this.connection = connection;
+        }
+
+        private boolean isHealthy() {
+            try {
+                connection.getMBeanCount();
+                return true;
+            } catch (IOException ioe) {
+                LOG.debug("pooled connection failed its health check", ioe);
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.melessoftware.utils.jmx;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Small files that only the user can read, for things such as connector addresses that let whoever reads them into a
+ * JVM.
+ * <p/>
+ * The temporary directory is shared by every user, so anyone could create a file there under the name another user
+ * is about to use, and read what's written to it or feed them something of their own. The files are kept in a
+ * directory of the user's own inside it instead, which is created so that only they can use it. Since someone else
+ * could have created it first, it's checked before every use to be a real directory that the user owns and that
+ * nobody else has any permissions on, and anything there is refused if it isn't.
+ */
+final class PrivateFiles {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Set<PosixFilePermission> OWNER_ONLY = EnumSet.of(
+            PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE, PosixFilePermission.OWNER_EXECUTE);
+
+    private PrivateFiles() {
+    }
+
+    /**
+     * @return a file in the user's own directory in the temporary directory
+     */
+    static File tempFile(String name) {
+        String user = System.getProperty("user.name").replaceAll("[^A-Za-z0-9._-]", "_");
+        return new File(new File(System.getProperty("java.io.tmpdir"), "meles-jmx-" + user), name);
+    }
+
+    /**
+     * Replaces the file with one holding these lines, readable only by the user. Readers see either the old file or
+     * the new one, never one half written.
+     */
+    static void write(File file, String... lines) throws IOException {
+        Path directory = file.getParentFile().toPath();
+        makePrivateDirectory(directory);
+        // made readable only by the user
+        Path temp = Files.createTempFile(directory, file.getName(), ".tmp");
+        boolean written = false;
+        try {
+            Writer out = new OutputStreamWriter(Files.newOutputStream(temp), UTF_8);
+            try {
+                for (String line : lines) {
+                    out.write(line);
+                    out.write('\n');
+                }
+            } finally {
+                out.close();
+            }
+            Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            written = true;
+        } finally {
+            if (!written) {
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+
+    /**
+     * @return the first line of the file, or null if there's no such file or it's empty
+     */
+    static String readFirstLine(File file) throws IOException {
+        Path directory = file.getParentFile().toPath();
+        if (!Files.exists(directory, LinkOption.NOFOLLOW_LINKS)) {
+            return null;
+        }
+        checkPrivate(directory);
+        BufferedReader in;
+        try {
+            in = new BufferedReader(new InputStreamReader(Files.newInputStream(file.toPath(), LinkOption.NOFOLLOW_LINKS), UTF_8));
+        } catch (NoSuchFileException nsfe) {
+            return null;
+        }
+        try {
+            String line = in.readLine();
+            return line == null || line.trim().isEmpty() ? null : line.trim();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void makePrivateDirectory(Path directory) throws IOException {
+        if (!Files.exists(directory, LinkOption.NOFOLLOW_LINKS)) {
+            try {
+                if (isPosix()) {
+                    Files.createDirectory(directory, PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+                } else {
+                    // such as on Windows, where the temporary directory is the user's own anyway
+                    Files.createDirectory(directory);
+                }
+            } catch (FileAlreadyExistsException faee) {
+                // made by someone else in the meantime, which the check will catch if it wasn't the user
+            }
+        }
+        checkPrivate(directory);
+    }
+
+    private static void checkPrivate(Path directory) throws IOException {
+        if (!Files.isDirectory(directory, LinkOption.NOFOLLOW_LINKS)) {
+            throw new IOException(directory + " isn't a directory");
+        }
+        UserPrincipal owner = Files.getOwner(directory, LinkOption.NOFOLLOW_LINKS);
+        UserPrincipal user = FileSystems.getDefault().getUserPrincipalLookupService().lookupPrincipalByName(System.getProperty("user.name"));
+        if (!owner.equals(user)) {
+            throw new IOException(directory + " belongs to " + owner.getName() + " rather than " + user.getName());
+        }
+        if (isPosix()) {
+            Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(directory, LinkOption.NOFOLLOW_LINKS);
+            if (!OWNER_ONLY.containsAll(permissions)) {
+                throw new IOException(directory + " can be used by other users, its permissions are " + PosixFilePermissions.toString(permissions));
+            }
+        }
+    }
+
+    private static boolean isPosix() {
+        return FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+    }
+}
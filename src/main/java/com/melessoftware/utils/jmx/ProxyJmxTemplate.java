@@ -19,55 +19,106 @@
 
 package com.melessoftware.utils.jmx;
 
-import javax.management.Attribute;
-import javax.management.AttributeList;
-import javax.management.AttributeNotFoundException;
-import javax.management.InstanceAlreadyExistsException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import javax.management.InstanceNotFoundException;
-import javax.management.IntrospectionException;
-import javax.management.InvalidAttributeValueException;
 import javax.management.ListenerNotFoundException;
-import javax.management.MBeanException;
-import javax.management.MBeanInfo;
-import javax.management.MBeanRegistrationException;
 import javax.management.MBeanServerConnection;
-import javax.management.NotCompliantMBeanException;
+import javax.management.Notification;
 import javax.management.NotificationFilter;
 import javax.management.NotificationListener;
-import javax.management.ObjectInstance;
 import javax.management.ObjectName;
-import javax.management.QueryExp;
-import javax.management.ReflectionException;
+import javax.management.remote.JMXConnectionNotification;
 import javax.management.remote.JMXConnector;
 import javax.management.remote.JMXConnectorFactory;
 import javax.management.remote.JMXServiceURL;
 import java.io.IOException;
-import java.util.Set;
+import java.net.MalformedURLException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Hands callbacks a connection that connects on first use and again after a failure, and that adds the notification
+ * listeners added through it again to each new connector.
+ * <p/>
+ * After a failed connect, further attempts wait for a {@link ReconnectBackoff} delay, and calls made before then fail
+ * straight away with a {@link TargetUnavailableException}, so that a target that's down isn't hammered with connects.
+ */
+public class ProxyJmxTemplate implements JmxTemplate, AvailabilityAware {
 
-public class ProxyJmxTemplate implements JmxTemplate {
+    private static final Logger LOG = LoggerFactory.getLogger(ProxyJmxTemplate.class);
 
     private final JMXServiceURL jmxUrl;
-    private ProxyMBeanServerConnection proxyMBeanServerConnection;
+    private final ReconnectBackoff backoff;
+    private volatile ProxyMBeanServerConnection proxyMBeanServerConnection;
 
     private boolean isOpen = true;
 
     private JMXConnector connector;
 
+    private volatile PollerMetrics metrics;
+
+    private volatile long retryAt;
+    private int consecutiveFailures;
+
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+
+    private final NotificationListener connectionListener = new NotificationListener() {
+        @Override
+        public void handleNotification(Notification notification, Object handback) {
+            if (JMXConnectionNotification.NOTIFS_LOST.equals(notification.getType())) {
+                LOG.warn("notifications from {} were lost: {}", jmxUrl, notification.getMessage());
+            } else if (JMXConnectionNotification.FAILED.equals(notification.getType())) {
+                LOG.debug("connection to {} failed", jmxUrl);
+            }
+        }
+    };
+
     public ProxyJmxTemplate(JMXServiceURL jmxUrl) {
+        this(jmxUrl, ReconnectBackoff.DEFAULT);
+    }
+
+    public ProxyJmxTemplate(JMXServiceURL jmxUrl, ReconnectBackoff backoff) {
         this.jmxUrl = jmxUrl;
+        this.backoff = backoff;
         this.proxyMBeanServerConnection = new ProxyMBeanServerConnection();
     }
 
+    public ProxyJmxTemplate(String jmxUrl) throws MalformedURLException {
+        this(new JMXServiceURL(jmxUrl));
+    }
+
+    /**
+     * @param metrics where to record connects and failed connects, or null not to
+     */
+    public void setMetrics(PollerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
     @Override
     public void close() throws IOException {
         isOpen = false;
         closeConnector();
     }
 
-    private void closeConnector() throws IOException {
+    private synchronized void closeConnector() throws IOException {
         JMXConnector connector = this.connector;
         this.connector = null;
-        connector.close();
+        if (connector != null) {
+            // callbacks are handed a different connection object from now on, so that those keeping state for a
+            // connection, such as the names they've queried, notice the reconnect and start afresh
+            proxyMBeanServerConnection = new ProxyMBeanServerConnection();
+            connector.close();
+        }
+    }
+
+    /**
+     * @return false once closed, or while waiting to try connecting again
+     */
+    @Override
+    public boolean isAvailable() {
+        return isOpen && System.currentTimeMillis() >= retryAt;
     }
 
     @Override
@@ -78,224 +129,168 @@ public class ProxyJmxTemplate implements JmxTemplate {
         return callback.execute(proxyMBeanServerConnection);
     }
 
-    private class ProxyMBeanServerConnection implements MBeanServerConnection {
-
-        private MBeanServerConnection getConnection() throws IOException {
-            if (connector == null) {
-                connector = JMXConnectorFactory.connect(jmxUrl);
-            }
-            try {
-                return connector.getMBeanServerConnection();
-            } catch (IOException ioe) {
-                closeConnector();
-                throw ioe;
-            }
-        }
-
-        private IOException handleIOE(IOException ioe) throws IOException {
-            closeConnector();
-            return ioe;
-        }
-
-        @Override
-        public ObjectInstance createMBean(String className, ObjectName name) throws ReflectionException, InstanceAlreadyExistsException, MBeanRegistrationException, MBeanException, NotCompliantMBeanException, IOException {
-            try {
-                return getConnection().createMBean(className, name);
-            } catch (IOException ioe) {
-                throw handleIOE(ioe);
-            }
-        }
+    private class ProxyMBeanServerConnection extends DelegatingMBeanServerConnection {
 
         @Override
-        public ObjectInstance createMBean(String className, ObjectName name, ObjectName loaderName) throws ReflectionException, InstanceAlreadyExistsException, MBeanRegistrationException, MBeanException, NotCompliantMBeanException, InstanceNotFoundException, IOException {
-            try {
-                return getConnection().createMBean(className, name, loaderName);
-            } catch (IOException ioe) {
-                throw handleIOE(ioe);
+        protected MBeanServerConnection delegate() throws IOException {
+            synchronized (ProxyJmxTemplate.this) {
+                boolean reconnected = false;
+                if (connector == null) {
+                    connect();
+                    reconnected = true;
+                }
+                try {
+                    MBeanServerConnection connection = connector.getMBeanServerConnection();
+                    if (reconnected) {
+                        resubscribe(connection);
+                    }
+                    return connection;
+                } catch (IOException ioe) {
+                    closeConnector();
+                    throw ioe;
+                }
             }
         }
 
-        @Override
-        public ObjectInstance createMBean(String className, ObjectName name, Object[] params, String[] signature) throws ReflectionException, InstanceAlreadyExistsException, MBeanRegistrationException, MBeanException, NotCompliantMBeanException, IOException {
-            try {
-                return getConnection().createMBean(className, name, params, signature);
-            } catch (IOException ioe) {
-                throw handleIOE(ioe);
+        private void connect() throws IOException {
+            long now = System.currentTimeMillis();
+            if (now < retryAt) {
+                throw new TargetUnavailableException(jmxUrl, retryAt - now);
             }
-        }
-
-        @Override
-        public ObjectInstance createMBean(String className, ObjectName name, ObjectName loaderName, Object[] params, String[] signature) throws ReflectionException, InstanceAlreadyExistsException, MBeanRegistrationException, MBeanException, NotCompliantMBeanException, InstanceNotFoundException, IOException {
+            PollerMetrics metrics = ProxyJmxTemplate.this.metrics;
+            long start = System.nanoTime();
             try {
-                return getConnection().createMBean(className, name, loaderName, params, signature);
-            } catch (IOException ioe) {
-                throw handleIOE(ioe);
-            }
-        }
-
-        @Override
-        public void unregisterMBean(ObjectName name) throws InstanceNotFoundException, MBeanRegistrationException, IOException {
-            try {
-                getConnection().unregisterMBean(name);
-            } catch (IOException ioe) {
-                throw handleIOE(ioe);
-            }
-        }
-
-        @Override
-        public ObjectInstance getObjectInstance(ObjectName name) throws InstanceNotFoundException, IOException {
-            try {
-                return getConnection().getObjectInstance(name);
-            } catch (IOException ioe) {
-                throw handleIOE(ioe);
-            }
-        }
-
-        @Override
-        public Set<ObjectInstance> queryMBeans(ObjectName name, QueryExp query) throws IOException {
-            try {
-                return getConnection().queryMBeans(name, query);
+                connector = JMXConnectorFactory.connect(jmxUrl);
             } catch (IOException ioe) {
-                throw handleIOE(ioe);
+                if (metrics != null) {
+                    metrics.connectFailed(System.nanoTime() - start);
+                }
+                connectFailed(ioe);
+                throw ioe;
             }
-        }
-
-        @Override
-        public Set<ObjectName> queryNames(ObjectName name, QueryExp query) throws IOException {
-            try {
-                return getConnection().queryNames(name, query);
-            } catch (IOException ioe) {
-                throw handleIOE(ioe);
+            if (metrics != null) {
+                metrics.connected(System.nanoTime() - start);
             }
-        }
-
-        @Override
-        public boolean isRegistered(ObjectName name) throws IOException {
-            try {
-                return getConnection().isRegistered(name);
-            } catch (IOException ioe) {
-                throw handleIOE(ioe);
+            if (consecutiveFailures > 0) {
+                LOG.info("reconnected to {} after {} failed attempts", jmxUrl, consecutiveFailures);
+                consecutiveFailures = 0;
             }
+            connector.addConnectionNotificationListener(connectionListener, null, null);
         }
 
-        @Override
-        public Integer getMBeanCount() throws IOException {
-            try {
-                return getConnection().getMBeanCount();
-            } catch (IOException ioe) {
-                throw handleIOE(ioe);
+        private void connectFailed(IOException ioe) {
+            consecutiveFailures++;
+            long delay = backoff.delayMillis(consecutiveFailures);
+            retryAt = System.currentTimeMillis() + delay;
+            if (consecutiveFailures == 1) {
+                LOG.warn("couldn't connect to {}, will retry in {} ms: {}", new Object[]{jmxUrl, delay, ioe.getMessage()});
+            } else {
+                LOG.debug("couldn't connect to {} after {} attempts, will retry in {} ms", new Object[]{jmxUrl, consecutiveFailures, delay});
             }
         }
 
-        @Override
-        public Object getAttribute(ObjectName name, String attribute) throws MBeanException, AttributeNotFoundException, InstanceNotFoundException, ReflectionException, IOException {
-            try {
-                return getConnection().getAttribute(name, attribute);
-            } catch (IOException ioe) {
-                throw handleIOE(ioe);
+        /**
+         * Listeners live only as long as the connector they were added through, so they're added again to each new one.
+         */
+        private void resubscribe(MBeanServerConnection connection) throws IOException {
+            for (Subscription subscription : subscriptions) {
+                try {
+                    subscription.addTo(connection);
+                } catch (InstanceNotFoundException e) {
+                    LOG.debug("MBean {} disappeared while disconnected, dropping its listener", subscription.name);
+                    subscriptions.remove(subscription);
+                }
             }
         }
 
-        @Override
-        public AttributeList getAttributes(ObjectName name, String[] attributes) throws InstanceNotFoundException, ReflectionException, IOException {
-            try {
-                return getConnection().getAttributes(name, attributes);
-            } catch (IOException ioe) {
-                throw handleIOE(ioe);
+        private void forget(ObjectName name, NotificationListener listener, ObjectName listenerName, boolean exact, NotificationFilter filter, Object handback) {
+            for (Subscription subscription : subscriptions) {
+                if (subscription.matches(name, listener, listenerName, exact, filter, handback)) {
+                    subscriptions.remove(subscription);
+                }
             }
         }
 
         @Override
-        public void setAttribute(ObjectName name, Attribute attribute) throws InstanceNotFoundException, AttributeNotFoundException, InvalidAttributeValueException, MBeanException, ReflectionException, IOException {
+        protected IOException failed(IOException ioe) {
             try {
-                getConnection().setAttribute(name, attribute);
-            } catch (IOException ioe) {
-                throw handleIOE(ioe);
-            }
-        }
-
-        @Override
-        public AttributeList setAttributes(ObjectName name, AttributeList attributes) throws InstanceNotFoundException, ReflectionException, IOException {
-            try {
-                return getConnection().setAttributes(name, attributes);
-            } catch (IOException ioe) {
-                throw handleIOE(ioe);
-            }
-        }
-
-        @Override
-        public Object invoke(ObjectName name, String operationName, Object[] params, String[] signature) throws InstanceNotFoundException, MBeanException, ReflectionException, IOException {
-            try {
-                return getConnection().invoke(name, operationName, params, signature);
-            } catch (IOException ioe) {
-                throw handleIOE(ioe);
-            }
-        }
-
-        @Override
-        public String getDefaultDomain() throws IOException {
-            try {
-                return getConnection().getDefaultDomain();
-            } catch (IOException ioe) {
-                throw handleIOE(ioe);
-            }
-        }
-
-        @Override
-        public String[] getDomains() throws IOException {
-            try {
-                return getConnection().getDomains();
-            } catch (IOException ioe) {
-                throw handleIOE(ioe);
+                closeConnector();
+            } catch (IOException closeFailure) {
+                LOG.debug("exception closing connector to " + jmxUrl, closeFailure);
             }
+            return ioe;
         }
 
         @Override
         public void addNotificationListener(ObjectName name, NotificationListener listener, NotificationFilter filter, Object handback) throws InstanceNotFoundException, IOException {
-            //To change body of implemented methods use File | Settings | File Templates.
+            super.addNotificationListener(name, listener, filter, handback);
+            subscriptions.add(new Subscription(name, listener, null, filter, handback));
         }
 
         @Override
         public void addNotificationListener(ObjectName name, ObjectName listener, NotificationFilter filter, Object handback) throws InstanceNotFoundException, IOException {
-            //To change body of implemented methods use File | Settings | File Templates.
+            super.addNotificationListener(name, listener, filter, handback);
+            subscriptions.add(new Subscription(name, null, listener, filter, handback));
         }
 
         @Override
         public void removeNotificationListener(ObjectName name, ObjectName listener) throws InstanceNotFoundException, ListenerNotFoundException, IOException {
-            //To change body of implemented methods use File | Settings | File Templates.
+            // forget the subscription first, it mustn't come back after a reconnect even if the server call fails
+            forget(name, null, listener, false, null, null);
+            super.removeNotificationListener(name, listener);
         }
 
         @Override
         public void removeNotificationListener(ObjectName name, ObjectName listener, NotificationFilter filter, Object handback) throws InstanceNotFoundException, ListenerNotFoundException, IOException {
-            //To change body of implemented methods use File | Settings | File Templates.
+            forget(name, null, listener, true, filter, handback);
+            super.removeNotificationListener(name, listener, filter, handback);
         }
 
         @Override
         public void removeNotificationListener(ObjectName name, NotificationListener listener) throws InstanceNotFoundException, ListenerNotFoundException, IOException {
-            //To change body of implemented methods use File | Settings | File Templates.
+            forget(name, listener, null, false, null, null);
+            super.removeNotificationListener(name, listener);
         }
 
         @Override
         public void removeNotificationListener(ObjectName name, NotificationListener listener, NotificationFilter filter, Object handback) throws InstanceNotFoundException, ListenerNotFoundException, IOException {
-            //To change body of implemented methods use File | Settings | File Templates.
+            forget(name, listener, null, true, filter, handback);
+            super.removeNotificationListener(name, listener, filter, handback);
         }
+    }
 
-        @Override
-        public MBeanInfo getMBeanInfo(ObjectName name) throws InstanceNotFoundException, IntrospectionException, ReflectionException, IOException {
-            try {
-                return getConnection().getMBeanInfo(name);
-            } catch (IOException ioe) {
-                throw handleIOE(ioe);
+    private static class Subscription {
+
+        private final ObjectName name;
+        private final NotificationListener listener;
+        private final ObjectName listenerName;
+        private final NotificationFilter filter;
+        private final Object handback;
+
+        private Subscription(ObjectName name, NotificationListener listener, ObjectName listenerName, NotificationFilter filter, Object handback) {
+            this.name = name;
+            this.listener = listener;
+            this.listenerName = listenerName;
+            this.filter = filter;
+            this.handback = handback;
+        }
+
+        private void addTo(MBeanServerConnection connection) throws InstanceNotFoundException, IOException {
+            if (listener != null) {
+                connection.addNotificationListener(name, listener, filter, handback);
+            } else {
+                connection.addNotificationListener(name, listenerName, filter, handback);
             }
         }
 
-        @Override
-        public boolean isInstanceOf(ObjectName name, String className) throws InstanceNotFoundException, IOException {
-            try {
-                return getConnection().isInstanceOf(name, className);
-            } catch (IOException ioe) {
-                throw handleIOE(ioe);
+        private boolean matches(ObjectName name, NotificationListener listener, ObjectName listenerName, boolean exact, NotificationFilter filter, Object handback) {
+            if (!this.name.equals(name)) {
+                return false;
+            }
+            if (listener != null ? this.listener != listener : !listenerName.equals(this.listenerName)) {
+                return false;
             }
+            return !exact || (this.filter == filter && this.handback == handback);
         }
     }
 
@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.melessoftware.utils.jmx;
+
+import java.util.Arrays;
+
+/**
+ * Estimates quantiles of a stream of values in bounded memory, to within a relative error of one percent.
+ * <p/>
+ * Values are counted in buckets whose bounds grow geometrically, so every value in a bucket is within the relative
+ * error of the bucket's midpoint, however large or small the values are. Positive and negative values have their own
+ * buckets and zero has a count of its own. A sign's buckets grow to cover the values seen, up to {@link #MAX_BINS};
+ * beyond that the lowest buckets are merged into one, keeping the upper quantiles accurate at the expense of the
+ * smallest values.
+ * <p/>
+ * Infinities and NaN have no bucket, and are left out.
+ */
+class QuantileSketch {
+
+    private static final double RELATIVE_ACCURACY = 0.01;
+    private static final double GAMMA = (1 + RELATIVE_ACCURACY) / (1 - RELATIVE_ACCURACY);
+    private static final double LOG_GAMMA = Math.log(GAMMA);
+
+    // anything this close to zero counts as zero, which keeps the bucket indexes in range
+    private static final double MIN_MAGNITUDE = 1e-300;
+
+    static final int MAX_BINS = 2048;
+    private static final int INITIAL_BINS = 64;
+
+    private final Bins positive = new Bins();
+    private final Bins negative = new Bins();
+    private long zeroCount;
+
+    void add(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return;
+        }
+        if (value > MIN_MAGNITUDE) {
+            positive.add(index(value));
+        } else if (value < -MIN_MAGNITUDE) {
+            negative.add(index(-value));
+        } else {
+            zeroCount++;
+        }
+    }
+
+    long getCount() {
+        return positive.total + negative.total + zeroCount;
+    }
+
+    /**
+     * @param fraction between 0 and 1, such as 0.99 for the 99th percentile
+     * @return the estimated value, or NaN if nothing has been added
+     */
+    double quantile(double fraction) {
+        long count = getCount();
+        if (count == 0) {
+            return Double.NaN;
+        }
+        // nearest rank, so that the 99th percentile of a handful of values is the largest rather than the smallest
+        long rank = Math.max((long) Math.ceil(fraction * count) - 1, 0);
+        if (rank < negative.total) {
+            // the most negative values are in the highest buckets
+            return -value(negative.indexAtRank(negative.total - 1 - rank));
+        }
+        rank -= negative.total;
+        if (rank < zeroCount) {
+            return 0;
+        }
+        return value(positive.indexAtRank(rank - zeroCount));
+    }
+
+    /**
+     * Forgets the values added so far, keeping the buckets for reuse.
+     */
+    void clear() {
+        positive.clear();
+        negative.clear();
+        zeroCount = 0;
+    }
+
+    private static int index(double magnitude) {
+        return (int) Math.ceil(Math.log(magnitude) / LOG_GAMMA);
+    }
+
+    private static double value(int index) {
+        // the point within the relative error of both ends of the bucket
+        return 2 * Math.pow(GAMMA, index) / (GAMMA + 1);
+    }
+
+    private static class Bins {
+
+        private int[] counts = new int[0];
+        // the bucket index counted in counts[0]
+        private int offset;
+        private int minIndex;
+        private int maxIndex;
+        private long total;
+
+        void add(int index) {
+            if (index < offset || index >= offset + counts.length) {
+                index = makeRoomFor(index);
+            }
+            counts[index - offset]++;
+            if (total == 0) {
+                minIndex = index;
+                maxIndex = index;
+            } else {
+                minIndex = Math.min(minIndex, index);
+                maxIndex = Math.max(maxIndex, index);
+            }
+            total++;
+        }
+
+        /**
+         * Grows or moves the buckets to take in {@code index}, merging the lowest if they'd span too many.
+         *
+         * @return the index to count the value in, which is higher than {@code index} if that was merged
+         */
+        private int makeRoomFor(int index) {
+            int low = total == 0 ? index : Math.min(index, minIndex);
+            int high = total == 0 ? index : Math.max(index, maxIndex);
+            // in long, as the indexes can be far enough apart to overflow an int
+            if ((long) high - low >= MAX_BINS) {
+                low = high - MAX_BINS + 1;
+            }
+            int span = high - low + 1;
+            int length = Math.max(counts.length, INITIAL_BINS);
+            while (length < span) {
+                length *= 2;
+            }
+            length = Math.min(length, MAX_BINS);
+            // leave room either side, so values drifting up or down don't move the buckets every time
+            int newOffset = low - (length - span) / 2;
+            int[] moved = new int[length];
+            if (total > 0) {
+                for (int i = minIndex; i <= maxIndex; i++) {
+                    moved[Math.max(i, low) - newOffset] += counts[i - offset];
+                }
+                minIndex = Math.max(minIndex, low);
+            }
+            counts = moved;
+            offset = newOffset;
+            return Math.max(index, low);
+        }
+
+        int indexAtRank(long rank) {
+            long seen = 0;
+            for (int i = minIndex; i < maxIndex; i++) {
+                seen += counts[i - offset];
+                if (seen > rank) {
+                    return i;
+                }
+            }
+            return maxIndex;
+        }
+
+        void clear() {
+            if (total > 0) {
+                Arrays.fill(counts, minIndex - offset, maxIndex - offset + 1, 0);
+                total = 0;
+            }
+        }
+    }
+}
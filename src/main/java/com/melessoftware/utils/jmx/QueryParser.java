@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.melessoftware.utils.jmx;
+
+import javax.management.AttributeValueExp;
+import javax.management.Query;
+import javax.management.QueryExp;
+import javax.management.StringValueExp;
+import javax.management.ValueExp;
+
+/**
+ * Compiles a filter expression into a {@link QueryExp}, which is sent to the server and evaluated there, so only the
+ * names of the objects that pass come back.
+ * <p/>
+ * Expressions compare attributes with each other or with constants, and can be combined with {@code and}, {@code or},
+ * {@code not} and parentheses, for example {@code ActiveCount > 0 and not (Name like "internal*")}. The comparisons are
+ * {@code = != < <= > >=}, and {@code like}, which matches a string attribute against a pattern with {@code *} and
+ * {@code ?} wildcards. Constants are whole numbers, decimals, {@code true}, {@code false}, and strings in single or
+ * double quotes. Anything else is an attribute name. The server compares whole attributes, so unlike {@code -a} a
+ * name can't have a dotted path into a composite value.
+ */
+public class QueryParser {
+
+    private final String text;
+    private int position;
+
+    private QueryParser(String text) {
+        this.text = text;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the expression can't be parsed
+     */
+    public static QueryExp parse(String text) {
+        QueryParser parser = new QueryParser(text);
+        QueryExp query = parser.or();
+        parser.skipSpace();
+        if (parser.position < text.length()) {
+            throw parser.error("unexpected " + parser.rest());
+        }
+        return query;
+    }
+
+    private QueryExp or() {
+        QueryExp query = and();
+        while (keyword("or")) {
+            query = Query.or(query, and());
+        }
+        return query;
+    }
+
+    private QueryExp and() {
+        QueryExp query = not();
+        while (keyword("and")) {
+            query = Query.and(query, not());
+        }
+        return query;
+    }
+
+    private QueryExp not() {
+        if (keyword("not")) {
+            return Query.not(not());
+        }
+        if (symbol("(")) {
+            QueryExp query = or();
+            if (!symbol(")")) {
+                throw error("expected )");
+            }
+            return query;
+        }
+        return comparison();
+    }
+
+    private QueryExp comparison() {
+        ValueExp left = value();
+        if (keyword("like")) {
+            ValueExp pattern = value();
+            if (!(left instanceof AttributeValueExp) || !(pattern instanceof StringValueExp)) {
+                throw error("like needs an attribute on the left and a string on the right");
+            }
+            return Query.match((AttributeValueExp) left, (StringValueExp) pattern);
+        }
+        // longest operators first, so that <= isn't read as <
+        if (symbol("<=")) {
+            return Query.leq(left, value());
+        }
+        if (symbol(">=")) {
+            return Query.geq(left, value());
+        }
+        if (symbol("!=")) {
+            return Query.not(Query.eq(left, value()));
+        }
+        if (symbol("<")) {
+            return Query.lt(left, value());
+        }
+        if (symbol(">")) {
+            return Query.gt(left, value());
+        }
+        if (symbol("=")) {
+            return Query.eq(left, value());
+        }
+        throw error("expected a comparison");
+    }
+
+    private ValueExp value() {
+        skipSpace();
+        if (position == text.length()) {
+            throw error("expected a value");
+        }
+        char c = text.charAt(position);
+        if (c == '"' || c == '\'') {
+            int end = text.indexOf(c, position + 1);
+            if (end < 0) {
+                throw error("unterminated string");
+            }
+            String value = text.substring(position + 1, end);
+            position = end + 1;
+            return Query.value(value);
+        }
+        int start = position;
+        if (c == '-' || Character.isDigit(c)) {
+            position++;
+            while (position < text.length() && (Character.isDigit(text.charAt(position)) || text.charAt(position) == '.')) {
+                position++;
+            }
+            String number = text.substring(start, position);
+            try {
+                return number.indexOf('.') < 0 ? Query.value(Long.parseLong(number)) : Query.value(Double.parseDouble(number));
+            } catch (NumberFormatException nfe) {
+                position = start;
+                throw error("bad number " + number);
+            }
+        }
+        while (position < text.length() && isNameChar(text.charAt(position))) {
+            position++;
+        }
+        if (position == start) {
+            throw error("expected a value");
+        }
+        String name = text.substring(start, position);
+        if ("true".equals(name) || "false".equals(name)) {
+            return Query.value(Boolean.parseBoolean(name));
+        }
+        return Query.attr(name);
+    }
+
+    private static boolean isNameChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '$';
+    }
+
+    private boolean keyword(String keyword) {
+        skipSpace();
+        int end = position + keyword.length();
+        if (text.regionMatches(true, position, keyword, 0, keyword.length())
+                && (end == text.length() || !isNameChar(text.charAt(end)))) {
+            position = end;
+            return true;
+        }
+        return false;
+    }
+
+    private boolean symbol(String symbol) {
+        skipSpace();
+        if (text.startsWith(symbol, position)) {
+            position += symbol.length();
+            return true;
+        }
+        return false;
+    }
+
+    private void skipSpace() {
+        while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+            position++;
+        }
+    }
+
+    private String rest() {
+        return position < text.length() ? "'" + text.substring(position) + "'" : "end of expression";
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(String.format("%s at position %d in filter: %s", message, position + 1, text));
+    }
+}
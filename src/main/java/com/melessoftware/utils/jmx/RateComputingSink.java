@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.melessoftware.utils.jmx;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.ObjectName;
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Works out how fast counters are going up, passing on every sample it receives along with a {@code .delta} and a
+ * {@code .rate}, per second, for each sample of a counter attribute.
+ * <p/>
+ * A counter can be a wildcard, and a composite or tabular counter has rates for each of its parts, as described in
+ * {@link AttributeNameMatcher}.
+ * <p/>
+ * The previous sample of each series is kept in arrays indexed by the series' id, with whole numbers kept as longs so
+ * that large counters don't lose precision. The first sample of a series has nothing to compare with, so only the
+ * value itself is passed on. A counter that goes down is taken to have been reset by the target restarting: it has
+ * no delta for that sample, and the next delta is measured from the new value. The boxed delta and rate passed on for
+ * each series are kept too, and passed on again while they don't change, so a counter going up steadily or not at all
+ * doesn't box new ones for every sample.
+ * <p/>
+ * Series are never forgotten, so a logger watching objects that come and go under new names keeps a few dozen bytes
+ * for each one it has ever seen, as well as the names themselves.
+ * <p/>
+ * Flushing passes straight on to the next sink if that can be flushed.
+ */
+public class RateComputingSink implements SampleSink, Flushable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RateComputingSink.class);
+
+    private static final byte EMPTY = 0;
+    private static final byte WHOLE = 1;
+    private static final byte FRACTIONAL = 2;
+
+    private static final String DELTA_SUFFIX = ".delta";
+    private static final String RATE_SUFFIX = ".rate";
+    private static final int INITIAL_CAPACITY = 64;
+
+    private static final String[] NOT_A_COUNTER = new String[0];
+
+    private final SampleSink next;
+    private final AttributeNameMatcher counters;
+    // the names of the derived samples for each counter, so that they're not built or matched for every sample
+    private final Map<String, String[]> derivedNames = new ConcurrentHashMap<String, String[]>();
+    private final SeriesIndex series = new SeriesIndex();
+
+    private byte[] kinds = new byte[INITIAL_CAPACITY];
+    private long[] timestamps = new long[INITIAL_CAPACITY];
+    private long[] wholeValues = new long[INITIAL_CAPACITY];
+    private double[] fractionalValues = new double[INITIAL_CAPACITY];
+    private Number[] deltas = new Number[INITIAL_CAPACITY];
+    private Double[] rates = new Double[INITIAL_CAPACITY];
+    private long resets;
+
+    public RateComputingSink(Collection<String> counterAttributeNames, SampleSink next) {
+        this.next = next;
+        this.counters = new AttributeNameMatcher(counterAttributeNames);
+    }
+
+    @Override
+    public void sample(long timestamp, ObjectName objectName, String attributeName, Object value) throws IOException {
+        next.sample(timestamp, objectName, attributeName, value);
+        if (!(value instanceof Number)) {
+            return;
+        }
+        String[] derived = derivedNamesFor(attributeName);
+        if (derived == NOT_A_COUNTER) {
+            return;
+        }
+
+        Number delta;
+        Double rate;
+        synchronized (this) {
+            int id = series.idOf(objectName, attributeName);
+            ensureCapacity(id);
+            long elapsed = timestamp - timestamps[id];
+            byte previousKind = kinds[id];
+            timestamps[id] = timestamp;
+            double difference;
+            if (isWhole(value)) {
+                long current = ((Number) value).longValue();
+                long previous = wholeValues[id];
+                kinds[id] = WHOLE;
+                wholeValues[id] = current;
+                if (previousKind != WHOLE || elapsed <= 0 || reset(objectName, attributeName, current < previous)) {
+                    return;
+                }
+                long wholeDifference = current - previous;
+                Number previousDelta = deltas[id];
+                if (!(previousDelta instanceof Long) || previousDelta.longValue() != wholeDifference) {
+                    deltas[id] = wholeDifference;
+                }
+                difference = wholeDifference;
+            } else {
+                double current = ((Number) value).doubleValue();
+                double previous = fractionalValues[id];
+                kinds[id] = FRACTIONAL;
+                fractionalValues[id] = current;
+                if (previousKind != FRACTIONAL || elapsed <= 0 || reset(objectName, attributeName, current < previous)) {
+                    return;
+                }
+                difference = current - previous;
+                Number previousDelta = deltas[id];
+                if (!(previousDelta instanceof Double) || previousDelta.doubleValue() != difference) {
+                    deltas[id] = difference;
+                }
+            }
+            double perSecond = difference * 1000.0 / elapsed;
+            Double previousRate = rates[id];
+            if (previousRate == null || previousRate != perSecond) {
+                rates[id] = perSecond;
+            }
+            delta = deltas[id];
+            rate = rates[id];
+        }
+        next.sample(timestamp, objectName, derived[0], delta);
+        next.sample(timestamp, objectName, derived[1], rate);
+    }
+
+    /**
+     * @return how many times a counter has gone down
+     */
+    public synchronized long getResetCount() {
+        return resets;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (next instanceof Flushable) {
+            ((Flushable) next).flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        next.close();
+    }
+
+    private boolean reset(ObjectName objectName, String attributeName, boolean wentDown) {
+        if (wentDown) {
+            resets++;
+            LOG.debug("{} {} went down, assuming it was reset", objectName, attributeName);
+        }
+        return wentDown;
+    }
+
+    private String[] derivedNamesFor(String attributeName) {
+        String[] derived = derivedNames.get(attributeName);
+        if (derived == null) {
+            derived = counters.matches(attributeName)
+                    ? new String[]{attributeName + DELTA_SUFFIX, attributeName + RATE_SUFFIX}
+                    : NOT_A_COUNTER;
+            derivedNames.put(attributeName, derived);
+        }
+        return derived;
+    }
+
+    private static boolean isWhole(Object value) {
+        return value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte;
+    }
+
+    private void ensureCapacity(int id) {
+        if (id < kinds.length) {
+            return;
+        }
+        int capacity = Math.max(kinds.length * 2, id + 1);
+        kinds = Arrays.copyOf(kinds, capacity);
+        timestamps = Arrays.copyOf(timestamps, capacity);
+        wholeValues = Arrays.copyOf(wholeValues, capacity);
+        fractionalValues = Arrays.copyOf(fractionalValues, capacity);
+        deltas = Arrays.copyOf(deltas, capacity);
+        rates = Arrays.copyOf(rates, capacity);
+    }
+}
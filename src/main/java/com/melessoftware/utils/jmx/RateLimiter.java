@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.melessoftware.utils.jmx;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spaces out calls so that no more than a given number start each second.
+ * <p/>
+ * Each caller is given the next free slot, a fixed interval after the one before, and sleeps until it comes. Slots
+ * that went unused while nobody was calling aren't saved up, so a burst after a quiet spell is paced like any other.
+ */
+public class RateLimiter {
+
+    private final long intervalNanos;
+    private long next = System.nanoTime();
+
+    public RateLimiter(double permitsPerSecond) {
+        if (permitsPerSecond <= 0) {
+            throw new IllegalArgumentException("permits per second must be positive, was " + permitsPerSecond);
+        }
+        this.intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond);
+    }
+
+    /**
+     * Waits for the next slot.
+     */
+    public void acquire() throws InterruptedIOException {
+        long slot;
+        long now = System.nanoTime();
+        synchronized (this) {
+            slot = Math.max(next, now);
+            next = slot + intervalNanos;
+        }
+        long wait = slot - now;
+        if (wait <= 0) {
+            return;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting to be let through");
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.melessoftware.utils.jmx;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long to wait before trying to connect again after failed attempts.
+ * <p/>
+ * The wait grows exponentially with the number of consecutive failures, up to a maximum. Each wait is then moved up
+ * or down by a random fraction of itself, so that targets which went down together don't all get retried together.
+ */
+public class ReconnectBackoff {
+
+    public static final ReconnectBackoff DEFAULT = new ReconnectBackoff(1, 60, TimeUnit.SECONDS, 2.0, 0.2);
+
+    private final long initialDelayMillis;
+    private final long maxDelayMillis;
+    private final double multiplier;
+    private final double jitter;
+
+    private final Random random = new Random();
+
+    /**
+     * @param jitter the largest fraction by which a wait is randomly lengthened or shortened, from 0 to 1
+     */
+    public ReconnectBackoff(long initialDelay, long maxDelay, TimeUnit unit, double multiplier, double jitter) {
+        if (multiplier < 1) {
+            throw new IllegalArgumentException("multiplier must be at least 1, was " + multiplier);
+        }
+        if (jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("jitter must be between 0 and 1, was " + jitter);
+        }
+        this.initialDelayMillis = unit.toMillis(initialDelay);
+        this.maxDelayMillis = unit.toMillis(maxDelay);
+        this.multiplier = multiplier;
+        this.jitter = jitter;
+    }
+
+    /**
+     * @return a copy of this backoff that waits no longer than {@code maxDelay}
+     */
+    public ReconnectBackoff withMaxDelay(long maxDelay, TimeUnit unit) {
+        return new ReconnectBackoff(initialDelayMillis, unit.toMillis(maxDelay), TimeUnit.MILLISECONDS, multiplier, jitter);
+    }
+
+    /**
+     * @param failures the number of consecutive failed attempts, at least 1
+     * @return how many milliseconds to wait before the next attempt
+     */
+    public long delayMillis(int failures) {
+        double delay = initialDelayMillis * Math.pow(multiplier, failures - 1);
+        delay = Math.min(delay, maxDelayMillis);
+        double factor;
+        synchronized (random) {
+            factor = 1 + jitter * (2 * random.nextDouble() - 1);
+        }
+        return (long) (delay * factor);
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.melessoftware.utils.jmx;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs a callback at most once in each period however often it's asked to, for serving many readers from one
+ * fetch.
+ * <p/>
+ * A caller that finds the last run too old runs the callback itself, and any callers that arrive meanwhile wait for it
+ * to finish and then find the result fresh, rather than running it again. A failed run is remembered for the same
+ * period and rethrown to the callers in it, so a target that is down isn't hit once per caller either.
+ */
+public class RefreshCoalescer {
+
+    private final JmxTemplate template;
+    private final MBeanServerCallback<?> callback;
+    private final long maxAgeMillis;
+
+    private final Object lock = new Object();
+    private volatile long refreshedAt;
+    private volatile long failedAt;
+    private volatile IOException failure;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+
+    /**
+     * @param maxAgeMillis how long a run's result is good for
+     */
+    public RefreshCoalescer(JmxTemplate template, MBeanServerCallback<?> callback, long maxAgeMillis) {
+        this.template = template;
+        this.callback = callback;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * Runs the callback if its last run is older than the maximum age, or waits for a run already in progress.
+     *
+     * @throws IOException if the run failed, now or earlier in the period
+     */
+    public void refreshIfStale() throws IOException {
+        requests.incrementAndGet();
+        if (isFresh()) {
+            return;
+        }
+        synchronized (lock) {
+            // whoever held the lock before us may have just refreshed
+            if (isFresh()) {
+                return;
+            }
+            refreshes.incrementAndGet();
+            try {
+                template.runWithConnection(callback);
+                failure = null;
+                refreshedAt = System.currentTimeMillis();
+            } catch (IOException ioe) {
+                failure = ioe;
+                failedAt = System.currentTimeMillis();
+                throw ioe;
+            }
+        }
+    }
+
+    private boolean isFresh() throws IOException {
+        long now = System.currentTimeMillis();
+        IOException lastFailure = failure;
+        if (lastFailure != null && now - failedAt < maxAgeMillis) {
+            throw lastFailure;
+        }
+        return now - refreshedAt < maxAgeMillis;
+    }
+
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    public long getRefreshCount() {
+        return refreshes.get();
+    }
+}
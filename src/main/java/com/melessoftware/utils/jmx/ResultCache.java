@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.melessoftware.utils.jmx;
+
+import javax.management.JMException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shares the results of identical calls made close together.
+ * <p/>
+ * The first call for a key goes ahead, and identical calls made while it's in flight wait for its result rather than
+ * making their own. The result is then kept for the time to live, and calls in that time get it straight away. A
+ * failed call isn't kept: the calls waiting for it fail with it, and the next one tries again. With a time to live of
+ * zero only calls that are in flight at the same time are shared.
+ * <p/>
+ * Results are dropped when they're next asked for after expiring, and all the expired results are swept out at most
+ * once per time to live, so keys that aren't asked for again don't pile up.
+ */
+public class ResultCache implements ResultCacheMXBean {
+
+    /**
+     * Makes the call whose result is to be shared.
+     */
+    public interface Call {
+
+        Object call() throws JMException, IOException;
+    }
+
+    private final long timeToLiveNanos;
+    private final ConcurrentMap<Object, Flight> flights = new ConcurrentHashMap<Object, Flight>();
+    private volatile long lastSweep = System.nanoTime();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public ResultCache(long timeToLive, TimeUnit unit) {
+        if (timeToLive < 0) {
+            throw new IllegalArgumentException("time to live can't be negative, was " + timeToLive);
+        }
+        this.timeToLiveNanos = unit.toNanos(timeToLive);
+    }
+
+    /**
+     * @param key equal for calls that would return the same result
+     * @return the result of an identical call that's in flight or recent enough, or else of making {@code call}
+     */
+    public Object get(Object key, Call call) throws JMException, IOException {
+        long now = System.nanoTime();
+        Flight flight = flights.get(key);
+        if (flight != null && flight.hasExpired(now)) {
+            flights.remove(key, flight);
+            flight = null;
+        }
+        if (flight == null) {
+            Flight started = new Flight();
+            flight = flights.putIfAbsent(key, started);
+            if (flight == null) {
+                misses.incrementAndGet();
+                sweepIfDue(now);
+                return started.make(key, call);
+            }
+        }
+        if (flight.isDone()) {
+            hits.incrementAndGet();
+        } else {
+            coalesced.incrementAndGet();
+        }
+        return flight.await();
+    }
+
+    /**
+     * Drops every result, so that the next call for each key goes to the server.
+     */
+    public void clear() {
+        flights.clear();
+    }
+
+    private void sweepIfDue(long now) {
+        if (now - lastSweep < timeToLiveNanos) {
+            return;
+        }
+        lastSweep = now;
+        for (Map.Entry<Object, Flight> entry : flights.entrySet()) {
+            if (entry.getValue().hasExpired(now)) {
+                flights.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    @Override
+    public long getTimeToLiveMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(timeToLiveNanos);
+    }
+
+    @Override
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    @Override
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    @Override
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    @Override
+    public double getHitRatio() {
+        long shared = hits.get() + coalesced.get();
+        long total = shared + misses.get();
+        return total == 0 ? 0 : (double) shared / total;
+    }
+
+    @Override
+    public int getSize() {
+        return flights.size();
+    }
+
+    private class Flight {
+
+        private final CountDownLatch done = new CountDownLatch(1);
+        // written before the latch is counted down, and only read after it has been
+        private Object result;
+        private Throwable failure;
+        private volatile long completedAt;
+
+        private Object make(Object key, Call call) throws JMException, IOException {
+            try {
+                result = call.call();
+                completedAt = System.nanoTime();
+            } catch (JMException jme) {
+                failure = jme;
+            } catch (IOException ioe) {
+                failure = ioe;
+            } catch (RuntimeException re) {
+                failure = re;
+            } catch (Error e) {
+                failure = e;
+            } finally {
+                if (failure != null) {
+                    flights.remove(key, this);
+                }
+                done.countDown();
+            }
+            return outcome();
+        }
+
+        private boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        private boolean hasExpired(long now) {
+            return isDone() && failure == null && now - completedAt >= timeToLiveNanos;
+        }
+
+        private Object await() throws JMException, IOException {
+            try {
+                done.await();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted waiting for the result of an identical call");
+            }
+            return outcome();
+        }
+
+        private Object outcome() throws JMException, IOException {
+            if (failure == null) {
+                return result;
+            }
+            if (failure instanceof JMException) {
+                throw (JMException) failure;
+            }
+            if (failure instanceof IOException) {
+                throw (IOException) failure;
+            }
+            if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            }
+            throw (Error) failure;
+        }
+    }
+}
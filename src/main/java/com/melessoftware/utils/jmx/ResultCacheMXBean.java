@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.melessoftware.utils.jmx;
+
+/**
+ * How well a {@link ResultCache} is doing, for tuning its time to live.
+ */
+public interface ResultCacheMXBean {
+
+    long getTimeToLiveMillis();
+
+    /**
+     * @return the calls answered from a result that had already arrived
+     */
+    long getHitCount();
+
+    /**
+     * @return the calls answered by waiting for an identical call that was already in flight
+     */
+    long getCoalescedCount();
+
+    /**
+     * @return the calls that had to go to the server
+     */
+    long getMissCount();
+
+    /**
+     * @return the fraction of calls that didn't have to go to the server, between 0 and 1
+     */
+    double getHitRatio();
+
+    int getSize();
+}
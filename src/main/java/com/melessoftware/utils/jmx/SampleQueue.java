@@ -0,0 +1,399 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.melessoftware.utils.jmx;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.ObjectName;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hands samples from the polling threads to the sinks on a thread of its own, so that a slow disk or a blocking log
+ * appender doesn't hold up the next poll.
+ * <p/>
+ * Samples wait in a ring buffer whose slots are allocated up front, so queueing a sample allocates nothing. The
+ * output thread takes them out in batches of up to {@link #BATCH_SIZE}, holding the lock only to copy them out, and
+ * delivers them in the order they were queued. The timestamps are the ones given by the poller when it read the
+ * values, not when they're delivered.
+ * <p/>
+ * {@link #wrap(SampleSink)} gives the sink for the pollers to use, and any number of sinks can share one queue and
+ * thread. Flushes go through the queue too, so a sink is flushed after the samples queued before the flush. The sinks
+ * are only ever called from the output thread, one at a time.
+ * <p/>
+ * When the queue is full the {@link OverflowPolicy} decides what happens to samples. Flushes and closes are never
+ * dropped: they wait for room, as they mark the end of a tick and of a sink, and {@link OverflowPolicy#DROP_OLDEST}
+ * drops the oldest sample queued around them instead, so a sink is always closed and its file finished.
+ */
+public class SampleQueue implements SampleQueueMXBean {
+
+    public enum OverflowPolicy {
+        /** make the poller wait until there's room */
+        BLOCK,
+        /** drop the sample that has been waiting longest to make room */
+        DROP_OLDEST,
+        /** drop the new sample */
+        DROP
+    }
+
+    static final int BATCH_SIZE = 256;
+
+    private static final Logger LOG = LoggerFactory.getLogger(SampleQueue.class);
+
+    private static final byte SAMPLE = 0;
+    private static final byte FLUSH = 1;
+    private static final byte CLOSE = 2;
+
+    private static final long CLOSE_TIMEOUT_SECONDS = 10;
+
+    private final int capacity;
+    private final OverflowPolicy policy;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    // the ring, as parallel arrays so that a slot is just a few array elements
+    private final byte[] kinds;
+    private final SampleSink[] sinks;
+    private final long[] timestamps;
+    private final ObjectName[] objectNames;
+    private final String[] attributeNames;
+    private final Object[] values;
+    private int head;
+    private int count;
+    private int maxCount;
+    private boolean closed;
+
+    private final List<Handle> handles = new CopyOnWriteArrayList<Handle>();
+    private final Thread output;
+
+    private volatile long delivered;
+    private volatile long dropped;
+    private volatile long failed;
+
+    public SampleQueue(int capacity, OverflowPolicy policy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1, was " + capacity);
+        }
+        this.capacity = capacity;
+        this.policy = policy;
+        kinds = new byte[capacity];
+        sinks = new SampleSink[capacity];
+        timestamps = new long[capacity];
+        objectNames = new ObjectName[capacity];
+        attributeNames = new String[capacity];
+        values = new Object[capacity];
+        output = new Thread(new Output(), "sample-output");
+        output.setDaemon(true);
+        output.start();
+    }
+
+    /**
+     * @return a sink that queues samples for delivery to {@code sink} on the output thread. Closing it closes
+     * {@code sink} once everything queued before has been delivered
+     */
+    public SampleSink wrap(SampleSink sink) {
+        Handle handle = new Handle(sink);
+        handles.add(handle);
+        return handle;
+    }
+
+    /**
+     * Delivers everything queued so far, closes the sinks that haven't been closed, and stops the output thread.
+     * Samples queued after this are dropped.
+     */
+    public void close() throws InterruptedIOException {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signal();
+            // wake pollers waiting for room, which will now drop their samples
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            output.join(TimeUnit.SECONDS.toMillis(CLOSE_TIMEOUT_SECONDS));
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for samples to be delivered");
+        }
+        if (output.isAlive()) {
+            LOG.warn("gave up waiting for {} queued samples to be delivered", getDepth());
+        }
+    }
+
+    private void put(byte kind, SampleSink sink, long timestamp, ObjectName objectName, String attributeName, Object value) throws InterruptedIOException {
+        lock.lock();
+        try {
+            while (count == capacity && !closed) {
+                if (kind == SAMPLE && policy == OverflowPolicy.DROP) {
+                    dropped++;
+                    return;
+                }
+                if (policy == OverflowPolicy.DROP_OLDEST && dropOldestSample()) {
+                    break;
+                }
+                try {
+                    notFull.await();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted waiting for room in the output queue");
+                }
+            }
+            if (closed) {
+                if (kind == SAMPLE) {
+                    dropped++;
+                }
+                return;
+            }
+            int tail = (head + count) % capacity;
+            kinds[tail] = kind;
+            sinks[tail] = sink;
+            timestamps[tail] = timestamp;
+            objectNames[tail] = objectName;
+            attributeNames[tail] = attributeName;
+            values[tail] = value;
+            count++;
+            if (count > maxCount) {
+                maxCount = count;
+            }
+            if (count == 1) {
+                notEmpty.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Makes room by dropping the oldest sample, moving any flushes and closes queued before it up a slot, so that
+     * they're still delivered, and in order.
+     *
+     * @return false if there's nothing but flushes and closes queued, which have to be waited for
+     */
+    private boolean dropOldestSample() {
+        for (int i = 0; i < count; i++) {
+            int slot = (head + i) % capacity;
+            if (kinds[slot] != SAMPLE) {
+                continue;
+            }
+            for (; i > 0; i--) {
+                int to = (head + i) % capacity;
+                int from = (head + i - 1) % capacity;
+                kinds[to] = kinds[from];
+                sinks[to] = sinks[from];
+                timestamps[to] = timestamps[from];
+                objectNames[to] = objectNames[from];
+                attributeNames[to] = attributeNames[from];
+                values[to] = values[from];
+            }
+            clear(head);
+            head = (head + 1) % capacity;
+            count--;
+            dropped++;
+            return true;
+        }
+        return false;
+    }
+
+    private void clear(int slot) {
+        // let go of what was delivered or dropped, so it can be collected
+        sinks[slot] = null;
+        objectNames[slot] = null;
+        attributeNames[slot] = null;
+        values[slot] = null;
+    }
+
+    @Override
+    public int getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public String getOverflowPolicy() {
+        return policy.name();
+    }
+
+    @Override
+    public int getDepth() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getMaxDepth() {
+        lock.lock();
+        try {
+            return maxCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long getDeliveredCount() {
+        return delivered;
+    }
+
+    @Override
+    public long getDroppedCount() {
+        return dropped;
+    }
+
+    @Override
+    public long getFailedCount() {
+        return failed;
+    }
+
+    private class Handle implements SampleSink, Flushable {
+
+        private final SampleSink sink;
+        private volatile boolean sinkClosed;
+
+        private Handle(SampleSink sink) {
+            this.sink = sink;
+        }
+
+        @Override
+        public void sample(long timestamp, ObjectName objectName, String attributeName, Object value) throws IOException {
+            put(SAMPLE, sink, timestamp, objectName, attributeName, value);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            put(FLUSH, sink, 0, null, null, null);
+        }
+
+        @Override
+        public void close() throws IOException {
+            put(CLOSE, sink, 0, null, null, null);
+        }
+    }
+
+    private class Output implements Runnable {
+
+        // the batch being delivered, copied out of the ring so the lock isn't held while the sinks work
+        private final byte[] batchKinds = new byte[BATCH_SIZE];
+        private final SampleSink[] batchSinks = new SampleSink[BATCH_SIZE];
+        private final long[] batchTimestamps = new long[BATCH_SIZE];
+        private final ObjectName[] batchObjectNames = new ObjectName[BATCH_SIZE];
+        private final String[] batchAttributeNames = new String[BATCH_SIZE];
+        private final Object[] batchValues = new Object[BATCH_SIZE];
+
+        @Override
+        public void run() {
+            int size;
+            while ((size = take()) > 0) {
+                deliver(size);
+            }
+            for (Handle handle : handles) {
+                if (!handle.sinkClosed) {
+                    close(handle.sink);
+                }
+            }
+        }
+
+        /**
+         * @return how many were taken, or 0 if the queue has been closed and everything delivered
+         */
+        private int take() {
+            lock.lock();
+            try {
+                while (count == 0) {
+                    if (closed) {
+                        return 0;
+                    }
+                    notEmpty.awaitUninterruptibly();
+                }
+                int size = Math.min(count, BATCH_SIZE);
+                for (int i = 0; i < size; i++) {
+                    int slot = (head + i) % capacity;
+                    batchKinds[i] = kinds[slot];
+                    batchSinks[i] = sinks[slot];
+                    batchTimestamps[i] = timestamps[slot];
+                    batchObjectNames[i] = objectNames[slot];
+                    batchAttributeNames[i] = attributeNames[slot];
+                    batchValues[i] = values[slot];
+                    clear(slot);
+                }
+                head = (head + size) % capacity;
+                count -= size;
+                notFull.signalAll();
+                return size;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void deliver(int size) {
+            for (int i = 0; i < size; i++) {
+                SampleSink sink = batchSinks[i];
+                try {
+                    if (batchKinds[i] == SAMPLE) {
+                        sink.sample(batchTimestamps[i], batchObjectNames[i], batchAttributeNames[i], batchValues[i]);
+                        delivered++;
+                    } else if (batchKinds[i] == FLUSH) {
+                        if (sink instanceof Flushable) {
+                            ((Flushable) sink).flush();
+                        }
+                    } else {
+                        close(sink);
+                    }
+                } catch (IOException ioe) {
+                    failed++;
+                    LOG.debug("exception delivering sample", ioe);
+                } catch (RuntimeException re) {
+                    failed++;
+                    LOG.error("exception delivering sample", re);
+                }
+                batchSinks[i] = null;
+                batchObjectNames[i] = null;
+                batchAttributeNames[i] = null;
+                batchValues[i] = null;
+            }
+        }
+
+        private void close(SampleSink sink) {
+            for (Handle handle : handles) {
+                if (handle.sink == sink) {
+                    handle.sinkClosed = true;
+                }
+            }
+            try {
+                sink.close();
+            } catch (IOException ioe) {
+                LOG.error("exception closing output", ioe);
+            }
+        }
+    }
+}
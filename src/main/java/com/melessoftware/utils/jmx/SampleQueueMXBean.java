@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.melessoftware.utils.jmx;
+
+/**
+ * How the output queue between the pollers and the sinks is doing.
+ */
+public interface SampleQueueMXBean {
+
+    int getCapacity();
+
+    String getOverflowPolicy();
+
+    /**
+     * @return the number of samples and flushes waiting to be delivered
+     */
+    int getDepth();
+
+    /**
+     * @return the most that have been waiting at once
+     */
+    int getMaxDepth();
+
+    long getDeliveredCount();
+
+    /**
+     * @return the samples dropped because the queue was full
+     */
+    long getDroppedCount();
+
+    /**
+     * @return the samples and flushes a sink failed to take
+     */
+    long getFailedCount();
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.melessoftware.utils.jmx;
+
+import javax.management.ObjectName;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Numbers each series, an attribute of a particular object, so that per series state can be kept in arrays.
+ * <p/>
+ * Ids are handed out in order from 0 and are never reused. Looking up a series that has already been seen doesn't
+ * allocate, so it's cheap enough to do for every sample.
+ * <p/>
+ * Nothing is ever removed, since there's no telling whether a series that's gone quiet will be back, so the index and
+ * the arrays kept alongside it grow with every series ever seen. That's fine for the usual fixed set of objects, but
+ * objects registered under a new name each time, such as one per connection or per request, keep it growing for as
+ * long as the process runs.
+ */
+public class SeriesIndex {
+
+    private final ConcurrentMap<ObjectName, ConcurrentMap<String, Integer>> ids =
+            new ConcurrentHashMap<ObjectName, ConcurrentMap<String, Integer>>();
+    private final List<ObjectName> objectNames = new ArrayList<ObjectName>();
+    private final List<String> attributeNames = new ArrayList<String>();
+
+    /**
+     * @return the id of the series, giving it the next id if it hasn't been seen before
+     */
+    public int idOf(ObjectName objectName, String attributeName) {
+        ConcurrentMap<String, Integer> byAttribute = ids.get(objectName);
+        if (byAttribute != null) {
+            Integer id = byAttribute.get(attributeName);
+            if (id != null) {
+                return id;
+            }
+        }
+        return add(objectName, attributeName);
+    }
+
+    /**
+     * @return the id of the series, or -1 if it hasn't been seen
+     */
+    public int find(ObjectName objectName, String attributeName) {
+        ConcurrentMap<String, Integer> byAttribute = ids.get(objectName);
+        if (byAttribute == null) {
+            return -1;
+        }
+        Integer id = byAttribute.get(attributeName);
+        return id == null ? -1 : id;
+    }
+
+    public synchronized ObjectName getObjectName(int id) {
+        return objectNames.get(id);
+    }
+
+    public synchronized String getAttributeName(int id) {
+        return attributeNames.get(id);
+    }
+
+    public synchronized int size() {
+        return objectNames.size();
+    }
+
+    private synchronized int add(ObjectName objectName, String attributeName) {
+        ConcurrentMap<String, Integer> byAttribute = ids.get(objectName);
+        if (byAttribute == null) {
+            byAttribute = new ConcurrentHashMap<String, Integer>();
+            ids.put(objectName, byAttribute);
+        }
+        Integer id = byAttribute.get(attributeName);
+        if (id == null) {
+            // added before it's published, so whoever finds the id can look up the names
+            id = objectNames.size();
+            objectNames.add(objectName);
+            attributeNames.add(attributeName);
+            byAttribute.put(attributeName, id);
+        }
+        return id;
+    }
+}
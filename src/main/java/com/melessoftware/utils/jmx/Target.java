@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.melessoftware.utils.jmx;
+
+import javax.management.remote.JMXServiceURL;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A JMX server to be monitored, as read from a targets file.
+ * <p/>
+ * A targets file has one target per line: the JMX service url, optionally followed by whitespace and a name for the
+ * target. Blank lines and lines starting with {@code #} are ignored. When no name is given the url is used.
+ */
+public class Target {
+
+    private final String name;
+    private final JMXServiceURL url;
+
+    public Target(String name, JMXServiceURL url) {
+        this.name = name;
+        this.url = url;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public JMXServiceURL getUrl() {
+        return url;
+    }
+
+    public static List<Target> load(File file) throws IOException {
+        List<Target> targets = new ArrayList<Target>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            int lineNumber = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\\s+", 2);
+                JMXServiceURL url;
+                try {
+                    url = new JMXServiceURL(fields[0]);
+                } catch (MalformedURLException mue) {
+                    throw new MalformedURLException(String.format("%s line %d: %s", file, lineNumber, mue.getMessage()));
+                }
+                targets.add(new Target(fields.length > 1 ? fields[1] : fields[0], url));
+            }
+        } finally {
+            reader.close();
+        }
+        return targets;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
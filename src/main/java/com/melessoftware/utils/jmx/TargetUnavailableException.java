@@ -0,0 +1,41 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.melessoftware.utils.jmx;
+
+import javax.management.remote.JMXServiceURL;
+import java.io.IOException;
+
+/**
+ * Thrown instead of trying to connect to a target that is known to be down.
+ */
+public class TargetUnavailableException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public TargetUnavailableException(JMXServiceURL jmxUrl, long retryInMillis) {
+        super(String.format("%s is unavailable, will retry in %d ms", jmxUrl, retryInMillis));
+    }
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        // thrown on every skipped tick, and the stack trace would tell nobody anything
+        return this;
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.melessoftware.utils.jmx;
+
+import joptsimple.OptionException;
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+import joptsimple.OptionSpec;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Prints the samples in a file written by {@link TimeSeriesFileSink} as text, one sample per line.
+ */
+public class TimeSeriesDump {
+
+    private static final int EXIT_STATUS_INVALID_ARGS = -1;
+    private static final int EXIT_STATUS_READ = 1;
+
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+    private static final long LARGEST_EXACT_LONG = 1L << 53;
+
+    public static void main(String[] args) throws IOException {
+        OptionParser parser = new OptionParser();
+        OptionSpec<File> fileSpec = parser.accepts("i", "time series file written by log -o").withRequiredArg().ofType(File.class).required();
+        OptionSpec<String> objectNameSpec = parser.accepts("n", "only show objects with names matching this pattern").withRequiredArg().defaultsTo("*:*");
+        OptionSpec<String> attributeNameSpec = parser.accepts("a", "only show this attribute (may be repeated or comma separated)").withRequiredArg().withValuesSeparatedBy(',');
+
+        OptionSet options = null;
+        try {
+            options = parser.parse(args);
+        } catch (OptionException oe) {
+            System.err.println(oe.getMessage());
+            parser.printHelpOn(System.err);
+            System.exit(EXIT_STATUS_INVALID_ARGS);
+        }
+
+        String objectName = options.valueOf(objectNameSpec);
+        ObjectName objectNamePattern;
+        try {
+            objectNamePattern = new ObjectName(objectName);
+        } catch (MalformedObjectNameException mone) {
+            System.err.printf("Invalid ObjectName pattern: %s%n", objectName);
+            System.exit(EXIT_STATUS_INVALID_ARGS);
+            return;
+        }
+
+        File file = options.valueOf(fileSpec);
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out));
+        try {
+            dump(file, objectNamePattern, options.valuesOf(attributeNameSpec), out);
+        } catch (IOException ioe) {
+            out.flush();
+            System.err.printf("Failure reading %s: %s%n", file, ioe.getMessage());
+            System.exit(EXIT_STATUS_READ);
+        }
+        out.flush();
+    }
+
+    /**
+     * @param attributeNames the attributes to show, or all of them if empty
+     */
+    public static void dump(File file, final ObjectName objectNamePattern, List<String> attributeNames, final Appendable out) throws IOException {
+        final Set<String> wanted = new HashSet<String>(attributeNames);
+        final List<String> prefixes = new ArrayList<String>();
+        final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+        final Date date = new Date();
+        final IOException[] failure = new IOException[1];
+
+        new TimeSeriesFileReader(file).read(new TimeSeriesFileReader.Visitor() {
+            @Override
+            public void series(int id, ObjectName objectName, String attributeName) {
+                boolean shown = objectNamePattern.apply(objectName) && (wanted.isEmpty() || wanted.contains(attributeName));
+                prefixes.add(shown ? " " + objectName + " " + attributeName + " " : null);
+            }
+
+            @Override
+            public void sample(int id, long timestamp, double value) {
+                String prefix = prefixes.get(id);
+                if (prefix == null || failure[0] != null) {
+                    return;
+                }
+                date.setTime(timestamp);
+                try {
+                    out.append(dateFormat.format(date)).append(prefix).append(format(value)).append(LINE_SEPARATOR);
+                } catch (IOException ioe) {
+                    failure[0] = ioe;
+                }
+            }
+        });
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+    }
+
+    private static String format(double value) {
+        // counters and gauges are usually whole numbers, and read better without a trailing .0
+        if (value == Math.rint(value) && Math.abs(value) < LARGEST_EXACT_LONG) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+}
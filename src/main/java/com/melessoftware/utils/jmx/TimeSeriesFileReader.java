@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.melessoftware.utils.jmx;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Reads a file written by {@link TimeSeriesFileSink}.
+ * <p/>
+ * Samples are read a block at a time, so the samples of a series are in order but those of different series are
+ * interleaved by block rather than by time.
+ */
+public class TimeSeriesFileReader {
+
+    /**
+     * Receives the contents of the file, in the order it was written.
+     */
+    public interface Visitor {
+
+        void series(int id, ObjectName objectName, String attributeName);
+
+        void sample(int id, long timestamp, double value);
+    }
+
+    private final File file;
+
+    public TimeSeriesFileReader(File file) {
+        this.file = file;
+    }
+
+    public void read(Visitor visitor) throws IOException {
+        scan(visitor, true);
+    }
+
+    /**
+     * Adds the series in the file to {@code index}, which must be empty, without decoding any samples.
+     *
+     * @return where the last complete record ends, which is where any more should be written
+     */
+    long readSeries(final SeriesIndex index) throws IOException {
+        return scan(new Visitor() {
+            @Override
+            public void series(int id, ObjectName objectName, String attributeName) {
+                index.idOf(objectName, attributeName);
+            }
+
+            @Override
+            public void sample(int id, long timestamp, double value) {
+            }
+        }, false);
+    }
+
+    private long scan(Visitor visitor, boolean decode) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != TimeSeriesFileSink.MAGIC) {
+                throw new IOException(file + " is not a time series file");
+            }
+            int version = in.readInt();
+            if (version != TimeSeriesFileSink.VERSION) {
+                throw new IOException(file + " is version " + version + ", which isn't supported");
+            }
+            long position = TimeSeriesFileSink.HEADER_SIZE;
+            int seriesCount = 0;
+            while (true) {
+                int type = in.read();
+                if (type == -1 || type == 0) {
+                    return position;
+                }
+                try {
+                    if (type == TimeSeriesFileSink.SERIES_RECORD) {
+                        int id = in.readInt();
+                        byte[] name = new byte[in.readUnsignedShort()];
+                        in.readFully(name);
+                        byte[] attribute = new byte[in.readUnsignedShort()];
+                        in.readFully(attribute);
+                        if (id != seriesCount++) {
+                            throw new IOException(String.format("%s is corrupt, series %d is out of order at offset %d", file, id, position));
+                        }
+                        visitor.series(id, objectName(name, position), new String(attribute, TimeSeriesFileSink.UTF_8));
+                        position += 1 + 4 + 2 + name.length + 2 + attribute.length;
+                    } else if (type == TimeSeriesFileSink.BLOCK_RECORD) {
+                        int id = in.readInt();
+                        long firstTimestamp = in.readLong();
+                        int count = in.readUnsignedShort();
+                        byte[] bytes = new byte[in.readInt()];
+                        in.readFully(bytes);
+                        if (decode) {
+                            BlockDecoder decoder = new BlockDecoder(bytes, count, firstTimestamp);
+                            while (decoder.next()) {
+                                visitor.sample(id, decoder.getTimestamp(), decoder.getValue());
+                            }
+                        }
+                        position += 1 + 4 + 8 + 2 + 4 + bytes.length;
+                    } else {
+                        throw new IOException(String.format("%s is corrupt, unknown record type %d at offset %d", file, type, position));
+                    }
+                } catch (EOFException eofe) {
+                    // the file was cut short in the middle of a record
+                    return position;
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private ObjectName objectName(byte[] name, long position) throws IOException {
+        try {
+            return new ObjectName(new String(name, TimeSeriesFileSink.UTF_8));
+        } catch (MalformedObjectNameException mone) {
+            throw new IOException(String.format("%s is corrupt, bad object name at offset %d", file, position), mone);
+        }
+    }
+}
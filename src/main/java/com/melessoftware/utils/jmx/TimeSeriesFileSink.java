@@ -0,0 +1,252 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.melessoftware.utils.jmx;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes numeric samples to a compact, append-only file, which can be read back with {@link TimeSeriesFileReader}.
+ * <p/>
+ * The file starts with a header, followed by records of two kinds. A series record gives a series, an attribute of a
+ * particular object, the next id, and is written the first time the series is seen, so names are stored once rather
+ * than with every sample. A block record holds a run of samples from one series, compressed by {@link BlockEncoder}.
+ * Samples are collected in memory until a series has a block's worth, so a process that is killed rather than
+ * closed loses at most the last block of each series. A record's type byte is written after the rest of it, so a
+ * record that was cut short is never read.
+ * <p/>
+ * The file is written through a memory mapping, grown a chunk at a time, and opening an existing file appends to it.
+ * Only one sink at a time, in this process or any other, can have a file open, as two appending to it would corrupt
+ * it. Values that are numbers or booleans are stored as doubles, and anything else is skipped, as are the samples of
+ * series whose names are too long to store.
+ */
+public class TimeSeriesFileSink implements SampleSink {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TimeSeriesFileSink.class);
+
+    static final int MAGIC = 0x4d4a5453;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 8;
+    static final byte SERIES_RECORD = 1;
+    static final byte BLOCK_RECORD = 2;
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public static final int DEFAULT_SAMPLES_PER_BLOCK = 120;
+    // counts and name lengths are stored as unsigned shorts
+    private static final int MAX_SAMPLES_PER_BLOCK = 0xffff;
+    private static final int MAX_NAME_LENGTH = 0xffff;
+    private static final int CHUNK_SIZE = 16 * 1024 * 1024;
+
+    private final File file;
+    private final int samplesPerBlock;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+    private MappedByteBuffer buffer;
+    private long bufferStart;
+
+    private final SeriesIndex series = new SeriesIndex();
+    private final List<BlockEncoder> encoders = new ArrayList<BlockEncoder>();
+    private long skipped;
+    private long tooLong;
+    private boolean closed;
+
+    public TimeSeriesFileSink(File file) throws IOException {
+        this(file, DEFAULT_SAMPLES_PER_BLOCK);
+    }
+
+    public TimeSeriesFileSink(File file, int samplesPerBlock) throws IOException {
+        if (samplesPerBlock < 1 || samplesPerBlock > MAX_SAMPLES_PER_BLOCK) {
+            throw new IllegalArgumentException("samplesPerBlock must be between 1 and " + MAX_SAMPLES_PER_BLOCK + ", was " + samplesPerBlock);
+        }
+        this.file = file;
+        this.samplesPerBlock = samplesPerBlock;
+
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        channel = randomAccessFile.getChannel();
+        long end = 0;
+        try {
+            lock();
+            if (file.length() > 0) {
+                // carry on from where the last run stopped, with the same series ids
+                end = new TimeSeriesFileReader(file).readSeries(series);
+                for (int i = 0; i < series.size(); i++) {
+                    encoders.add(new BlockEncoder());
+                }
+            }
+            map(end, CHUNK_SIZE);
+        } catch (IOException ioe) {
+            randomAccessFile.close();
+            throw ioe;
+        }
+        if (end == 0) {
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+        }
+    }
+
+    @Override
+    public synchronized void sample(long timestamp, ObjectName objectName, String attributeName, Object value) throws IOException {
+        double number;
+        if (value instanceof Number) {
+            number = ((Number) value).doubleValue();
+        } else if (value instanceof Boolean) {
+            number = (Boolean) value ? 1 : 0;
+        } else {
+            skipped++;
+            return;
+        }
+        if (closed) {
+            throw new IOException(file + " has been closed");
+        }
+
+        int id = series.find(objectName, attributeName);
+        if (id < 0) {
+            byte[] name = objectName.getCanonicalName().getBytes(UTF_8);
+            byte[] attribute = attributeName.getBytes(UTF_8);
+            if (name.length > MAX_NAME_LENGTH || attribute.length > MAX_NAME_LENGTH) {
+                // not given an id, as the reader expects every id to have a series record
+                if (tooLong++ == 0) {
+                    LOG.warn("skipping a series with a name of {} bytes, at most {} can be stored", Math.max(name.length, attribute.length), MAX_NAME_LENGTH);
+                }
+                skipped++;
+                return;
+            }
+            id = series.idOf(objectName, attributeName);
+            writeSeries(id, name, attribute);
+            encoders.add(new BlockEncoder());
+        }
+        BlockEncoder encoder = encoders.get(id);
+        encoder.add(timestamp, number);
+        if (encoder.getCount() == samplesPerBlock) {
+            writeBlock(id, encoder);
+        }
+    }
+
+    /**
+     * @return how many samples were skipped because their values weren't numbers, or their names were too long
+     */
+    public synchronized long getSkippedCount() {
+        return skipped;
+    }
+
+    /**
+     * Writes out the samples collected so far and makes sure they're on disk.
+     */
+    public synchronized void flush() throws IOException {
+        for (int id = 0; id < encoders.size(); id++) {
+            BlockEncoder encoder = encoders.get(id);
+            if (encoder.getCount() > 0) {
+                writeBlock(id, encoder);
+            }
+        }
+        buffer.force();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            flush();
+            // drop the unused part of the last chunk
+            channel.truncate(bufferStart + buffer.position());
+        } finally {
+            closed = true;
+            randomAccessFile.close();
+        }
+        if (skipped > 0) {
+            LOG.info("skipped {} samples that weren't numbers or had names too long to store", skipped);
+        }
+    }
+
+    private void writeSeries(int id, byte[] name, byte[] attribute) throws IOException {
+        int start = startRecord(1 + 4 + 2 + name.length + 2 + attribute.length);
+        buffer.putInt(id);
+        buffer.putShort((short) name.length);
+        buffer.put(name);
+        buffer.putShort((short) attribute.length);
+        buffer.put(attribute);
+        buffer.put(start, SERIES_RECORD);
+    }
+
+    private void writeBlock(int id, BlockEncoder encoder) throws IOException {
+        int length = encoder.getByteLength();
+        int start = startRecord(1 + 4 + 8 + 2 + 4 + length);
+        buffer.putInt(id);
+        buffer.putLong(encoder.getFirstTimestamp());
+        buffer.putShort((short) encoder.getCount());
+        buffer.putInt(length);
+        buffer.put(encoder.getBytes(), 0, length);
+        buffer.put(start, BLOCK_RECORD);
+        encoder.reset();
+    }
+
+    /**
+     * Locks a byte far past the end of the file rather than the file itself, so that reading it isn't blocked on
+     * platforms where locks are enforced.
+     */
+    private void lock() throws IOException {
+        FileLock lock;
+        try {
+            lock = channel.tryLock(Long.MAX_VALUE - 1, 1, false);
+        } catch (OverlappingFileLockException ofle) {
+            throw new IOException(file + " is already open in this process");
+        }
+        if (lock == null) {
+            throw new IOException(file + " is already open in another process");
+        }
+    }
+
+    /**
+     * Makes room for a record, leaving a zero where its type goes until the rest has been written.
+     *
+     * @return the position of the record's type byte
+     */
+    private int startRecord(int length) throws IOException {
+        // always leave a zero after the record, to mark the end of the file
+        if (buffer.remaining() < length + 1) {
+            map(bufferStart + buffer.position(), Math.max(CHUNK_SIZE, length + 1));
+        }
+        int start = buffer.position();
+        buffer.put((byte) 0);
+        return start;
+    }
+
+    private void map(long position, int size) throws IOException {
+        if (buffer != null) {
+            buffer.force();
+        }
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, position, size);
+        bufferStart = position;
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.melessoftware.utils.jmx;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class AttributeExpanderTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AttributeExpanderTest.class);
+
+    public interface ThingMBean {
+
+        long getCount();
+
+        long getErrorCount();
+
+        String getName();
+    }
+
+    public static class Thing implements ThingMBean {
+
+        @Override
+        public long getCount() {
+            return 1;
+        }
+
+        @Override
+        public long getErrorCount() {
+            return 0;
+        }
+
+        @Override
+        public String getName() {
+            return "thing";
+        }
+    }
+
+    private final Map<String, Integer> calls = new HashMap<String, Integer>();
+    private MBeanServer server;
+    private MBeanServerConnection connection;
+
+    @Before
+    public void registerThings() throws Exception {
+        server = MBeanServerFactory.newMBeanServer();
+        for (String name : new String[]{"a:type=Thing,name=1", "a:type=Thing,name=2", "b:type=Thing,name=1"}) {
+            server.registerMBean(new Thing(), new ObjectName(name));
+        }
+        connection = (MBeanServerConnection) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[]{MBeanServerConnection.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        Integer count = calls.get(method.getName());
+                        calls.put(method.getName(), count == null ? 1 : count + 1);
+                        try {
+                            return method.invoke(server, args);
+                        } catch (InvocationTargetException ite) {
+                            throw ite.getCause();
+                        }
+                    }
+                });
+    }
+
+    @Test
+    public void expandsWildcardsAfterNamedAttributes() throws Exception {
+        AttributeExpander expander = new AttributeExpander(Arrays.asList("Name", "*Count"));
+        ObjectName pattern = new ObjectName("a:*");
+        expander.prepare(connection, pattern, names(pattern), LOG);
+
+        AttributeExpander.Expansion expansion = expander.expansionFor(new ObjectName("a:type=Thing,name=1"));
+        assertArrayEquals(new String[]{"Name", "Count", "ErrorCount"}, expansion.attributeNames);
+        assertEquals(1, expansion.namedCount);
+        assertEquals(1, count("getMBeanInfo"));
+    }
+
+    @Test
+    public void keepsWhatWasLearntForEachPattern() throws Exception {
+        AttributeExpander expander = new AttributeExpander(Collections.singletonList("*"));
+        ObjectName a = new ObjectName("a:*");
+        ObjectName b = new ObjectName("b:*");
+        expander.prepare(connection, a, names(a), LOG);
+        expander.prepare(connection, b, names(b), LOG);
+        expander.prepare(connection, a, names(a), LOG);
+        expander.prepare(connection, b, names(b), LOG);
+
+        assertEquals(2, count("queryMBeans"));
+        assertEquals(1, count("getMBeanInfo"));
+        assertEquals(3, expander.expansionFor(new ObjectName("a:type=Thing,name=2")).attributeNames.length);
+    }
+
+    @Test
+    public void looksUpOnlyTheNewNames() throws Exception {
+        AttributeExpander expander = new AttributeExpander(Collections.singletonList("*"));
+        ObjectName pattern = new ObjectName("a:*");
+        expander.prepare(connection, pattern, names(pattern), LOG);
+        ObjectName added = new ObjectName("a:type=Thing,name=3");
+        server.registerMBean(new Thing(), added);
+        expander.prepare(connection, pattern, names(pattern), LOG);
+
+        assertEquals(1, count("queryMBeans"));
+        assertEquals(1, count("getObjectInstance"));
+        assertEquals(3, expander.expansionFor(added).attributeNames.length);
+    }
+
+    @Test
+    public void looksAgainAtAClassOnceItsNamesHaveGone() throws Exception {
+        AttributeExpander expander = new AttributeExpander(Collections.singletonList("*"));
+        ObjectName pattern = new ObjectName("b:*");
+        ObjectName thing = new ObjectName("b:type=Thing,name=1");
+        expander.prepare(connection, pattern, names(pattern), LOG);
+        server.unregisterMBean(thing);
+        expander.prepare(connection, pattern, names(pattern), LOG);
+        server.registerMBean(new Thing(), thing);
+        expander.prepare(connection, pattern, names(pattern), LOG);
+
+        assertEquals(2, count("getMBeanInfo"));
+    }
+
+    private Set<ObjectName> names(ObjectName pattern) {
+        return server.queryNames(pattern, null);
+    }
+
+    private int count(String method) {
+        Integer count = calls.get(method);
+        return count == null ? 0 : count;
+    }
+}
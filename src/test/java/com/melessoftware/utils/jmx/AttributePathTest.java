@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.melessoftware.utils.jmx;
+
+import org.junit.Test;
+
+import javax.management.Attribute;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class AttributePathTest {
+
+    @Test
+    public void takesTheWholeNameWhenItIsAnAttribute() {
+        AttributePath path = AttributePath.of("Usage.used", new HashSet<String>(Arrays.asList("Usage", "Usage.used")));
+        assertArrayEquals(new String[]{"Usage.used"}, AttributePath.attributeNames(new AttributePath[]{path}));
+        assertEquals(42L, path.valueIn(Collections.singletonList(new Attribute("Usage.used", 42L))));
+    }
+
+    @Test
+    public void splitsAtTheLongestAttribute() {
+        AttributePath path = AttributePath.of("cache.stats.hits", new HashSet<String>(Arrays.asList("cache", "cache.stats")));
+        assertArrayEquals(new String[]{"cache.stats"}, AttributePath.attributeNames(new AttributePath[]{path}));
+    }
+
+    @Test
+    public void splitsAtTheFirstDotWhenTheAttributesArentKnown() {
+        AttributePath path = new AttributePath("Usage.used");
+        assertArrayEquals(new String[]{"Usage"}, AttributePath.attributeNames(new AttributePath[]{path}));
+        assertArrayEquals(new String[]{"Usage"},
+                AttributePath.attributeNames(new AttributePath[]{AttributePath.of("Usage.used", Collections.<String>emptySet())}));
+    }
+
+    @Test
+    public void selectsFromValuesOfDifferentTypes() throws Exception {
+        CompositeData young = composite("Young", new String[]{"used", "max"}, 1L, 2L);
+        CompositeData old = composite("Old", new String[]{"used", "committed"}, 3L, 4L);
+        AttributePath path = new AttributePath("Usage.used");
+        for (int i = 0; i < 3; i++) {
+            assertEquals(1L, path.select(young));
+            assertEquals(3L, path.select(old));
+        }
+        assertSame(AttributePath.MISSING, new AttributePath("Usage.max").select(old));
+        assertEquals(2L, new AttributePath("Usage.max").select(young));
+    }
+
+    @Test
+    public void itemNamesMayHaveDots() throws Exception {
+        CompositeData data = composite("Dotted", new String[]{"a", "a.b"}, 1L, 2L);
+        assertEquals(2L, new AttributePath("X.a.b").select(data));
+        assertEquals(1L, new AttributePath("X.a").select(data));
+    }
+
+    @Test
+    public void missesWhenThereIsNoPath() {
+        assertSame(AttributePath.MISSING, new AttributePath("Count.used").select(5L));
+        assertSame(AttributePath.MISSING, new AttributePath("Count").valueIn(Collections.<Attribute>emptyList()));
+    }
+
+    private static CompositeData composite(String typeName, String[] keys, Object... values) throws OpenDataException {
+        OpenType<?>[] types = new OpenType<?>[keys.length];
+        Arrays.fill(types, SimpleType.LONG);
+        CompositeType type = new CompositeType(typeName, typeName, keys, keys, types);
+        return new CompositeDataSupport(type, keys, values);
+    }
+}
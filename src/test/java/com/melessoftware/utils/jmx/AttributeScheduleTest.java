@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.melessoftware.utils.jmx;
+
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import javax.management.ObjectName;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class AttributeScheduleTest {
+
+    private static final SampleSink DISCARD = new SampleSink() {
+        @Override
+        public void sample(long timestamp, ObjectName objectName, String attributeName, Object value) {
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    @Test
+    public void parsesIntervals() {
+        assertEquals(250, AttributeSchedule.parseInterval("250"));
+        assertEquals(250, AttributeSchedule.parseInterval("250ms"));
+        assertEquals(10000, AttributeSchedule.parseInterval("10s"));
+        assertEquals(300000, AttributeSchedule.parseInterval(" 5m "));
+        assertEquals(7200000, AttributeSchedule.parseInterval("2h"));
+    }
+
+    @Test
+    public void rejectsBadIntervals() {
+        for (String interval : Arrays.asList("", "0s", "-1s", "5d", "1.5s", "s")) {
+            try {
+                AttributeSchedule.parseInterval(interval);
+                fail("parsed " + interval);
+            } catch (IllegalArgumentException expected) {
+                // as it should be
+            }
+        }
+    }
+
+    @Test
+    public void separatesNamesFromIntervals() {
+        assertEquals("HeapMemoryUsage", AttributeSchedule.attributeName("HeapMemoryUsage@5s"));
+        assertEquals("HeapMemoryUsage", AttributeSchedule.attributeName("HeapMemoryUsage"));
+        assertEquals("odd@name", AttributeSchedule.attributeName("odd@name@1m"));
+    }
+
+    @Test
+    public void ticksAtTheGreatestCommonDivisorOfTheIntervals() {
+        assertEquals(1000, AttributeSchedule.periodMillis(Arrays.asList("A", "B@5s"), 1000));
+        assertEquals(1000, AttributeSchedule.periodMillis(Arrays.asList("A@2s", "B@3s"), 60000));
+        assertEquals(15000, AttributeSchedule.periodMillis(Arrays.asList("A@30s", "B@45s", "C@1m"), 60000));
+        assertEquals(5000, AttributeSchedule.periodMillis(Collections.singletonList("A"), 5000));
+        assertEquals(1000, schedule(Arrays.asList("A@2s", "B@3s"), 60000).getPeriodMillis());
+    }
+
+    @Test
+    public void runsEachGroupOnMultiplesOfItsInterval() {
+        AttributeSchedule schedule = schedule(Arrays.asList("A@2s", "B@3s", "C@2s"), 60000);
+        assertNull("nothing is due at 1s", schedule.callbackFor(1000));
+        MBeanServerCallback<?> twoSeconds = schedule.callbackFor(2000);
+        MBeanServerCallback<?> threeSeconds = schedule.callbackFor(3000);
+        MBeanServerCallback<?> sixSeconds = schedule.callbackFor(6000);
+        assertNotNull(twoSeconds);
+        assertNotNull(threeSeconds);
+        assertNotNull(sixSeconds);
+        assertNotSame(twoSeconds, threeSeconds);
+        assertNotSame(twoSeconds, sixSeconds);
+        assertNotSame(threeSeconds, sixSeconds);
+        // the same groups coming due again are read by the same callback
+        assertSame(twoSeconds, schedule.callbackFor(4000));
+        assertSame(threeSeconds, schedule.callbackFor(9000));
+        assertSame(sixSeconds, schedule.callbackFor(12000));
+    }
+
+    @Test
+    public void rejectsTooManyDifferentIntervals() {
+        List<String> specs = new ArrayList<String>();
+        for (int i = 1; i <= Long.SIZE; i++) {
+            specs.add("A" + i + "@" + i + "s");
+        }
+        try {
+            AttributeSchedule.periodMillis(specs, 1000);
+            fail("accepted " + specs.size() + " intervals");
+        } catch (IllegalArgumentException expected) {
+            // as it should be
+        }
+        // one fewer fits
+        AttributeSchedule.periodMillis(specs.subList(1, specs.size()), 1000);
+    }
+
+    private static AttributeSchedule schedule(List<String> specs, long defaultIntervalMillis) {
+        try {
+            return new AttributeSchedule(specs, defaultIntervalMillis, new ObjectNameCache(new ObjectName("test:*")), DISCARD,
+                    LoggerFactory.getLogger(AttributeScheduleTest.class));
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.melessoftware.utils.jmx;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BlockEncoderTest {
+
+    @Test
+    public void roundTripsRegularSamples() {
+        long[] timestamps = new long[120];
+        double[] values = new double[timestamps.length];
+        for (int i = 0; i < timestamps.length; i++) {
+            timestamps[i] = 1350000000000L + i * 1000L;
+            values[i] = i % 10 == 0 ? i : values[Math.max(i - 1, 0)];
+        }
+        assertRoundTrip(timestamps, values);
+    }
+
+    @Test
+    public void roundTripsEveryRangeOfTimestampChange() {
+        long[] timestamps = {0, 1000, 2000, 2001, 3064, 3000, 3256, 5000, 9000, 7000, -1, Long.MAX_VALUE / 2, 0, 0, 3};
+        double[] values = new double[timestamps.length];
+        assertRoundTrip(timestamps, values);
+    }
+
+    @Test
+    public void roundTripsSpecialValues() {
+        double[] values = {0.0, -0.0, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.MIN_VALUE,
+                Double.MAX_VALUE, -Double.MAX_VALUE, 1, 1, Long.MAX_VALUE, Long.MIN_VALUE, 0.1, 0.2, 0.30000000000000004};
+        long[] timestamps = new long[values.length];
+        for (int i = 0; i < timestamps.length; i++) {
+            timestamps[i] = i * 10L;
+        }
+        assertRoundTrip(timestamps, values);
+    }
+
+    @Test
+    public void roundTripsRandomSamples() {
+        Random random = new Random(42);
+        long[] timestamps = new long[5000];
+        double[] values = new double[timestamps.length];
+        long timestamp = System.currentTimeMillis();
+        for (int i = 0; i < timestamps.length; i++) {
+            timestamp += random.nextInt(10) == 0 ? random.nextInt(100000) - 50000 : 1000 + random.nextInt(5);
+            timestamps[i] = timestamp;
+            switch (random.nextInt(4)) {
+                case 0:
+                    values[i] = random.nextGaussian();
+                    break;
+                case 1:
+                    values[i] = Double.longBitsToDouble(random.nextLong());
+                    break;
+                case 2:
+                    values[i] = random.nextInt(1000);
+                    break;
+                default:
+                    values[i] = i > 0 ? values[i - 1] : 0;
+            }
+        }
+        assertRoundTrip(timestamps, values);
+    }
+
+    @Test
+    public void startsAfreshAfterReset() {
+        BlockEncoder encoder = new BlockEncoder();
+        encoder.add(1000, Double.longBitsToDouble(-1L));
+        encoder.add(2000, 3);
+        encoder.reset();
+        assertEquals(0, encoder.getCount());
+        assertEquals(0, encoder.getByteLength());
+
+        encoder.add(5000, 7);
+        encoder.add(6000, 8);
+        BlockDecoder decoder = new BlockDecoder(encoder.getBytes(), encoder.getCount(), encoder.getFirstTimestamp());
+        assertTrue(decoder.next());
+        assertEquals(5000, decoder.getTimestamp());
+        assertEquals(7, decoder.getValue(), 0);
+        assertTrue(decoder.next());
+        assertEquals(6000, decoder.getTimestamp());
+        assertEquals(8, decoder.getValue(), 0);
+        assertFalse(decoder.next());
+    }
+
+    @Test
+    public void storesUnchangedValuesOnRegularTicksInAboutTwoBitsEach() {
+        BlockEncoder encoder = new BlockEncoder();
+        for (int i = 0; i < 1000; i++) {
+            encoder.add(i * 1000L, 42);
+        }
+        // the first value and delta, then a bit for the timestamp and one for the value
+        assertTrue(encoder.getByteLength() < 8 + 2 + 1000 * 2 / 8 + 2);
+    }
+
+    private static void assertRoundTrip(long[] timestamps, double[] values) {
+        BlockEncoder encoder = new BlockEncoder();
+        for (int i = 0; i < timestamps.length; i++) {
+            encoder.add(timestamps[i], values[i]);
+        }
+        assertEquals(timestamps.length, encoder.getCount());
+        assertEquals(timestamps[0], encoder.getFirstTimestamp());
+
+        BlockDecoder decoder = new BlockDecoder(encoder.getBytes(), encoder.getCount(), encoder.getFirstTimestamp());
+        for (int i = 0; i < timestamps.length; i++) {
+            assertTrue("sample " + i, decoder.next());
+            assertEquals("timestamp " + i, timestamps[i], decoder.getTimestamp());
+            // NaNs come back as the one canonical NaN, which is all a reader can tell apart anyway
+            assertEquals("value " + i, Double.doubleToLongBits(values[i]), Double.doubleToLongBits(decoder.getValue()));
+        }
+        assertFalse(decoder.next());
+    }
+}
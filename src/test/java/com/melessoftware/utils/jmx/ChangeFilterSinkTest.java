@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.melessoftware.utils.jmx;
+
+import org.junit.Test;
+
+import javax.management.ObjectName;
+import java.io.Flushable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ChangeFilterSinkTest {
+
+    private static final ObjectName OBJECT_NAME = objectName("test:type=Thing");
+
+    private final RecordingSink recording = new RecordingSink();
+
+    @Test
+    public void passesOnOnlyChanges() throws Exception {
+        ChangeFilterSink sink = new ChangeFilterSink(0, recording);
+        sink.sample(1000, OBJECT_NAME, "Count", 1L);
+        sink.sample(2000, OBJECT_NAME, "Count", 1L);
+        sink.sample(3000, OBJECT_NAME, "Count", 2L);
+        sink.sample(4000, OBJECT_NAME, "Count", 2L);
+
+        assertEquals(list(1L, 2L), recording.values);
+        assertEquals(Arrays.asList(1000L, 3000L), recording.timestamps);
+        assertEquals(2, sink.getSuppressedCount());
+    }
+
+    @Test
+    public void passesOnUnchangedValuesOnEachHeartbeat() throws Exception {
+        ChangeFilterSink sink = new ChangeFilterSink(3000, recording);
+        for (long timestamp = 1000; timestamp <= 8000; timestamp += 1000) {
+            sink.sample(timestamp, OBJECT_NAME, "Count", 5L);
+        }
+
+        assertEquals(Arrays.asList(1000L, 4000L, 7000L), recording.timestamps);
+    }
+
+    @Test
+    public void startsTheHeartbeatAgainAfterAChange() throws Exception {
+        ChangeFilterSink sink = new ChangeFilterSink(3000, recording);
+        sink.sample(1000, OBJECT_NAME, "Count", 5L);
+        sink.sample(3000, OBJECT_NAME, "Count", 6L);
+        sink.sample(5000, OBJECT_NAME, "Count", 6L);
+        sink.sample(6000, OBJECT_NAME, "Count", 6L);
+
+        assertEquals(Arrays.asList(1000L, 3000L, 6000L), recording.timestamps);
+    }
+
+    @Test
+    public void keepsEachSeriesApart() throws Exception {
+        ChangeFilterSink sink = new ChangeFilterSink(0, recording);
+        sink.sample(1000, OBJECT_NAME, "Count", 1L);
+        sink.sample(1000, OBJECT_NAME, "ErrorCount", 1L);
+        sink.sample(1000, objectName("test:type=Other"), "Count", 1L);
+        sink.sample(2000, OBJECT_NAME, "Count", 1L);
+
+        assertEquals(3, recording.values.size());
+    }
+
+    @Test
+    public void comparesNumbersByValueAndKind() throws Exception {
+        ChangeFilterSink sink = new ChangeFilterSink(0, recording);
+        sink.sample(1000, OBJECT_NAME, "Value", 1);
+        sink.sample(2000, OBJECT_NAME, "Value", 1L);
+        sink.sample(3000, OBJECT_NAME, "Value", 1.0);
+        sink.sample(4000, OBJECT_NAME, "Value", 1.0f);
+        sink.sample(5000, OBJECT_NAME, "Value", Double.NaN);
+        sink.sample(6000, OBJECT_NAME, "Value", Double.NaN);
+
+        // an int and a long are both whole numbers, as are a double and a float of the same value
+        assertEquals(list(1, 1.0, Double.NaN), recording.values);
+    }
+
+    @Test
+    public void comparesArraysByTheirContents() throws Exception {
+        ChangeFilterSink sink = new ChangeFilterSink(0, recording);
+        sink.sample(1000, OBJECT_NAME, "Values", new long[]{1, 2});
+        sink.sample(2000, OBJECT_NAME, "Values", new long[]{1, 2});
+        sink.sample(3000, OBJECT_NAME, "Values", new long[]{1, 3});
+        sink.sample(4000, OBJECT_NAME, "Names", new String[]{"a"});
+        sink.sample(5000, OBJECT_NAME, "Names", new String[]{"a"});
+
+        assertEquals(Arrays.asList(1000L, 3000L, 4000L), recording.timestamps);
+    }
+
+    @Test
+    public void treatsNullAsAValueOfItsOwn() throws Exception {
+        ChangeFilterSink sink = new ChangeFilterSink(0, recording);
+        sink.sample(1000, OBJECT_NAME, "State", null);
+        sink.sample(2000, OBJECT_NAME, "State", null);
+        sink.sample(3000, OBJECT_NAME, "State", "STARTED");
+        sink.sample(4000, OBJECT_NAME, "State", "STARTED");
+        sink.sample(5000, OBJECT_NAME, "State", null);
+        sink.sample(6000, OBJECT_NAME, "Count", 0L);
+
+        assertEquals(list(null, "STARTED", null, 0L), recording.values);
+    }
+
+    @Test
+    public void passesOnFlushesAndCloses() throws Exception {
+        ChangeFilterSink sink = new ChangeFilterSink(0, recording);
+        sink.flush();
+        sink.close();
+
+        assertEquals(1, recording.flushes);
+        assertTrue(recording.closed);
+    }
+
+    private static List<Object> list(Object... values) {
+        return new ArrayList<Object>(Arrays.asList(values));
+    }
+
+    private static ObjectName objectName(String name) {
+        try {
+            return new ObjectName(name);
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static class RecordingSink implements SampleSink, Flushable {
+
+        final List<Long> timestamps = new ArrayList<Long>();
+        final List<Object> values = new ArrayList<Object>();
+        int flushes;
+        boolean closed;
+
+        @Override
+        public void sample(long timestamp, ObjectName objectName, String attributeName, Object value) {
+            timestamps.add(timestamp);
+            values.add(value);
+        }
+
+        @Override
+        public void flush() {
+            flushes++;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.melessoftware.utils.jmx;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class InvokeOperationCallbackTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(InvokeOperationCallbackTest.class);
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+    public interface AdderMBean {
+
+        int add(int a, int b);
+
+        void reset();
+
+        void fail();
+    }
+
+    public static class Adder implements AdderMBean {
+
+        private final AtomicInteger resets;
+
+        public Adder(AtomicInteger resets) {
+            this.resets = resets;
+        }
+
+        @Override
+        public int add(int a, int b) {
+            return a + b;
+        }
+
+        @Override
+        public void reset() {
+            resets.incrementAndGet();
+        }
+
+        @Override
+        public void fail() {
+            throw new IllegalStateException("not now");
+        }
+    }
+
+    private final AtomicInteger resets = new AtomicInteger();
+    private final StringBuilder out = new StringBuilder();
+    private MBeanServer server;
+
+    @Before
+    public void registerAdders() throws Exception {
+        server = MBeanServerFactory.newMBeanServer();
+        for (int i = 0; i < 3; i++) {
+            server.registerMBean(new Adder(resets), new ObjectName("test:type=Adder,name=" + i));
+        }
+        server.registerMBean(new AttributeExpanderTest.Thing(), new ObjectName("test:type=Thing"));
+    }
+
+    @Test
+    public void invokesEveryMatchingObjectInNameOrder() throws Exception {
+        InvokeOperationCallback callback = callback("test:type=Adder,*", "add", 1, null, false, "1", "2");
+        callback.execute(server);
+
+        assertEquals(lines(
+                "test:type=Adder,name=0\t ok\t 3",
+                "test:type=Adder,name=1\t ok\t 3",
+                "test:type=Adder,name=2\t ok\t 3"), out.toString());
+        assertEquals(3, callback.getSucceededCount());
+    }
+
+    @Test
+    public void keepsTheOrderWhenInvokingInParallel() throws Exception {
+        for (int i = 3; i < 40; i++) {
+            server.registerMBean(new Adder(resets), new ObjectName("test:type=Adder,name=" + i));
+        }
+        InvokeOperationCallback callback = callback("test:type=Adder,*", "reset", 8, null, false);
+        callback.execute(server);
+
+        String[] lines = out.toString().split(LINE_SEPARATOR);
+        List<ObjectName> names = new ArrayList<ObjectName>();
+        for (String line : lines) {
+            names.add(new ObjectName(line.substring(0, line.indexOf('\t'))));
+        }
+        List<ObjectName> sorted = new ArrayList<ObjectName>(names);
+        Collections.sort(sorted);
+        assertEquals(sorted, names);
+        assertEquals(40, lines.length);
+        assertEquals(40, resets.get());
+    }
+
+    @Test
+    public void reportsObjectsWithoutTheOperationAndCarriesOn() throws Exception {
+        InvokeOperationCallback callback = callback("test:*", "reset", 1, null, false);
+        callback.execute(server);
+
+        String[] lines = out.toString().split(LINE_SEPARATOR);
+        assertEquals("test:type=Thing\t failed", lines[3].substring(0, lines[3].lastIndexOf('\t')));
+        assertEquals(3, callback.getSucceededCount());
+        assertEquals(1, callback.getFailedCount());
+        assertEquals(3, resets.get());
+    }
+
+    @Test
+    public void reportsOperationsThatThrowAsFailed() throws Exception {
+        InvokeOperationCallback callback = callback("test:type=Adder,name=0", "fail", 1, null, false);
+        callback.execute(server);
+
+        assertEquals(lines("test:type=Adder,name=0\t failed\t threw java.lang.IllegalStateException: not now"), out.toString());
+        assertEquals(1, callback.getFailedCount());
+    }
+
+    @Test
+    public void invokesNothingInADryRun() throws Exception {
+        InvokeOperationCallback callback = callback("test:type=Adder,*", "reset", 1, null, true);
+        callback.execute(server);
+
+        assertEquals(0, resets.get());
+        assertEquals(3, callback.getSucceededCount());
+        assertEquals(3, out.toString().split(LINE_SEPARATOR).length);
+    }
+
+    @Test
+    public void pacesInvocationsWithARateLimiter() throws Exception {
+        InvokeOperationCallback callback = callback("test:type=Adder,*", "reset", 3, new RateLimiter(20), false);
+        long start = System.nanoTime();
+        callback.execute(server);
+
+        // the first goes straight away, and each of the others a twentieth of a second after the one before
+        assertTrue(System.nanoTime() - start >= 2 * 50000000L * 9 / 10);
+        assertEquals(3, resets.get());
+    }
+
+    private InvokeOperationCallback callback(String pattern, String operation, int parallelism, RateLimiter rateLimiter,
+                                             boolean dryRun, String... arguments) throws Exception {
+        return new InvokeOperationCallback(new ObjectName(pattern), null, operation, Arrays.asList(arguments),
+                parallelism, rateLimiter, dryRun, null, out, LOG);
+    }
+
+    private static String lines(String... lines) {
+        StringBuilder joined = new StringBuilder();
+        for (String line : lines) {
+            joined.append(line).append(LINE_SEPARATOR);
+        }
+        return joined.toString();
+    }
+}
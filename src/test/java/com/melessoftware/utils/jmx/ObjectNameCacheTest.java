@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.melessoftware.utils.jmx;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerFactory;
+import javax.management.MBeanServerNotification;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ObjectNameCacheTest {
+
+    public interface ThingMBean {
+    }
+
+    public static class Thing implements ThingMBean {
+    }
+
+    private final AtomicInteger queries = new AtomicInteger();
+    private final CountDownLatch firstQueryStarted = new CountDownLatch(1);
+    private final CountDownLatch releaseFirstQuery = new CountDownLatch(1);
+    private final Map<FutureTask<?>, Thread> threads = new HashMap<FutureTask<?>, Thread>();
+    private volatile NotificationListener listener;
+    private MBeanServer server;
+    private MBeanServerConnection connection;
+    private ObjectNameCache cache;
+    private Set<ObjectName> expected;
+
+    @Before
+    public void registerThings() throws Exception {
+        server = MBeanServerFactory.newMBeanServer();
+        for (String name : new String[]{"a:type=Thing,name=1", "a:type=Thing,name=2"}) {
+            server.registerMBean(new Thing(), new ObjectName(name));
+        }
+        connection = (MBeanServerConnection) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[]{MBeanServerConnection.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (method.getName().equals("addNotificationListener")) {
+                            // the test sends the notifications itself, so it can choose their sequence numbers
+                            listener = (NotificationListener) args[1];
+                            return null;
+                        }
+                        if (method.getName().equals("queryNames") && queries.incrementAndGet() == 1) {
+                            firstQueryStarted.countDown();
+                            releaseFirstQuery.await();
+                        }
+                        try {
+                            return method.invoke(server, args);
+                        } catch (InvocationTargetException ite) {
+                            throw ite.getCause();
+                        }
+                    }
+                });
+        cache = new ObjectNameCache(new ObjectName("a:*"));
+        expected = server.queryNames(new ObjectName("a:*"), null);
+    }
+
+    @Test
+    public void callersWaitForTheQueryInFlight() throws Exception {
+        FutureTask<Set<ObjectName>> first = start();
+        firstQueryStarted.await();
+        FutureTask<Set<ObjectName>> second = start();
+        awaitBlocked(second);
+
+        releaseFirstQuery.countDown();
+        assertEquals(expected, first.get(5, TimeUnit.SECONDS));
+        assertEquals(expected, second.get(5, TimeUnit.SECONDS));
+        assertEquals(1, queries.get());
+    }
+
+    @Test
+    public void queriesAgainAfterAGapDuringTheQuery() throws Exception {
+        FutureTask<Set<ObjectName>> first = start();
+        firstQueryStarted.await();
+        ObjectName added = new ObjectName("a:type=Thing,name=3");
+        server.registerMBean(new Thing(), added);
+        notify(1, added);
+        notify(5, new ObjectName("a:type=Thing,name=4"));
+        FutureTask<Set<ObjectName>> second = start();
+        awaitBlocked(second);
+
+        releaseFirstQuery.countDown();
+        first.get(5, TimeUnit.SECONDS);
+        Set<ObjectName> names = second.get(5, TimeUnit.SECONDS);
+        assertTrue(names.contains(added));
+        assertEquals(3, names.size());
+        assertEquals(2, queries.get());
+    }
+
+    @Test
+    public void appliesNotificationsAfterTheQuery() throws Exception {
+        releaseFirstQuery.countDown();
+        assertEquals(expected, cache.getNames(connection));
+        ObjectName added = new ObjectName("a:type=Thing,name=3");
+        notify(1, added);
+
+        assertTrue(cache.getNames(connection).contains(added));
+        assertEquals(1, queries.get());
+    }
+
+    @Test
+    public void tellsWhenNamesGo() throws Exception {
+        final List<ObjectName> gone = new ArrayList<ObjectName>();
+        cache = new ObjectNameCache(new ObjectName("a:*")) {
+            @Override
+            protected void unregistered(ObjectName objectName) {
+                gone.add(objectName);
+            }
+        };
+        releaseFirstQuery.countDown();
+        cache.getNames(connection);
+        ObjectName removed = new ObjectName("a:type=Thing,name=1");
+        server.unregisterMBean(removed);
+        notify(1, MBeanServerNotification.UNREGISTRATION_NOTIFICATION, removed);
+
+        assertEquals(Collections.singletonList(removed), gone);
+        assertFalse(cache.getNames(connection).contains(removed));
+    }
+
+    private FutureTask<Set<ObjectName>> start() {
+        FutureTask<Set<ObjectName>> task = new FutureTask<Set<ObjectName>>(new Callable<Set<ObjectName>>() {
+            @Override
+            public Set<ObjectName> call() throws Exception {
+                return cache.getNames(connection);
+            }
+        });
+        Thread thread = new Thread(task, "getNames");
+        thread.setDaemon(true);
+        thread.start();
+        threads.put(task, thread);
+        return task;
+    }
+
+    private void awaitBlocked(FutureTask<?> task) throws InterruptedException {
+        Thread thread = threads.get(task);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (thread.getState() != Thread.State.WAITING && !task.isDone() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertTrue("expected the caller to wait for the query in flight", !task.isDone());
+    }
+
+    private void notify(long sequenceNumber, ObjectName objectName) {
+        notify(sequenceNumber, MBeanServerNotification.REGISTRATION_NOTIFICATION, objectName);
+    }
+
+    private void notify(long sequenceNumber, String type, ObjectName objectName) {
+        listener.handleNotification(new MBeanServerNotification(type, MBeanServerDelegate.DELEGATE_NAME,
+                sequenceNumber, objectName), connection);
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.melessoftware.utils.jmx;
+
+import org.junit.Test;
+
+import javax.management.ObjectName;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+public class OpenMetricsSinkTest {
+
+    @Test
+    public void typesMatchingAttributesAsCounters() throws Exception {
+        OpenMetricsSink sink = new OpenMetricsSink(Arrays.asList("*Count", "Usage"));
+        ObjectName objectName = new ObjectName("test:type=Thing");
+        sink.sample(0, objectName, "CollectionCount", 3L);
+        sink.sample(0, objectName, "Usage.used", 10L);
+        sink.sample(0, objectName, "Ratio", 0.5);
+        sink.flush();
+
+        assertEquals("# TYPE test_CollectionCount counter\n"
+                + "test_CollectionCount_total{type=\"Thing\"} 3\n"
+                + "# TYPE test_Ratio gauge\n"
+                + "test_Ratio{type=\"Thing\"} 0.5\n"
+                + "# TYPE test_Usage_used counter\n"
+                + "test_Usage_used_total{type=\"Thing\"} 10\n"
+                + "# EOF\n", new String(sink.getSnapshot(), Charset.forName("UTF-8")));
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.melessoftware.utils.jmx;
+
+import org.junit.After;
+import org.junit.Test;
+
+import javax.management.MBeanServerConnection;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PollingSchedulerTest {
+
+    private static final JmxTemplate IN_VM = new JmxTemplate() {
+        @Override
+        public <T> T runWithConnection(MBeanServerCallback<T> callback) throws IOException {
+            return callback.execute(ManagementFactory.getPlatformMBeanServer());
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    private final PollingScheduler scheduler = new PollingScheduler(2);
+
+    @After
+    public void shutdown() {
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void ticksOnTheBoundariesOfThePeriodPlusTheOffset() throws Exception {
+        final List<long[]> ticks = Collections.synchronizedList(new ArrayList<long[]>());
+        final CountDownLatch fiveTicks = new CountDownLatch(5);
+        scheduler.scheduleJob("aligned", IN_VM, new PollingScheduler.Job() {
+            @Override
+            public MBeanServerCallback<?> callbackFor(long tickTime) {
+                ticks.add(new long[]{tickTime, System.currentTimeMillis()});
+                fiveTicks.countDown();
+                return null;
+            }
+        }, 30, 100, TimeUnit.MILLISECONDS);
+
+        assertTrue(fiveTicks.await(5, TimeUnit.SECONDS));
+        for (long[] tick : ticks.subList(0, 5)) {
+            assertEquals(0, tick[0] % 100);
+            long lateness = tick[1] - (tick[0] + 30);
+            assertTrue("tick ran " + lateness + " ms from its boundary", lateness >= 0 && lateness < 80);
+        }
+        for (int i = 1; i < 5; i++) {
+            assertEquals(100, ticks.get(i)[0] - ticks.get(i - 1)[0]);
+        }
+    }
+
+    @Test
+    public void skipsTicksWhileTheTargetIsStillBusy() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger started = new AtomicInteger();
+        scheduler.scheduleJob("busy", IN_VM, PollingScheduler.every(new Hang(started, release)), 0, 50, TimeUnit.MILLISECONDS);
+        Thread.sleep(400);
+        release.countDown();
+
+        assertEquals(1, started.get());
+        assertTrue("missed " + scheduler.getMissedTicks(), scheduler.getMissedTicks() >= 4);
+    }
+
+    @Test
+    public void keepsToItsThreadsWhenTargetsHang() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger started = new AtomicInteger();
+        for (int i = 0; i < 4; i++) {
+            scheduler.scheduleJob("hung " + i, IN_VM, PollingScheduler.every(new Hang(started, release)), 0, 50, TimeUnit.MILLISECONDS);
+        }
+        Thread.sleep(400);
+        int whileHung = started.get();
+        release.countDown();
+
+        assertEquals(2, whileHung);
+    }
+
+    @Test
+    public void countsTicksAsLateOrMissedWhenTheTimerFallsBehind() throws Exception {
+        final CountDownLatch secondTick = new CountDownLatch(2);
+        scheduler.scheduleJob("held up", IN_VM, new PollingScheduler.Job() {
+            @Override
+            public MBeanServerCallback<?> callbackFor(long tickTime) {
+                if (secondTick.getCount() == 2) {
+                    // holds up the timer thread itself, past the next tick and well into the one after
+                    try {
+                        Thread.sleep(250);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                secondTick.countDown();
+                return null;
+            }
+        }, 0, 100, TimeUnit.MILLISECONDS);
+
+        assertTrue(secondTick.await(5, TimeUnit.SECONDS));
+        assertTrue("missed " + scheduler.getMissedTicks(), scheduler.getMissedTicks() >= 1);
+        assertTrue("late " + scheduler.getLateTicks(), scheduler.getLateTicks() >= 1);
+    }
+
+    private static class Hang implements MBeanServerCallback<Object> {
+
+        private final AtomicInteger started;
+        private final CountDownLatch release;
+
+        private Hang(AtomicInteger started, CountDownLatch release) {
+            this.started = started;
+            this.release = release;
+        }
+
+        @Override
+        public Object execute(MBeanServerConnection connection) {
+            started.incrementAndGet();
+            try {
+                release.await();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.melessoftware.utils.jmx;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerFactory;
+import javax.management.remote.JMXConnectorServer;
+import javax.management.remote.JMXConnectorServerFactory;
+import javax.management.remote.JMXServiceURL;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PooledJmxTemplateTest {
+
+    private static final MBeanServerCallback<Integer> COUNT = new MBeanServerCallback<Integer>() {
+        @Override
+        public Integer execute(MBeanServerConnection connection) throws IOException {
+            return connection.getMBeanCount();
+        }
+    };
+
+    private final ExecutorService callers = Executors.newCachedThreadPool();
+    private JMXConnectorServer connectorServer;
+    private PooledJmxTemplate template;
+
+    @Before
+    public void startConnectorServer() throws Exception {
+        connectorServer = JMXConnectorServerFactory.newJMXConnectorServer(new JMXServiceURL("service:jmx:rmi://127.0.0.1"),
+                null, MBeanServerFactory.newMBeanServer());
+        connectorServer.start();
+    }
+
+    @After
+    public void stop() throws Exception {
+        callers.shutdownNow();
+        if (template != null) {
+            template.close();
+        }
+        connectorServer.stop();
+    }
+
+    @Test
+    public void lendsTheSameConnectorToCallbacksOneAfterAnother() throws Exception {
+        template = new PooledJmxTemplate(connectorServer.getAddress(), 4);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(template.runWithConnection(COUNT) > 0);
+        }
+
+        assertEquals(1, template.getConnectCount());
+        assertEquals(1, template.getIdleCount());
+        assertEquals(0, template.getActiveCount());
+        assertEquals(5, template.getBorrowCount());
+    }
+
+    @Test
+    public void makesCallersWaitOnceEveryConnectorIsLentOut() throws Exception {
+        template = new PooledJmxTemplate(connectorServer.getAddress(), 2);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger mostRunning = new AtomicInteger();
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        for (int i = 0; i < 5; i++) {
+            results.add(callers.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws IOException {
+                    return template.runWithConnection(new MBeanServerCallback<Integer>() {
+                        @Override
+                        public Integer execute(MBeanServerConnection connection) throws IOException {
+                            int now = running.incrementAndGet();
+                            int most;
+                            while (now > (most = mostRunning.get()) && !mostRunning.compareAndSet(most, now)) {
+                                // raced with another callback, try again
+                            }
+                            try {
+                                release.await();
+                            } catch (InterruptedException ie) {
+                                Thread.currentThread().interrupt();
+                            }
+                            running.decrementAndGet();
+                            return connection.getMBeanCount();
+                        }
+                    });
+                }
+            }));
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (template.getActiveCount() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        Thread.sleep(100);
+        assertEquals(2, template.getActiveCount());
+        release.countDown();
+
+        for (Future<Integer> result : results) {
+            assertTrue(result.get(5, TimeUnit.SECONDS) > 0);
+        }
+        assertEquals(2, mostRunning.get());
+        assertEquals(2, template.getConnectCount());
+        assertEquals(2, template.getIdleCount());
+    }
+
+    @Test
+    public void closesTheConnectorsThatHaveBeenIdleTooLong() throws Exception {
+        template = new PooledJmxTemplate(connectorServer.getAddress(), 2, 50, 1000, TimeUnit.MILLISECONDS);
+        template.runWithConnection(COUNT);
+        assertEquals(1, template.getIdleCount());
+        Thread.sleep(100);
+        template.evictIdle();
+
+        assertEquals(0, template.getIdleCount());
+        assertEquals(1, template.getEvictedCount());
+        template.runWithConnection(COUNT);
+        assertEquals(2, template.getConnectCount());
+    }
+
+    @Test
+    public void closesAConnectorWhoseCallbackFailed() throws Exception {
+        template = new PooledJmxTemplate(connectorServer.getAddress(), 2);
+        try {
+            template.runWithConnection(new MBeanServerCallback<Object>() {
+                @Override
+                public Object execute(MBeanServerConnection connection) throws IOException {
+                    throw new IOException("connection lost");
+                }
+            });
+            fail("expected the callback's failure");
+        } catch (IOException expected) {
+            // as thrown by the callback
+        }
+
+        assertEquals(0, template.getIdleCount());
+        template.runWithConnection(COUNT);
+        assertEquals(2, template.getConnectCount());
+    }
+
+    @Test
+    public void closesAConnectorLentOutWhenClosedOnceItsGivenBack() throws Exception {
+        template = new PooledJmxTemplate(connectorServer.getAddress(), 2);
+        final CountDownLatch borrowed = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Future<Integer> result = callers.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws IOException {
+                return template.runWithConnection(new MBeanServerCallback<Integer>() {
+                    @Override
+                    public Integer execute(MBeanServerConnection connection) throws IOException {
+                        borrowed.countDown();
+                        try {
+                            release.await();
+                        } catch (InterruptedException ie) {
+                            Thread.currentThread().interrupt();
+                        }
+                        return connection.getMBeanCount();
+                    }
+                });
+            }
+        });
+        assertTrue(borrowed.await(5, TimeUnit.SECONDS));
+        template.close();
+        assertFalse(template.isAvailable());
+        release.countDown();
+
+        assertTrue(result.get(5, TimeUnit.SECONDS) > 0);
+        assertEquals(0, template.getIdleCount());
+        try {
+            template.runWithConnection(COUNT);
+            fail("expected a closed template to refuse callbacks");
+        } catch (IOException expected) {
+            // closed
+        }
+    }
+}
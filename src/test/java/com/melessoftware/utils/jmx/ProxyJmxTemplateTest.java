@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.melessoftware.utils.jmx;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerFactory;
+import javax.management.remote.JMXConnectorServer;
+import javax.management.remote.JMXConnectorServerFactory;
+import javax.management.remote.JMXServiceURL;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ProxyJmxTemplateTest {
+
+    private static final MBeanServerCallback<Integer> COUNT = new MBeanServerCallback<Integer>() {
+        @Override
+        public Integer execute(MBeanServerConnection connection) throws IOException {
+            return connection.getMBeanCount();
+        }
+    };
+
+    private final ReconnectBackoff backoff = new ReconnectBackoff(200, 1000, TimeUnit.MILLISECONDS, 2.0, 0);
+    private int port;
+    private JMXServiceURL url;
+    private Registry registry;
+    private JMXConnectorServer connectorServer;
+    private ProxyJmxTemplate template;
+
+    @Before
+    public void pickAPortWithNothingOnIt() throws Exception {
+        ServerSocket socket = new ServerSocket(0);
+        port = socket.getLocalPort();
+        socket.close();
+        url = new JMXServiceURL("service:jmx:rmi:///jndi/rmi://127.0.0.1:" + port + "/jmxrmi");
+        template = new ProxyJmxTemplate(url, backoff);
+    }
+
+    @After
+    public void stop() throws Exception {
+        template.close();
+        if (connectorServer != null) {
+            connectorServer.stop();
+        }
+        if (registry != null) {
+            UnicastRemoteObject.unexportObject(registry, true);
+        }
+    }
+
+    @Test
+    public void failsStraightAwayAfterConnectingFails() throws Exception {
+        assertTrue(template.isAvailable());
+        expectFailure(IOException.class);
+
+        assertFalse(template.isAvailable());
+        expectFailure(TargetUnavailableException.class);
+    }
+
+    @Test
+    public void triesOnceMoreAfterTheBackoffAndWaitsLongerWhenThatFails() throws Exception {
+        expectFailure(IOException.class);
+        Thread.sleep(250);
+        assertTrue(template.isAvailable());
+        expectFailure(IOException.class);
+
+        // the second wait is twice the first
+        Thread.sleep(250);
+        assertFalse(template.isAvailable());
+        expectFailure(TargetUnavailableException.class);
+    }
+
+    @Test
+    public void connectsOnceTheServerIsBack() throws Exception {
+        expectFailure(IOException.class);
+        expectFailure(TargetUnavailableException.class);
+        registry = LocateRegistry.createRegistry(port);
+        connectorServer = JMXConnectorServerFactory.newJMXConnectorServer(url, null, MBeanServerFactory.newMBeanServer());
+        connectorServer.start();
+        Thread.sleep(250);
+
+        assertTrue(template.runWithConnection(COUNT) > 0);
+        assertTrue(template.isAvailable());
+    }
+
+    private void expectFailure(Class<? extends IOException> expected) {
+        try {
+            template.runWithConnection(COUNT);
+            fail("expected " + expected.getSimpleName());
+        } catch (IOException ioe) {
+            assertEquals(expected, ioe instanceof TargetUnavailableException ? TargetUnavailableException.class : IOException.class);
+        }
+    }
+}
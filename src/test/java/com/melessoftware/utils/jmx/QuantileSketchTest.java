@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.melessoftware.utils.jmx;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class QuantileSketchTest {
+
+    private static final double ACCURACY = 0.01;
+
+    @Test
+    public void isNaNWhenEmpty() {
+        assertTrue(Double.isNaN(new QuantileSketch().quantile(0.5)));
+    }
+
+    @Test
+    public void estimatesWithinOnePercent() {
+        Random random = new Random(42);
+        QuantileSketch sketch = new QuantileSketch();
+        double[] values = new double[10000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = Math.exp(random.nextGaussian() * 3);
+            sketch.add(values[i]);
+        }
+        Arrays.sort(values);
+        for (double fraction : new double[]{0.01, 0.25, 0.5, 0.9, 0.99, 1}) {
+            double expected = values[(int) Math.ceil(fraction * values.length) - 1];
+            assertEquals(expected, sketch.quantile(fraction), expected * ACCURACY);
+        }
+        assertEquals(values.length, sketch.getCount());
+    }
+
+    @Test
+    public void ordersNegativeZeroAndPositiveValues() {
+        QuantileSketch sketch = new QuantileSketch();
+        for (double value : new double[]{-100, -1, 0, 0, 1, 100}) {
+            sketch.add(value);
+        }
+        assertEquals(-100, sketch.quantile(0), 1);
+        assertEquals(-1, sketch.quantile(2 / 6.0), 0.01);
+        assertEquals(0, sketch.quantile(3 / 6.0), 0);
+        assertEquals(100, sketch.quantile(1), 1);
+    }
+
+    @Test
+    public void mergesTheLowestBucketsWhenTheValuesSpanTooMany() {
+        QuantileSketch sketch = new QuantileSketch();
+        sketch.add(1e-200);
+        sketch.add(1e200);
+        sketch.add(1e200);
+        assertEquals(3, sketch.getCount());
+        assertEquals(1e200, sketch.quantile(1), 1e200 * ACCURACY);
+    }
+
+    @Test
+    public void leavesOutValuesThatArentFinite() {
+        QuantileSketch sketch = new QuantileSketch();
+        sketch.add(0.5);
+        sketch.add(Double.POSITIVE_INFINITY);
+        sketch.add(Double.NEGATIVE_INFINITY);
+        sketch.add(Double.NaN);
+        assertEquals(1, sketch.getCount());
+        assertEquals(0.5, sketch.quantile(0.99), 0.5 * ACCURACY);
+    }
+
+    @Test
+    public void reusesBucketsAfterClearing() {
+        QuantileSketch sketch = new QuantileSketch();
+        sketch.add(1000);
+        sketch.clear();
+        sketch.add(10);
+        assertEquals(1, sketch.getCount());
+        assertEquals(10, sketch.quantile(0.5), 10 * ACCURACY);
+    }
+
+    @Test
+    public void aggregateLeavesOutValuesThatArentFinite() {
+        Aggregate aggregate = new Aggregate();
+        aggregate.add(1);
+        aggregate.add(Double.NaN);
+        aggregate.add(Double.POSITIVE_INFINITY);
+        aggregate.add(3);
+        assertEquals(2, aggregate.getCount());
+        assertEquals(4, aggregate.getSum(), 0);
+        assertEquals(1, aggregate.getMin(), 0);
+        assertEquals(3, aggregate.getMax(), 0);
+        assertEquals(3, aggregate.getQuantile(0.99), 3 * ACCURACY);
+    }
+
+    @Test
+    public void aggregateOfNothingIsNaN() {
+        Aggregate aggregate = new Aggregate();
+        aggregate.add(Double.NaN);
+        assertEquals(0, aggregate.getCount());
+        assertTrue(Double.isNaN(aggregate.getMin()));
+        assertTrue(Double.isNaN(aggregate.getMax()));
+        assertTrue(Double.isNaN(aggregate.getMean()));
+        assertTrue(Double.isNaN(aggregate.getQuantile(0.5)));
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.melessoftware.utils.jmx;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class QueryParserTest {
+
+    public interface PoolMBean {
+
+        int getActiveCount();
+
+        String getName();
+
+        boolean isEnabled();
+
+        double getLoad();
+    }
+
+    public static class Pool implements PoolMBean {
+
+        private final int activeCount;
+        private final String name;
+        private final boolean enabled;
+        private final double load;
+
+        public Pool(int activeCount, String name, boolean enabled, double load) {
+            this.activeCount = activeCount;
+            this.name = name;
+            this.enabled = enabled;
+            this.load = load;
+        }
+
+        @Override
+        public int getActiveCount() {
+            return activeCount;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        @Override
+        public double getLoad() {
+            return load;
+        }
+    }
+
+    private MBeanServer server;
+
+    @Before
+    public void registerPools() throws Exception {
+        server = MBeanServerFactory.newMBeanServer();
+        register("a", new Pool(0, "http-in", true, 0.0));
+        register("b", new Pool(5, "http-out", true, 0.5));
+        register("c", new Pool(12, "internal-jobs", false, 1.5));
+        register("d", new Pool(-3, "it's", true, -0.25));
+    }
+
+    @Test
+    public void comparesWithNumbers() throws Exception {
+        assertMatches("ActiveCount > 0", "b", "c");
+        assertMatches("ActiveCount >= 5", "b", "c");
+        assertMatches("ActiveCount < 5", "a", "d");
+        assertMatches("ActiveCount <= 5", "a", "b", "d");
+        assertMatches("ActiveCount = 12", "c");
+        assertMatches("ActiveCount != 12", "a", "b", "d");
+        assertMatches("ActiveCount < -1", "d");
+        assertMatches("Load > 0.75", "c");
+        assertMatches("Load < -0.1", "d");
+    }
+
+    @Test
+    public void comparesWithStringsAndBooleans() throws Exception {
+        assertMatches("Name = 'http-in'", "a");
+        assertMatches("Name = \"it's\"", "d");
+        assertMatches("Enabled = false", "c");
+        assertMatches("Enabled = true", "a", "b", "d");
+    }
+
+    @Test
+    public void matchesWildcards() throws Exception {
+        assertMatches("Name like 'http*'", "a", "b");
+        assertMatches("Name like 'http-?n'", "a");
+        assertMatches("not (Name like 'http*')", "c", "d");
+    }
+
+    @Test
+    public void combinesWithAndBeforeOr() throws Exception {
+        assertMatches("ActiveCount > 10 or ActiveCount = 0 and Enabled = true", "a", "c");
+        assertMatches("(ActiveCount > 10 or ActiveCount = 0) and Enabled = true", "a");
+        assertMatches("not Enabled = true and ActiveCount > 0", "c");
+        assertMatches("not not Enabled = false", "c");
+    }
+
+    @Test
+    public void readsKeywordsInAnyCaseButOnlyAsWholeWords() throws Exception {
+        assertMatches("ActiveCount > 10 OR Name LIKE 'http-o*'", "b", "c");
+        // an attribute that starts with a keyword is still an attribute
+        register("e", new Pool(1, "orders", true, 0));
+        assertMatches("Name = 'orders' and ActiveCount = 1", "e");
+    }
+
+    @Test
+    public void comparesAttributesWithEachOther() throws Exception {
+        assertMatches("Load > ActiveCount", "d");
+    }
+
+    @Test
+    public void rejectsBadExpressions() {
+        assertRejected("", "expected a value at position 1");
+        assertRejected("ActiveCount", "expected a comparison");
+        assertRejected("ActiveCount >", "expected a value");
+        assertRejected("Name = 'http", "unterminated string");
+        assertRejected("(ActiveCount > 0", "expected )");
+        assertRejected("ActiveCount > 0 Enabled", "unexpected 'Enabled'");
+        assertRejected("Name like Name", "like needs an attribute on the left and a string on the right");
+        assertRejected("ActiveCount > 1.2.3", "bad number 1.2.3");
+    }
+
+    private void register(String name, Pool pool) throws Exception {
+        server.registerMBean(pool, new ObjectName("test:type=Pool,name=" + name));
+    }
+
+    private void assertMatches(String filter, String... expected) throws Exception {
+        Set<String> matched = new TreeSet<String>();
+        for (ObjectName objectName : server.queryNames(new ObjectName("test:type=Pool,*"), QueryParser.parse(filter))) {
+            matched.add(objectName.getKeyProperty("name"));
+        }
+        assertEquals(filter, new HashSet<String>(Arrays.asList(expected)), matched);
+    }
+
+    private static void assertRejected(String filter, String message) {
+        try {
+            QueryParser.parse(filter);
+            fail("parsed " + filter);
+        } catch (IllegalArgumentException iae) {
+            assertTrue(iae.getMessage(), iae.getMessage().startsWith(message));
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.melessoftware.utils.jmx;
+
+import org.junit.Test;
+
+import javax.management.ObjectName;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class RateComputingSinkTest {
+
+    private static final ObjectName OBJECT_NAME = objectName("test:type=Thing");
+
+    private final RecordingSink recording = new RecordingSink();
+
+    @Test
+    public void passesOnDeltaAndRateOfACounter() throws Exception {
+        RateComputingSink sink = new RateComputingSink(Collections.singletonList("Count"), recording);
+        sink.sample(1000, OBJECT_NAME, "Count", 10L);
+        sink.sample(3000, OBJECT_NAME, "Count", 30L);
+
+        assertEquals(Arrays.asList("Count", "Count", "Count.delta", "Count.rate"), recording.names);
+        assertEquals(20L, recording.values.get(2));
+        assertEquals(10.0, recording.values.get(3));
+    }
+
+    @Test
+    public void leavesOtherAttributesAlone() throws Exception {
+        RateComputingSink sink = new RateComputingSink(Collections.singletonList("Count"), recording);
+        sink.sample(1000, OBJECT_NAME, "Counts", 10L);
+        sink.sample(2000, OBJECT_NAME, "Counts", 20L);
+
+        assertEquals(Arrays.asList("Counts", "Counts"), recording.names);
+    }
+
+    @Test
+    public void computesRatesForThePartsOfACompositeCounter() throws Exception {
+        RateComputingSink sink = new RateComputingSink(Collections.singletonList("Usage"), recording);
+        sink.sample(1000, OBJECT_NAME, "Usage.used", 100L);
+        sink.sample(1000, OBJECT_NAME, "Usage.max", 500L);
+        sink.sample(2000, OBJECT_NAME, "Usage.used", 150L);
+        sink.sample(2000, OBJECT_NAME, "Usage.max", 500L);
+
+        assertTrue(recording.names.contains("Usage.used.rate"));
+        assertEquals(50.0, recording.valueOf("Usage.used.rate"));
+        assertEquals(0.0, recording.valueOf("Usage.max.rate"));
+    }
+
+    @Test
+    public void matchesWildcardCounters() throws Exception {
+        RateComputingSink sink = new RateComputingSink(Collections.singletonList("*Count"), recording);
+        sink.sample(1000, OBJECT_NAME, "CollectionCount", 1);
+        sink.sample(2000, OBJECT_NAME, "CollectionCount", 3);
+
+        assertEquals(2L, recording.valueOf("CollectionCount.delta"));
+    }
+
+    @Test
+    public void treatsACounterGoingDownAsAReset() throws Exception {
+        RateComputingSink sink = new RateComputingSink(Collections.singletonList("Count"), recording);
+        sink.sample(1000, OBJECT_NAME, "Count", 50L);
+        sink.sample(2000, OBJECT_NAME, "Count", 5L);
+        sink.sample(3000, OBJECT_NAME, "Count", 7L);
+
+        assertEquals(1, sink.getResetCount());
+        assertEquals(Collections.<Object>singletonList(2L), recording.valuesOf("Count.delta"));
+    }
+
+    @Test
+    public void reusesTheBoxedValuesWhileTheyDontChange() throws Exception {
+        RateComputingSink sink = new RateComputingSink(Collections.singletonList("Count"), recording);
+        sink.sample(1000, OBJECT_NAME, "Count", 1000L);
+        sink.sample(2000, OBJECT_NAME, "Count", 2000L);
+        sink.sample(3000, OBJECT_NAME, "Count", 3000L);
+
+        List<Object> deltas = recording.valuesOf("Count.delta");
+        List<Object> rates = recording.valuesOf("Count.rate");
+        assertEquals(1000L, deltas.get(0));
+        assertSame(deltas.get(0), deltas.get(1));
+        assertSame(rates.get(0), rates.get(1));
+    }
+
+    @Test
+    public void matcherTriesEachDottedPrefix() {
+        AttributeNameMatcher matcher = new AttributeNameMatcher(Arrays.asList("LastGcInfo.memoryUsageAfterGc", "Sys*"));
+        assertTrue(matcher.matches("LastGcInfo.memoryUsageAfterGc.Metaspace.used"));
+        assertFalse(matcher.matches("LastGcInfo.duration"));
+        assertTrue(matcher.matches("SystemProperties.java.version"));
+        assertFalse(matcher.matches("LastGcInfo"));
+    }
+
+    private static ObjectName objectName(String name) {
+        try {
+            return new ObjectName(name);
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static class RecordingSink implements SampleSink {
+
+        final List<String> names = new ArrayList<String>();
+        final List<Object> values = new ArrayList<Object>();
+
+        @Override
+        public void sample(long timestamp, ObjectName objectName, String attributeName, Object value) {
+            names.add(attributeName);
+            values.add(value);
+        }
+
+        Object valueOf(String name) {
+            List<Object> found = valuesOf(name);
+            return found.get(found.size() - 1);
+        }
+
+        List<Object> valuesOf(String name) {
+            List<Object> found = new ArrayList<Object>();
+            for (int i = 0; i < names.size(); i++) {
+                if (names.get(i).equals(name)) {
+                    found.add(values.get(i));
+                }
+            }
+            return found;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.melessoftware.utils.jmx;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+
+public class RateLimiterTest {
+
+    @Test
+    public void letsTheFirstCallerThroughStraightAway() throws Exception {
+        RateLimiter limiter = new RateLimiter(1);
+        long start = System.nanoTime();
+        limiter.acquire();
+
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500));
+    }
+
+    @Test
+    public void spacesOutCallers() throws Exception {
+        RateLimiter limiter = new RateLimiter(50);
+        long start = System.nanoTime();
+        for (int i = 0; i < 11; i++) {
+            limiter.acquire();
+        }
+
+        // ten intervals of 20ms after the first
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(200) * 9 / 10);
+    }
+
+    @Test
+    public void doesntSaveUpUnusedSlots() throws Exception {
+        RateLimiter limiter = new RateLimiter(20);
+        limiter.acquire();
+        Thread.sleep(300);
+        long start = System.nanoTime();
+        for (int i = 0; i < 4; i++) {
+            limiter.acquire();
+        }
+
+        // had the quiet spell been saved up, these would all go at once
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(150) * 9 / 10);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void needsAPositiveRate() {
+        new RateLimiter(0);
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.melessoftware.utils.jmx;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ReconnectBackoffTest {
+
+    @Test
+    public void doublesTheWaitUpToTheMaximum() {
+        ReconnectBackoff backoff = new ReconnectBackoff(100, 1000, TimeUnit.MILLISECONDS, 2.0, 0);
+
+        assertEquals(100, backoff.delayMillis(1));
+        assertEquals(200, backoff.delayMillis(2));
+        assertEquals(800, backoff.delayMillis(4));
+        assertEquals(1000, backoff.delayMillis(5));
+        assertEquals(1000, backoff.delayMillis(100));
+    }
+
+    @Test
+    public void movesEachWaitByNoMoreThanTheJitter() {
+        ReconnectBackoff backoff = new ReconnectBackoff(1000, 1000, TimeUnit.MILLISECONDS, 2.0, 0.2);
+        long shortest = Long.MAX_VALUE;
+        long longest = Long.MIN_VALUE;
+        for (int i = 0; i < 1000; i++) {
+            long delay = backoff.delayMillis(1);
+            shortest = Math.min(shortest, delay);
+            longest = Math.max(longest, delay);
+        }
+
+        assertTrue(shortest >= 800 && longest <= 1200);
+        assertTrue("expected the waits to be spread out", longest - shortest > 100);
+    }
+
+    @Test
+    public void keepsAllButTheMaximumWhenCopied() {
+        ReconnectBackoff backoff = new ReconnectBackoff(100, 1000, TimeUnit.MILLISECONDS, 3.0, 0).withMaxDelay(500, TimeUnit.MILLISECONDS);
+
+        assertEquals(300, backoff.delayMillis(2));
+        assertEquals(500, backoff.delayMillis(3));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void needsTheWaitNotToShrink() {
+        new ReconnectBackoff(100, 1000, TimeUnit.MILLISECONDS, 0.5, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void needsTheJitterToBeAFraction() {
+        new ReconnectBackoff(100, 1000, TimeUnit.MILLISECONDS, 2.0, 1.5);
+    }
+}
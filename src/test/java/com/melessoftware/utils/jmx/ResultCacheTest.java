@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.melessoftware.utils.jmx;
+
+import org.junit.After;
+import org.junit.Test;
+
+import javax.management.JMException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ResultCacheTest {
+
+    private static final int CALLERS = 8;
+
+    private final ExecutorService callers = Executors.newCachedThreadPool();
+    private final AtomicInteger calls = new AtomicInteger();
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @After
+    public void stopCallers() {
+        callers.shutdownNow();
+    }
+
+    @Test
+    public void sharesOneCallBetweenCallersInFlightTogether() throws Exception {
+        final ResultCache cache = new ResultCache(0, TimeUnit.MILLISECONDS);
+        final Object result = new Object();
+        List<Future<Object>> results = startCallers(cache, new ResultCache.Call() {
+            @Override
+            public Object call() throws JMException, IOException {
+                calls.incrementAndGet();
+                awaitRelease();
+                return result;
+            }
+        });
+        awaitWaiting(cache, CALLERS - 1);
+        release.countDown();
+
+        for (Future<Object> future : results) {
+            assertSame(result, future.get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(1, calls.get());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(CALLERS - 1, cache.getCoalescedCount());
+    }
+
+    @Test
+    public void failsEveryWaitingCallerButDoesntKeepTheFailure() throws Exception {
+        final ResultCache cache = new ResultCache(1, TimeUnit.MINUTES);
+        List<Future<Object>> results = startCallers(cache, new ResultCache.Call() {
+            @Override
+            public Object call() throws JMException, IOException {
+                calls.incrementAndGet();
+                awaitRelease();
+                throw new IOException("connection lost");
+            }
+        });
+        awaitWaiting(cache, CALLERS - 1);
+        release.countDown();
+
+        for (Future<Object> future : results) {
+            try {
+                future.get(5, TimeUnit.SECONDS);
+                fail("expected the call's failure");
+            } catch (ExecutionException ee) {
+                assertTrue(ee.getCause() instanceof IOException);
+            }
+        }
+        assertEquals("retried", cache.get("key", new ResultCache.Call() {
+            @Override
+            public Object call() {
+                calls.incrementAndGet();
+                return "retried";
+            }
+        }));
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void keepsResultsForTheTimeToLive() throws Exception {
+        ResultCache cache = new ResultCache(100, TimeUnit.MILLISECONDS);
+        ResultCache.Call call = new ResultCache.Call() {
+            @Override
+            public Object call() {
+                return calls.incrementAndGet();
+            }
+        };
+        assertEquals(1, cache.get("key", call));
+        assertEquals(1, cache.get("key", call));
+        assertEquals(2, cache.get("other", call));
+        Thread.sleep(150);
+        assertEquals(3, cache.get("key", call));
+
+        assertEquals(1, cache.getHitCount());
+        assertEquals(3, cache.getMissCount());
+    }
+
+    @Test
+    public void sharesNothingOnceACallIsDoneWithNoTimeToLive() throws Exception {
+        ResultCache cache = new ResultCache(0, TimeUnit.MILLISECONDS);
+        ResultCache.Call call = new ResultCache.Call() {
+            @Override
+            public Object call() {
+                return calls.incrementAndGet();
+            }
+        };
+        assertEquals(1, cache.get("key", call));
+        assertEquals(2, cache.get("key", call));
+    }
+
+    private List<Future<Object>> startCallers(final ResultCache cache, final ResultCache.Call call) throws InterruptedException {
+        List<Future<Object>> results = new ArrayList<Future<Object>>();
+        for (int i = 0; i < CALLERS; i++) {
+            results.add(callers.submit(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    return cache.get("key", call);
+                }
+            }));
+        }
+        return results;
+    }
+
+    /**
+     * Waits until all but the caller making the call are waiting for it.
+     */
+    private void awaitWaiting(ResultCache cache, int waiting) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (cache.getCoalescedCount() < waiting && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(waiting, cache.getCoalescedCount());
+    }
+
+    private void awaitRelease() throws IOException {
+        try {
+            release.await();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted");
+        }
+    }
+}
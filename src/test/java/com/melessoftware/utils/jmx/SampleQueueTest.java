@@ -0,0 +1,241 @@
+/*
+ * Copyright (c) 2012 Neil Green
+ *
+ * This file is part of Meles Utils.
+ *
+ * Meles Utils is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Meles Utils is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Meles Utils.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.melessoftware.utils.jmx;
+
+import org.junit.After;
+import org.junit.Test;
+
+import javax.management.ObjectName;
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SampleQueueTest {
+
+    private static final ObjectName OBJECT_NAME = objectName("test:type=Thing");
+
+    private SampleQueue queue;
+
+    @After
+    public void closeQueue() throws IOException {
+        if (queue != null) {
+            queue.close();
+        }
+    }
+
+    @Test
+    public void deliversEverythingInOrderWhenBlocking() throws Exception {
+        queue = new SampleQueue(4, SampleQueue.OverflowPolicy.BLOCK);
+        RecordingSink recording = new RecordingSink();
+        SampleSink sink = queue.wrap(recording);
+        for (int i = 0; i < 1000; i++) {
+            sink.sample(i * 10L, OBJECT_NAME, "Count", i);
+        }
+        queue.close();
+
+        assertEquals(1000, recording.values.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, recording.values.get(i));
+            assertEquals(i * 10L, (long) recording.timestamps.get(i));
+        }
+        assertEquals(1000, queue.getDeliveredCount());
+        assertEquals(0, queue.getDroppedCount());
+        assertTrue(queue.getMaxDepth() <= 4);
+        assertTrue(recording.closed);
+    }
+
+    @Test
+    public void flushesAfterTheSamplesQueuedBeforeIt() throws Exception {
+        queue = new SampleQueue(16, SampleQueue.OverflowPolicy.BLOCK);
+        RecordingSink recording = new RecordingSink();
+        SampleSink sink = queue.wrap(recording);
+        sink.sample(1, OBJECT_NAME, "Count", 1);
+        sink.sample(2, OBJECT_NAME, "Count", 2);
+        ((Flushable) sink).flush();
+        sink.sample(3, OBJECT_NAME, "Count", 3);
+        sink.close();
+        queue.close();
+
+        assertEquals(Collections.singletonList(2), recording.flushedAfter);
+        assertEquals(3, recording.values.size());
+        assertTrue(recording.closed);
+    }
+
+    @Test
+    public void dropsNewSamplesWhenFull() throws Exception {
+        queue = new SampleQueue(4, SampleQueue.OverflowPolicy.DROP);
+        RecordingSink recording = new RecordingSink();
+        SampleSink sink = queue.wrap(recording);
+        fillWhileDeliveryIsStuck(sink, recording, 10);
+
+        assertEquals(list(0, 1, 2, 3, 4), recording.values);
+        assertEquals(5, queue.getDeliveredCount());
+        assertEquals(5, queue.getDroppedCount());
+    }
+
+    @Test
+    public void dropsOldestSamplesWhenFull() throws Exception {
+        queue = new SampleQueue(4, SampleQueue.OverflowPolicy.DROP_OLDEST);
+        RecordingSink recording = new RecordingSink();
+        SampleSink sink = queue.wrap(recording);
+        fillWhileDeliveryIsStuck(sink, recording, 10);
+
+        assertEquals(list(0, 6, 7, 8, 9), recording.values);
+        assertEquals(5, queue.getDroppedCount());
+    }
+
+    @Test
+    public void keepsClosesWhenDroppingOldest() throws Exception {
+        queue = new SampleQueue(4, SampleQueue.OverflowPolicy.DROP_OLDEST);
+        RecordingSink stuck = new RecordingSink();
+        SampleSink busy = queue.wrap(stuck);
+        RecordingSink finished = new RecordingSink();
+        SampleSink done = queue.wrap(finished);
+        stuck.stickOnFirst();
+        busy.sample(0, OBJECT_NAME, "Count", 0);
+        assertTrue(stuck.stuck.await(5, TimeUnit.SECONDS));
+        done.sample(1, OBJECT_NAME, "Count", 1);
+        done.close();
+        for (int i = 2; i < 10; i++) {
+            busy.sample(i, OBJECT_NAME, "Count", i);
+        }
+        stuck.release.countDown();
+
+        assertTrue(finished.closing.await(5, TimeUnit.SECONDS));
+        queue.close();
+        assertEquals(list(0, 7, 8, 9), stuck.values);
+        assertTrue(finished.values.isEmpty());
+    }
+
+    @Test
+    public void carriesOnAfterASinkFails() throws Exception {
+        queue = new SampleQueue(16, SampleQueue.OverflowPolicy.BLOCK);
+        RecordingSink recording = new RecordingSink();
+        SampleSink failing = queue.wrap(new RecordingSink() {
+            @Override
+            public void sample(long timestamp, ObjectName objectName, String attributeName, Object value) throws IOException {
+                throw new IOException("disk full");
+            }
+        });
+        SampleSink working = queue.wrap(recording);
+        failing.sample(1, OBJECT_NAME, "Count", 1);
+        working.sample(1, OBJECT_NAME, "Count", 1);
+        failing.sample(2, OBJECT_NAME, "Count", 2);
+        working.sample(2, OBJECT_NAME, "Count", 2);
+        queue.close();
+
+        assertEquals(list(1, 2), recording.values);
+        assertEquals(2, queue.getFailedCount());
+        assertEquals(2, queue.getDeliveredCount());
+    }
+
+    @Test
+    public void dropsSamplesQueuedAfterClosing() throws Exception {
+        queue = new SampleQueue(16, SampleQueue.OverflowPolicy.BLOCK);
+        RecordingSink recording = new RecordingSink();
+        SampleSink sink = queue.wrap(recording);
+        queue.close();
+        sink.sample(1, OBJECT_NAME, "Count", 1);
+
+        assertTrue(recording.values.isEmpty());
+        assertEquals(1, queue.getDroppedCount());
+        assertTrue(recording.closed);
+    }
+
+    /**
+     * Queues {@code count} samples while the output thread is stuck delivering the first, then lets it go and waits
+     * for the rest to be delivered.
+     */
+    private void fillWhileDeliveryIsStuck(SampleSink sink, RecordingSink recording, int count) throws Exception {
+        recording.stickOnFirst();
+        sink.sample(0, OBJECT_NAME, "Count", 0);
+        assertTrue(recording.stuck.await(5, TimeUnit.SECONDS));
+        for (int i = 1; i < count; i++) {
+            sink.sample(i, OBJECT_NAME, "Count", i);
+        }
+        assertEquals(4, queue.getDepth());
+        recording.release.countDown();
+        queue.close();
+    }
+
+    private static List<Object> list(Object... values) {
+        List<Object> list = new ArrayList<Object>();
+        Collections.addAll(list, values);
+        return list;
+    }
+
+    private static ObjectName objectName(String name) {
+        try {
+            return new ObjectName(name);
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static class RecordingSink implements SampleSink, Flushable {
+
+        // only touched by the output thread until the queue is closed, which waits for it to finish
+        final List<Object> values = new ArrayList<Object>();
+        final List<Long> timestamps = new ArrayList<Long>();
+        final List<Integer> flushedAfter = new ArrayList<Integer>();
+        volatile boolean closed;
+        final CountDownLatch closing = new CountDownLatch(1);
+
+        final CountDownLatch stuck = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        private boolean stickOnFirst;
+
+        void stickOnFirst() {
+            stickOnFirst = true;
+        }
+
+        @Override
+        public void sample(long timestamp, ObjectName objectName, String attributeName, Object value) throws IOException {
+            if (stickOnFirst && values.isEmpty()) {
+                stuck.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            values.add(value);
+            timestamps.add(timestamp);
+        }
+
+        @Override
+        public void flush() {
+            flushedAfter.add(values.size());
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            closing.countDown();
+        }
+    }
+}